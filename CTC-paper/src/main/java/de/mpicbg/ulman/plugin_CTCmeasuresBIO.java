@@ -25,6 +25,14 @@ import de.mpicbg.ulman.workers.CT;
 import de.mpicbg.ulman.workers.TF;
 import de.mpicbg.ulman.workers.BCi;
 import de.mpicbg.ulman.workers.CCA;
+import de.mpicbg.ulman.workers.Bootstrap;
+import de.mpicbg.ulman.workers.LogBuffer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 @Plugin(type = Command.class, menuPath = "Plugins>Cell Tracking Challenge>Biological measures",
         name = "CTC_BIO", headless = true,
@@ -72,7 +80,7 @@ public class plugin_CTCmeasuresBIO implements Command
 		description = "Examines how good a method is at reconstructing mother-daughter relationships.")
 	private boolean calcBCi = true;
 
-	@Parameter(label = "i =", min = "0", max = "5", columns = 3,
+	@Parameter(label = "i =", min = "0", columns = 3,
 		description = "Value of 'i' for which the BC(i) should be reported.")
 	private int iForBCi = 2;
 
@@ -81,6 +89,15 @@ public class plugin_CTCmeasuresBIO implements Command
 	private boolean calcCCA = true;
 
 
+	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false,
+		label = "Select optional preferences:")
+	private final String optionsHeader = "";
+
+	@Parameter(label = "Bootstrap resamples:", min = "0",
+		description = "Number of resamples of the reference lineages for the confidence intervals of CT, TF and BC(i), 0 means no intervals.")
+	private int noOfResamples = 0;
+
+
 	//citation footer...
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false, label = "Please, cite us:")
 	private final String citationFooterA
@@ -122,73 +139,116 @@ public class plugin_CTCmeasuresBIO implements Command
 		GTdir  = gtPath.getPath();
 		RESdir = resPath.getPath();
 
-		//reference on a shared object that does
-		//pre-fetching of data and some common pre-calculation
-		TrackDataCache cache = null;
+		//nothing to do?
+		if (!calcCT && !calcTF && !calcBCi && !calcCCA) return;
 
-		if (calcCT )
-		{
-			try {
-				final CT ct = new CT(log);
-				CT = ct.calculate(GTdir, RESdir, cache);
-				cache = ct.getCache();
-			}
-			catch (RuntimeException e) {
-				log.error("CTC CT measure problem: "+e.getMessage());
-			}
-			catch (Exception e) {
-				log.error("CTC CT measure error: "+e.getMessage());
-			}
+		//reference on a shared object that does
+		//pre-fetching of data and some common pre-calculation,
+		//the measures only read it afterwards
+		final TrackDataCache cache = new TrackDataCache(log);
+		try {
+			cache.calculate(GTdir, RESdir);
+		}
+		catch (RuntimeException e) {
+			log.error("CTC BIO measures problem: "+e.getMessage());
+			return;
+		}
+		catch (Exception e) {
+			log.error("CTC BIO measures error: "+e.getMessage());
+			return;
 		}
 
-		if (calcTF )
-		{
-			try {
-				final TF tf = new TF(log);
-				TF = tf.calculate(GTdir, RESdir, cache);
-				cache = tf.getCache();
-			}
-			catch (RuntimeException e) {
-				log.error("CTC TF measure problem: "+e.getMessage());
-			}
-			catch (Exception e) {
-				log.error("CTC TF measure error: "+e.getMessage());
-			}
+		//the measures are calculated concurrently, each logs into its own buffer
+		final int noOfMeasures = (calcCT ? 1 : 0) + (calcTF ? 1 : 0) + (calcBCi ? 1 : 0) + (calcCCA ? 1 : 0);
+		final ExecutorService workers
+			= Executors.newFixedThreadPool(Math.max(1, Math.min(noOfMeasures, cache.noOfThreads)));
+		try {
+			final LogBuffer ctLog  = new LogBuffer(log);
+			final LogBuffer tfLog  = new LogBuffer(log);
+			final LogBuffer bciLog = new LogBuffer(log);
+			final LogBuffer ccaLog = new LogBuffer(log);
+
+			final Future<Double> ctResult = !calcCT ? null :
+				submitMeasure(workers, ctLog, "CT",
+					() -> new CT(ctLog).calculate(GTdir, RESdir, cache));
+
+			final Future<Double> tfResult = !calcTF ? null :
+				submitMeasure(workers, tfLog, "TF",
+					() -> new TF(tfLog).calculate(GTdir, RESdir, cache));
+
+			final Future<Double> bciResult = !calcBCi ? null :
+				submitMeasure(workers, bciLog, "BC(i)", () -> {
+					final BCi bci = new BCi(bciLog);
+					bci.setI(iForBCi);
+					return bci.calculate(GTdir, RESdir, cache);
+				} );
+
+			final Future<Double> ccaResult = !calcCCA ? null :
+				submitMeasure(workers, ccaLog, "CCA",
+					() -> new CCA(ccaLog).calculate(GTdir, RESdir, cache));
+
+			//collect the results (and reports) in the usual order
+			if (calcCT ) CT  = collectMeasure(ctResult,  ctLog);
+			if (calcTF ) TF  = collectMeasure(tfResult,  tfLog);
+			if (calcBCi) BCi = collectMeasure(bciResult, bciLog);
+			if (calcCCA) CCA = collectMeasure(ccaResult, ccaLog);
+		}
+		finally {
+			workers.shutdownNow();
 		}
 
-		if (calcBCi)
+		if (noOfResamples > 0)
 		{
 			try {
-				final BCi bci = new BCi(log);
-				if (calcBCi) bci.setI(iForBCi);
-				BCi = bci.calculate(GTdir, RESdir, cache);
-				cache = bci.getCache();
+				final Bootstrap bs = new Bootstrap(log);
+				bs.noOfResamples = noOfResamples;
+				bs.ResampleBIO(cache, calcCT, calcTF, calcBCi, iForBCi);
 			}
 			catch (RuntimeException e) {
-				log.error("CTC BC(i) measure problem: "+e.getMessage());
-			}
-			catch (Exception e) {
-				log.error("CTC BC(i) measure error: "+e.getMessage());
+				log.error("CTC bootstrap problem: "+e.getMessage());
 			}
 		}
 
-		if (calcCCA)
-		{
+		//do not report anything explicitly (unless special format for parsing is
+		//desired) as ItemIO.OUTPUT will make it output automatically
+	}
+
+	///starts the measure calculation, its errors are reported into its \e measureLog
+	private Future<Double> submitMeasure(final ExecutorService workers,
+		final LogBuffer measureLog, final String measureName, final Callable<Double> measure)
+	{
+		return workers.submit( () -> {
 			try {
-				final CCA cca = new CCA(log);
-				CCA = cca.calculate(GTdir, RESdir, cache);
-				cache = cca.getCache();
+				return measure.call();
 			}
 			catch (RuntimeException e) {
-				log.error("CTC CCA measure problem: "+e.getMessage());
+				measureLog.error("CTC "+measureName+" measure problem: "+e.getMessage());
 			}
 			catch (Exception e) {
-				log.error("CTC CCA measure error: "+e.getMessage());
+				measureLog.error("CTC "+measureName+" measure error: "+e.getMessage());
 			}
-		}
+			return (-1.0);
+		} );
+	}
 
-		//do not report anything explicitly (unless special format for parsing is
-		//desired) as ItemIO.OUTPUT will make it output automatically
+	///waits for the measure to finish, reports its log and returns its value
+	private double collectMeasure(final Future<Double> result, final LogBuffer measureLog)
+	{
+		try {
+			return result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			measureLog.error("CTC measure was interrupted: "+e.getMessage());
+			return (-1.0);
+		}
+		catch (ExecutionException e) {
+			measureLog.error("CTC measure has failed: "+e.getMessage());
+			return (-1.0);
+		}
+		finally {
+			measureLog.flush();
+		}
 	}
 
 
@@ -219,7 +279,8 @@ public class plugin_CTCmeasuresBIO implements Command
 		//run this class as if from GUI
 		ij.command().run(plugin_CTCmeasuresBIO.class, true, "gtPath",args[0], "resPath",args[1],
 			"calcCT",true, "calcTF",true,
-			"calcBCi",true, "iForBCi", 2, "calcCCA",true);
+			"calcBCi",true, "iForBCi", 2, "calcCCA",true,
+			"noOfResamples", 0);
 
 		//and close the IJ instance...
 		//ij.appEvent().quit();
@@ -23,6 +23,8 @@ import java.io.File;
 import de.mpicbg.ulman.workers.ImgQualityDataCache;
 import de.mpicbg.ulman.workers.SNR;
 import de.mpicbg.ulman.workers.CR;
+import de.mpicbg.ulman.workers.SNRrobust;
+import de.mpicbg.ulman.workers.CRrobust;
 import de.mpicbg.ulman.workers.HETI;
 import de.mpicbg.ulman.workers.HETB;
 import de.mpicbg.ulman.workers.RES;
@@ -82,6 +84,23 @@ public class plugin_CTCmeasuresDS implements Command
 	private final String pathFooterB
 		= "http://www.celltrackingchallenge.net/submission-of-results.html";
 
+	@Parameter(label = "Folder to cache statistics in (optional):",
+		columns = 40, style = FileWidget.DIRECTORY_STYLE, required = false,
+		description = "If given, the per-frame statistics are stored in this folder and re-used "
+			+ "in later runs for the frames whose image files have not changed since.")
+	private File statsCachePath = null;
+
+	@Parameter(label = "Fraction of data to evaluate:",
+		min = "0.01", max = "1.0", stepSize = "0.01",
+		description = "1.0 evaluates all frames and the measures are exact. Smaller values evaluate only "
+			+ "a random subset of frames (and of background within them), which is faster, and the measures "
+			+ "SNR, CR (also the robust ones), Heti, Hetb, Cha and Ove are reported with their standard errors.")
+	private double samplingFraction = 1.0;
+
+	@Parameter(label = "Number of threads:", min = "1",
+		description = "Number of threads used to process the videos, their frames and the distance transforms in parallel.")
+	private int noOfThreads = Runtime.getRuntime().availableProcessors();
+
 
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false,
 		label = "Select measures to calculate:")
@@ -95,6 +114,16 @@ public class plugin_CTCmeasuresDS implements Command
 		description = "Evaluates the average contrast ratio over all annotated cells.")
 	private boolean calcCR = true;
 
+	@Parameter(label = "SNR (robust)",
+		description = "Evaluates the SNR from medians and MAD instead of averages and std. deviation, "
+			+ "which is less sensitive to outliers in the annotations (e.g., debris in the background).")
+	private boolean calcSNRrobust = false;
+
+	@Parameter(label = "CR (robust)",
+		description = "Evaluates the CR from medians instead of averages, "
+			+ "which is less sensitive to outliers in the annotations (e.g., debris in the background).")
+	private boolean calcCRrobust = false;
+
 	@Parameter(label = "Heti",
 		description = "Evaluates the average internal signal heterogeneity of the cells.")
 	private boolean calcHeti = true;
@@ -161,15 +190,39 @@ public class plugin_CTCmeasuresDS implements Command
 	@Parameter(type = ItemIO.OUTPUT)
 	double SNR = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double SNRstdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double CR = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double CRstdErr = -1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	double SNRrobust = -1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	double SNRrobustStdErr = -1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	double CRrobust = -1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	double CRrobustStdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double Heti = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double HetiStdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double Hetb = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double HetbStdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double Res = -1;
 
@@ -182,9 +235,15 @@ public class plugin_CTCmeasuresDS implements Command
 	@Parameter(type = ItemIO.OUTPUT)
 	double Cha = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double ChaStdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double Ove = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double OveStdErr = -1;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	double Mit = -1;
 
@@ -220,6 +279,10 @@ public class plugin_CTCmeasuresDS implements Command
 		ImgQualityDataCache cache = new ImgQualityDataCache(log);
 		if (calcDen) cache.doDensityPrecalculation = true;
 		if (calcSha) cache.doShapePrecalculation = true;
+		if (calcSNRrobust || calcCRrobust) cache.doRobustPrecalculation = true;
+		if (statsCachePath != null) cache.statsCachePath = statsCachePath.getPath();
+		cache.samplingFraction = samplingFraction;
+		cache.noOfThreads = noOfThreads;
 
 		//do the calculation and retrieve updated cache afterwards
 		if (calcSNR)
@@ -227,6 +290,7 @@ public class plugin_CTCmeasuresDS implements Command
 			try {
 				final SNR snr = new SNR(log);
 				SNR = snr.calculate(IMGdir, resolution, ANNdir, cache);
+				SNRstdErr = snr.getStdErr();
 				cache = snr.getCache();
 			}
 			catch (RuntimeException e) {
@@ -242,6 +306,7 @@ public class plugin_CTCmeasuresDS implements Command
 			try {
 				final CR cr = new CR(log);
 				CR = cr.calculate(IMGdir, resolution, ANNdir, cache);
+				CRstdErr = cr.getStdErr();
 				cache = cr.getCache();
 			}
 			catch (RuntimeException e) {
@@ -252,11 +317,44 @@ public class plugin_CTCmeasuresDS implements Command
 			}
 		}
 
+		if (calcSNRrobust)
+		{
+			try {
+				final SNRrobust snr = new SNRrobust(log);
+				SNRrobust = snr.calculate(IMGdir, resolution, ANNdir, cache);
+				SNRrobustStdErr = snr.getStdErr();
+				cache = snr.getCache();
+			}
+			catch (RuntimeException e) {
+				log.error("CTC robust SNR measure problem: "+e.getMessage());
+			}
+			catch (Exception e) {
+				log.error("CTC robust SNR measure error: "+e.getMessage());
+			}
+		}
+
+		if (calcCRrobust)
+		{
+			try {
+				final CRrobust cr = new CRrobust(log);
+				CRrobust = cr.calculate(IMGdir, resolution, ANNdir, cache);
+				CRrobustStdErr = cr.getStdErr();
+				cache = cr.getCache();
+			}
+			catch (RuntimeException e) {
+				log.error("CTC robust CR measure problem: "+e.getMessage());
+			}
+			catch (Exception e) {
+				log.error("CTC robust CR measure error: "+e.getMessage());
+			}
+		}
+
 		if (calcHeti)
 		{
 			try {
 				final HETI heti = new HETI(log);
 				Heti = heti.calculate(IMGdir, resolution, ANNdir, cache);
+				HetiStdErr = heti.getStdErr();
 				cache = heti.getCache();
 			}
 			catch (RuntimeException e) {
@@ -272,6 +370,7 @@ public class plugin_CTCmeasuresDS implements Command
 			try {
 				final HETB hetb = new HETB(log);
 				Hetb = hetb.calculate(IMGdir, resolution, ANNdir, cache);
+				HetbStdErr = hetb.getStdErr();
 				cache = hetb.getCache();
 			}
 			catch (RuntimeException e) {
@@ -332,6 +431,7 @@ public class plugin_CTCmeasuresDS implements Command
 			try {
 				final CHA cha = new CHA(log);
 				Cha = cha.calculate(IMGdir, resolution, ANNdir, cache);
+				ChaStdErr = cha.getStdErr();
 				cache = cha.getCache();
 			}
 			catch (RuntimeException e) {
@@ -347,6 +447,7 @@ public class plugin_CTCmeasuresDS implements Command
 			try {
 				final OVE ove = new OVE(log);
 				Ove = ove.calculate(IMGdir, resolution, ANNdir, cache);
+				OveStdErr = ove.getStdErr();
 				cache = ove.getCache();
 			}
 			catch (RuntimeException e) {
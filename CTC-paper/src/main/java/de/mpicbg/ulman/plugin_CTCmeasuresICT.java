@@ -20,8 +20,11 @@ import net.imagej.ImageJ;
 import org.scijava.widget.FileWidget;
 import java.io.File;
 
+import de.mpicbg.ulman.workers.TrackDataCache;
 import de.mpicbg.ulman.workers.TRA;
 import de.mpicbg.ulman.workers.SEG;
+import de.mpicbg.ulman.workers.DET;
+import de.mpicbg.ulman.workers.Bootstrap;
 
 @Plugin(type = Command.class, menuPath = "Plugins>Cell Tracking Challenge>Technical measures",
         name = "CTC_ICT", headless = true,
@@ -65,6 +68,10 @@ public class plugin_CTCmeasuresICT implements Command
 		description = "Evaluates the ability of an algorithm to track cells in time.")
 	private boolean calcTRA = true;
 
+	@Parameter(label = "DET",
+		description = "Evaluates the ability of an algorithm to detect cells, regardless of their tracking.")
+	private boolean calcDET = true;
+
 
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false,
 		label = "Select optional preferences:")
@@ -78,6 +85,18 @@ public class plugin_CTCmeasuresICT implements Command
 		description = "Evaluates the consistency of user's images and tracks.txt before measuring TRA.")
 	private boolean optionConsistency = true;
 
+	@Parameter(label = "Bootstrap resamples for TRA:", min = "0",
+		description = "Number of resamples of time blocks for the confidence interval of TRA, 0 means no interval.")
+	private int noOfResamples = 0;
+
+	@Parameter(label = "Bootstrap time block length:", min = "1",
+		description = "Length (in frames) of the time blocks that are resampled.")
+	private int timeBlockLength = 10;
+
+	@Parameter(label = "Number of threads:", min = "1",
+		description = "Number of threads used to read and evaluate the images in parallel.")
+	private int noOfThreads = Runtime.getRuntime().availableProcessors();
+
 
 	//citation footer...
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false, label = "Please, cite us:")
@@ -105,6 +124,9 @@ public class plugin_CTCmeasuresICT implements Command
 	@Parameter(type = ItemIO.OUTPUT)
 	double TRA = -1;
 
+	@Parameter(type = ItemIO.OUTPUT)
+	double DET = -1;
+
 
 	//the GUI path entry function:
 	@Override
@@ -114,11 +136,45 @@ public class plugin_CTCmeasuresICT implements Command
 		GTdir  = gtPath.getPath();
 		RESdir = resPath.getPath();
 
-		if (calcSEG)
+		//reference on a shared object that does
+		//pre-fetching of data and some common pre-calculation
+		TrackDataCache cache = null;
+
+		//when also the TRA upper stage is to be computed, the SEG
+		//is evaluated along with it to read every RES image only once
+		if (calcSEG && (calcTRA || calcDET))
 		{
 			try {
 				final SEG seg = new SEG(log);
 				seg.doLogReports = optionVerboseLogging;
+				seg.noOfThreads = noOfThreads;
+				seg.StartSharedPass(GTdir);
+
+				cache = new TrackDataCache(log);
+				cache.noOfThreads = noOfThreads;
+				cache.calculate(GTdir, RESdir, seg);
+
+				SEG = seg.FinishSharedPass(RESdir);
+			}
+			catch (RuntimeException e) {
+				log.error("CTC SEG and TRA shared pass problem: "+e.getMessage());
+				log.info("Trying to calculate the measures separately...");
+				cache = null;
+			}
+			catch (Exception e) {
+				log.error("CTC SEG and TRA shared pass error: "+e.getMessage());
+				log.info("Trying to calculate the measures separately...");
+				cache = null;
+			}
+		}
+
+		//stand-alone SEG (or the shared pass has failed)
+		if (calcSEG && SEG == -1)
+		{
+			try {
+				final SEG seg = new SEG(log);
+				seg.doLogReports = optionVerboseLogging;
+				seg.noOfThreads = noOfThreads;
 				SEG = seg.calculate(GTdir, RESdir);
 			}
 			catch (RuntimeException e) {
@@ -135,7 +191,16 @@ public class plugin_CTCmeasuresICT implements Command
 				final TRA tra = new TRA(log);
 				tra.doConsistencyCheck = optionConsistency;
 				tra.doLogReports = optionVerboseLogging;
-				TRA = tra.calculate(GTdir, RESdir);
+				TRA = tra.calculate(GTdir, RESdir, cache);
+				cache = tra.getCache();
+
+				if (noOfResamples > 0)
+				{
+					final Bootstrap bs = new Bootstrap(log);
+					bs.noOfResamples = noOfResamples;
+					bs.timeBlockLength = timeBlockLength;
+					bs.ResampleTRA(tra);
+				}
 			}
 			catch (RuntimeException e) {
 				log.error("CTC TRA measure problem: "+e.getMessage());
@@ -145,6 +210,22 @@ public class plugin_CTCmeasuresICT implements Command
 			}
 		}
 
+		if (calcDET)
+		{
+			try {
+				final DET det = new DET(log);
+				det.doLogReports = optionVerboseLogging;
+				DET = det.calculate(GTdir, RESdir, cache);
+				cache = det.getCache();
+			}
+			catch (RuntimeException e) {
+				log.error("CTC DET measure problem: "+e.getMessage());
+			}
+			catch (Exception e) {
+				log.error("CTC DET measure error: "+e.getMessage());
+			}
+		}
+
 		//do not report anything explicitly (unless special format for parsing is
 		//desired) as ItemIO.OUTPUT will make it output automatically
 	}
@@ -176,7 +257,7 @@ public class plugin_CTCmeasuresICT implements Command
 
 		//run this class as if from GUI
 		ij.command().run(plugin_CTCmeasuresICT.class, true, "gtPath",args[0], "resPath",args[1],
-			"calcTRA",true, "calcSEG",true);
+			"calcTRA",true, "calcSEG",true, "calcDET",true);
 
 		//and close the IJ instance...
 		//ij.appEvent().quit();
@@ -15,6 +15,7 @@ import io.scif.img.ImgIOException;
 import java.io.IOException;
 
 import de.mpicbg.ulman.workers.ImgQualityDataCache;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
 
 public class AbstractDSmeasure
 {
@@ -105,4 +106,101 @@ public class AbstractDSmeasure
 		log.info("Computing the measure bottom part...");
 		return (-1.0);
 	}
+
+
+	//---------------------------------------------------------------------/
+	///standard error of the recently calculated measure (see calculateVideoStdErr()), NaN if not available
+	protected double stdErr = Double.NaN;
+
+	///returns the standard error of the recently calculated measure, NaN if not available
+	public double getStdErr()
+	{ return (stdErr); }
+
+	/**
+	 * Returns the value of the measure for the video \e data, calculated from
+	 * those of its frames that have non-zero \e weights, every frame contributing
+	 * as many times as is its weight (see videoDataContainer.frameWeights).
+	 * Returns NaN if the value cannot be calculated.
+	 *
+	 * The measures that report standard errors override this function
+	 * (and calculate their per-video values with it).
+	 */
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{ return (Double.NaN); }
+
+	/**
+	 * Returns the standard error of the calculateVideo() for the video \e data
+	 * that is due to the sampling of its frames (see ImgQualityDataCache.samplingFraction),
+	 * which is zero if all frames were evaluated.
+	 *
+	 * This is the stratified (delete-one-frame) jackknife estimate: every evaluated
+	 * frame is left out in turn (and the other evaluated frames of its stratum take over
+	 * its weight) and the measure is re-calculated. The spread of the re-calculated
+	 * values in the strata, corrected for the fraction of the evaluated frames, gives
+	 * the variance. The error of the sampled background within frames is not included.
+	 */
+	protected double calculateVideoStdErr(final videoDataContainer data)
+	{
+		final double[] weights = data.frameWeights;
+		final int[] strata = data.frameStrata;
+
+		double var = 0.0;
+
+		//over all strata, a stratum is identified with its first frame
+		for (int h=0; h < strata.length; ++h)
+		{
+			if (strata[h] != h) continue;
+
+			//the frames of the stratum, and how many were evaluated
+			int noOfFrames = 0, noOfEvaluated = 0;
+			for (int t=h; t < strata.length; ++t)
+				if (strata[t] == h)
+				{
+					++noOfFrames;
+					if (weights[t] > 0.0) ++noOfEvaluated;
+				}
+
+			//skip the strata with no sampling error (or no way to estimate it)
+			if (noOfEvaluated < 2 || noOfEvaluated == noOfFrames) continue;
+
+			//the measure without one frame of the stratum, in turn
+			final double[] values = new double[noOfEvaluated];
+			int noOfValues = 0;
+			double mean = 0.0;
+
+			final double reweight = (double)noOfEvaluated / (double)(noOfEvaluated-1);
+			for (int t=h; t < strata.length; ++t)
+			{
+				if (strata[t] != h || weights[t] == 0.0) continue;
+
+				final double[] w = weights.clone();
+				for (int u=h; u < strata.length; ++u)
+					if (strata[u] == h) w[u] *= reweight;
+				w[t] = 0.0;
+
+				final double value = calculateVideo(data, w);
+				if (Double.isNaN(value)) continue;
+
+				values[noOfValues++] = value;
+				mean += value;
+			}
+			if (noOfValues < 2) continue;
+			mean /= (double)noOfValues;
+
+			double sum2 = 0.0;
+			for (int j=0; j < noOfValues; ++j)
+				sum2 += (values[j] - mean) * (values[j] - mean);
+
+			var += (1.0 - (double)noOfEvaluated/(double)noOfFrames)
+			     * (double)(noOfValues-1) / (double)noOfValues * sum2;
+		}
+
+		return (Math.sqrt(var));
+	}
+
+	///returns the standard error \e se formatted for the reports, or nothing if all data was evaluated
+	protected String reportStdErr(final double se)
+	{
+		return ( cache.samplingFraction < 1.0 ? " (std. error: "+se+")" : "" );
+	}
 }
@@ -17,9 +17,11 @@ import java.io.IOException;
 import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import de.mpicbg.ulman.workers.TrackDataCache.Track;
-import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
+import de.mpicbg.ulman.workers.TrackDataCache.MatchRuns;
 import de.mpicbg.ulman.workers.TrackDataCache.Fork;
 
 public class BCi
@@ -53,8 +55,8 @@ public class BCi
 
 	public void setI(final int i)
 	{
-		if (i < 0 || i > 5)
-			throw new IllegalArgumentException("BC(i) parameter 'i' must be (inclusive) between 0 and 5!");
+		if (i < 0)
+			throw new IllegalArgumentException("BC(i) parameter 'i' must not be negative!");
 
 		desiredI = i;
 	}
@@ -64,76 +66,146 @@ public class BCi
 
 
 	/**
-	 * Check if there is a GT branching event (in gt_forks) that can be considered
-	 * matching the given input branching event (res_fork) with given temporal
-	 * window maxI (in units of number of frame, number of time points).
+	 * Determines the minimal temporal window (in units of number of frame,
+	 * number of time points) with which the given GT and RES branching events
+	 * can be considered matching, or returns -1 if they cannot match with any
+	 * window. The events match with the window \e maxI iff the returned value
+	 * is between 0 and \e maxI.
 	 */
-	private boolean CorrectFork(final int maxI,
-		//examined res branching event
-		final Fork res_fork,
-		//all GT branching events with "was recovered already" flag
-		final Vector<Fork> gt_forks, final boolean[] gt_correct,
+	private int MinimalTolerance(final Fork gt_fork, final Fork res_fork,
 		final Map<Integer,Track> gt_tracks,
 		final Map<Integer,Track> res_tracks,
-		final Vector<TemporalLevel> levels)
+		final MatchRuns runs)
 	{
-		if (gt_forks.size() != gt_correct.length)
-			throw new IllegalArgumentException(
-				"Arrays of both GT forks and their flags must be of the same length!");
-
-		//scan over all GT forks and find one (for detailed examination) candidate
-		//that has not been "recovered" already and has the same number of children
-		//as the input/testing RES fork
-		for (int i=0; i < gt_correct.length; ++i)
+		if (gt_fork.m_child_ids.length != res_fork.m_child_ids.length) return (-1);
+
+		//check if parent nodes overlap at the latest time in which both parents existed
+		int GTtime = gt_tracks.get( gt_fork.m_parent_id).m_end;
+		int Rtime = res_tracks.get(res_fork.m_parent_id).m_end;
+		int consideredTime = Math.min(GTtime, Rtime); //the latest common time point
+
+		//the spatial overlap...
+		if (!runs.isMatched(gt_fork.m_parent_id, res_fork.m_parent_id, consideredTime))
+			return (-1);
+
+		//...and the temporal distance
+		int tolerance = Math.abs(GTtime - Rtime);
+
+		//now, do the same test for all kids
+		//(iterate over every GT and ideally always find some RES -- since
+		//the number of kids is the same and we test for spatial uniqueness,
+		//this (one-way test) suffices to declare GTkids = RESkids, or the opposite)
+		//
+		//over all GT kids
+		for (int k=0; k < gt_fork.m_child_ids.length; ++k)
 		{
-			//shortcut to the examined GT fork
-			final Fork gt_fork = gt_forks.get(i);
-			if (!gt_correct[i] && gt_fork.m_child_ids.length == res_fork.m_child_ids.length)
+			GTtime = gt_tracks.get(gt_fork.m_child_ids[k]).m_begin;
+
+			//over all RES kids, the closest (in time) of the spatially overlapping ones
+			int kidTolerance = -1;
+			for (int l=0; l < res_fork.m_child_ids.length; ++l)
+			{
+				Rtime = res_tracks.get(res_fork.m_child_ids[l]).m_begin;
+				consideredTime = Math.max(GTtime, Rtime); //the earliest common time point
+
+				if (runs.isMatched(gt_fork.m_child_ids[k], res_fork.m_child_ids[l], consideredTime)
+				    && (kidTolerance == -1 || Math.abs(GTtime - Rtime) < kidTolerance))
+					kidTolerance = Math.abs(GTtime - Rtime);
+			}
+
+			//no RES kid for this GT kid?
+			if (kidTolerance == -1) return (-1);
+			tolerance = Math.max(tolerance, kidTolerance);
+		}
+
+		return (tolerance);
+	}
+
+	/**
+	 * For every RES branching event (in the order of \e res_forks), lists the GT
+	 * branching events it can match (in the order of \e gt_forks) together with
+	 * the minimal temporal window for that, that is, pairs of [GT fork index,
+	 * its MinimalTolerance()] are stored one after another.
+	 *
+	 * The parents must match 1:1 for the events to match, the candidate GT events
+	 * are therefore only those whose parent is a 1:1 partner of the RES parent.
+	 */
+	private int[][] FindCandidates(final Vector<Fork> gt_forks, final Vector<Fork> res_forks,
+		final Map<Integer,Track> gt_tracks,
+		final Map<Integer,Track> res_tracks)
+	{
+		//the 1:1 matches of the tracks, see TrackDataCache.UniqueMatch()
+		final MatchRuns runs = cache.getMatchRuns();
+
+		//GT forks indexed by their parent tracks
+		final HashMap<Integer,Integer> gt_forkOfParent = new HashMap<>();
+		for (int i=0; i < gt_forks.size(); ++i)
+			gt_forkOfParent.put(gt_forks.get(i).m_parent_id, i);
+
+		final int[][] candidates = new int[res_forks.size()][];
+		IntStream.range(0, res_forks.size()).parallel().forEach( r -> {
+			final Fork res_fork = res_forks.get(r);
+
+			//candidate GT forks, ordered
+			final int[] forks = Arrays.stream(runs.getPartners(res_fork.m_parent_id))
+				.filter(id -> gt_forkOfParent.containsKey(id))
+				.map(id -> gt_forkOfParent.get(id)).sorted().toArray();
+
+			final int[] pairs = new int[2*forks.length];
+			int cnt = 0;
+			for (int i : forks)
 			{
-				//candidate found...
-
-				//check if parent nodes overlap at the latest time in which both parents existed
-				int GTtime = gt_tracks.get( gt_fork.m_parent_id).m_end;
-				int Rtime = res_tracks.get(res_fork.m_parent_id).m_end;
-				int consideredTime = Math.min(GTtime, Rtime); //the latest common time point
-
-				//check the overlap (temporal distance and spatial overlap)
-				boolean match = ( Math.abs(GTtime - Rtime) <= maxI  &&  cache.UniqueMatch(
-					gt_fork.m_parent_id, res_fork.m_parent_id, levels.get(consideredTime)) );
-
-				//now, do the same test for all kids
-				//(iterate over every GT and ideally always find some RES -- since
-				//the number of kids is the same and we test for spatial uniqueness,
-				//this (one-way test) suffices to declare GTkids = RESkids, or the opposite)
-				//
-				//over all GT kids
-				for (int k=0; k < gt_fork.m_child_ids.length && match; ++k)
+				final int tolerance = MinimalTolerance(gt_forks.get(i), res_fork, gt_tracks, res_tracks, runs);
+				if (tolerance > -1)
 				{
-					GTtime = gt_tracks.get(gt_fork.m_child_ids[k]).m_begin;
-
-					//over all RES kids, until a match is found
-					match = false;
-					for (int l=0; l < res_fork.m_child_ids.length && !match; ++l)
-					{
-						Rtime = res_tracks.get(res_fork.m_child_ids[l]).m_begin;
-						consideredTime = Math.max(GTtime, Rtime); //the earliest common time point
-
-						//check the overlap (temporal distance and spatial overlap)
-						match = ( Math.abs(GTtime - Rtime) <= maxI  &&  cache.UniqueMatch(
-							gt_fork.m_child_ids[k], res_fork.m_child_ids[l], levels.get(consideredTime)) );
-					}
+					pairs[cnt++] = i;
+					pairs[cnt++] = tolerance;
 				}
+			}
+			candidates[r] = Arrays.copyOf(pairs, cnt);
+		} );
+
+		return (candidates);
+	}
+
+	/**
+	 * Matches the RES branching events, one by one in their order, each to the first
+	 * (in the order of GT forks) not yet "recovered" GT branching event that it
+	 * matches with the temporal window \e maxI, and returns the number of matches.
+	 */
+	private int NumCorrectForks(final int maxI, final int[][] candidates, final boolean[] gt_correct)
+	{
+		int numCorrect = 0;
 
-				//has the GT-kids-for-cycle went whole through?
-				if (match)
+		for (int[] pairs : candidates)
+			for (int p=0; p < pairs.length; p += 2)
+				if (!gt_correct[pairs[p]] && pairs[p+1] <= maxI)
 				{
-					gt_correct[i] = true;
-					return true;
+					gt_correct[pairs[p]] = true;
+					++numCorrect;
+					break;
 				}
-			}
-		}
 
-		return false;
+		return (numCorrect);
+	}
+
+
+	/**
+	 * Returns flags of the correctly detected GT branching events (in the order
+	 * of \e _cache.gt_forks) for the given temporal window \e maxI.
+	 * The \e cache must be given as this function may be called from outside
+	 * of this.calculate().
+	 */
+	public boolean[] FindCorrectForks(final int maxI, final TrackDataCache _cache)
+	{
+		cache = _cache;
+		final boolean[] gt_correct = new boolean[cache.gt_forks.size()];
+
+		NumCorrectForks(maxI,
+			FindCandidates(cache.gt_forks, cache.res_forks, cache.gt_tracks, cache.res_tracks),
+			gt_correct);
+
+		return (gt_correct);
 	}
 
 
@@ -184,7 +256,6 @@ public class BCi
 		//shadows of the/short-cuts to the cache data
 		final HashMap<Integer,Track> gt_tracks  = cache.gt_tracks;
 		final HashMap<Integer,Track> res_tracks = cache.res_tracks;
-		final Vector<TemporalLevel> levels = cache.levels;
 
 		final Vector<Fork> gt_forks  = cache.gt_forks;
 		final Vector<Fork> res_forks = cache.res_forks;
@@ -196,19 +267,20 @@ public class BCi
 		log.info("Number of divisions in reference (ground truth) tracks: "+noGT);
 		log.info("Number of divisions in computed (result) tracks       : "+noRES);
 
+		//report for interval for temporal window sizes (the 'i' parameter of BCi),
+		//at least up to 5 (as in the paper)
+		final int lastI = Math.max(5, desiredI);
+
 		//store F-scores explicitly to be able to report them separately afterwards
-		final double[] bcis = new double[6];
+		final double[] bcis = new double[lastI+1];
 
-		//report for interval for temporal window sizes (the 'i' parameter of BCi)
-		for (int maxI = 0; maxI <= 5; ++maxI)
-		{
-			final boolean[] gt_correct = new boolean[noGT];
-			int numCorrect = 0;
+		//the possible matches, with their minimal windows, are found only once
+		final int[][] candidates = FindCandidates(gt_forks, res_forks, gt_tracks, res_tracks);
 
+		for (int maxI = 0; maxI <= lastI; ++maxI)
+		{
 			//scan all result branching events for a match
-			for (Fork res_fork : res_forks)
-				if (CorrectFork(maxI, res_fork, gt_forks, gt_correct, gt_tracks, res_tracks, levels))
-					++numCorrect;
+			final int numCorrect = NumCorrectForks(maxI, candidates, new boolean[noGT]);
 
 			log.info("Number of correctly detected divisions for i="+maxI+"        : "+numCorrect);
 
@@ -224,7 +296,7 @@ public class BCi
 
 		//report the F-scores now
 		if (noGT > 0)
-			for (int maxI = 0; maxI <= 5; ++maxI) log.info("BC("+maxI+"): "+bcis[maxI]);
+			for (int maxI = 0; maxI <= lastI; ++maxI) log.info("BC("+maxI+"): "+bcis[maxI]);
 		else
 			log.info("BC(i): Couldn't calculate F-score because there are no GT tracks.");
 
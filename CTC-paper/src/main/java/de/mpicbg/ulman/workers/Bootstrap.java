@@ -0,0 +1,368 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.scijava.log.LogService;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import de.mpicbg.ulman.workers.TrackDataCache.Track;
+import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
+import de.mpicbg.ulman.workers.TrackDataCache.Fork;
+
+/**
+ * Bootstrap confidence intervals of the tracking measures. The measures
+ * are first decomposed into contributions of independent resampling units,
+ * these are time blocks for the TRA and GT lineages (trees of tracks) for
+ * the CT, TF and BC(i). Every resample then draws the units with replacement
+ * and re-assembles the measures from their contributions, that is, without
+ * touching the images and without matching the tracks again. The resamples
+ * are processed in parallel.
+ */
+public class Bootstrap
+{
+	///shortcuts to some Fiji services
+	private final LogService log;
+
+	///a constructor requiring connection to Fiji report/log services
+	public Bootstrap(final LogService _log)
+	{
+		//check that non-null was given for _log!
+		if (_log == null)
+			throw new NullPointerException("No log service supplied.");
+
+		log = _log;
+	}
+
+	///how many resamples to draw
+	public int noOfResamples = 1000;
+
+	///the coverage of the reported intervals
+	public double confidenceLevel = 0.95;
+
+	///the length (in frames) of the time blocks for the TRA resampling
+	public int timeBlockLength = 10;
+
+	///the seed of the resampling, the same seed gives the same intervals
+	public long seed = 42;
+
+	/** Confidence interval representation. */
+	public class ConfidenceInterval
+	{
+		/** Explicit constructor. */
+		ConfidenceInterval(final String measure, final double value, final double[] resamples)
+		{
+			m_measure = measure;
+			m_value = value;
+
+			//sort the valid resamples
+			final double[] valid = Arrays.stream(resamples).filter(v -> !Double.isNaN(v)).toArray();
+			Arrays.sort(valid);
+			m_resamples = valid.length;
+
+			if (valid.length > 0)
+			{
+				final double alpha = (1.0 - confidenceLevel) / 2.0;
+				m_low  = valid[ (int)Math.floor(alpha * (valid.length-1)) ];
+				m_high = valid[ (int)Math.ceil((1.0-alpha) * (valid.length-1)) ];
+			}
+			else
+			{
+				m_low  = Double.NaN;
+				m_high = Double.NaN;
+			}
+		}
+
+		/** Name of the measure. */
+		public final String m_measure;
+		/** The measure value on the original data. */
+		public final double m_value;
+		/** The lower bound of the interval. */
+		public final double m_low;
+		/** The upper bound of the interval. */
+		public final double m_high;
+		/** Number of resamples on which the measure could be calculated. */
+		public final int m_resamples;
+
+		/** Reports the interval into the log. */
+		public void report()
+		{
+			log.info(String.format("%s: %g, %g%% confidence interval: [%g, %g] (from %d resamples)",
+				m_measure, m_value, 100.0*confidenceLevel, m_low, m_high, m_resamples));
+		}
+	}
+
+	///checks the resampling parameters are sane
+	private void checkParams()
+	{
+		if (noOfResamples < 1)
+			throw new IllegalArgumentException("At least one resample must be requested!");
+		if (confidenceLevel <= 0.0 || confidenceLevel >= 1.0)
+			throw new IllegalArgumentException("Confidence level must be between 0 and 1 (exclusive)!");
+		if (timeBlockLength < 1)
+			throw new IllegalArgumentException("Time blocks must be at least one frame long!");
+	}
+
+	//---------------------------------------------------------------------/
+	/**
+	 * Calculates the confidence interval of the TRA by resampling time blocks
+	 * (of this.timeBlockLength frames). The \e tra must have been calculated
+	 * already as it provides the per-frame error contributions, see TRA.getAOGM(t0,t1).
+	 */
+	public ConfidenceInterval ResampleTRA(final TRA tra)
+	{
+		checkParams();
+
+		final int noFrames = tra.getNumberOfFrames();
+		if (noFrames == 0)
+			throw new IllegalArgumentException("TRA has not been calculated yet!");
+
+		//contributions of the time blocks
+		final int noBlocks = (noFrames + timeBlockLength-1) / timeBlockLength;
+		final double[] aogm = new double[noBlocks];
+		final double[] aogm_empty = new double[noBlocks];
+		for (int b = 0; b < noBlocks; ++b)
+		{
+			final int t0 = b*timeBlockLength;
+			final int t1 = Math.min(t0+timeBlockLength, noFrames) -1;
+			aogm[b] = tra.getAOGM(t0,t1);
+			aogm_empty[b] = tra.getAOGMempty(t0,t1);
+		}
+
+		final double[] resamples = new double[noOfResamples];
+		IntStream.range(0, noOfResamples).parallel().forEach( k -> {
+			final SplittableRandom rnd = new SplittableRandom(seed + k);
+
+			double a = 0.0, e = 0.0;
+			for (int n = 0; n < noBlocks; ++n)
+			{
+				final int b = rnd.nextInt(noBlocks);
+				a += aogm[b];
+				e += aogm_empty[b];
+			}
+
+			resamples[k] = e > 0.0 ? 1.0 - Math.min(a,e)/e : Double.NaN;
+		} );
+
+		final ConfidenceInterval ci
+			= new ConfidenceInterval("TRA", tra.getTRA(0,noFrames-1), resamples);
+		ci.report();
+		return (ci);
+	}
+
+	//---------------------------------------------------------------------/
+	///the interval of the CT, available after ResampleBIO()
+	public ConfidenceInterval ctCI = null;
+	///the interval of the TF, available after ResampleBIO()
+	public ConfidenceInterval tfCI = null;
+	///the interval of the BC(i), available after ResampleBIO()
+	public ConfidenceInterval bciCI = null;
+
+	///returns the lineage (root track) ID of the given track
+	private int findRoot(final Map<Integer,Track> tracks, final int id)
+	{
+		int root = id;
+		Track track = tracks.get(root);
+
+		//NB: the steps limit protects against (inconsistent) cyclic parent references
+		int steps = tracks.size();
+		while (track != null && track.m_parent > 0 && tracks.containsKey(track.m_parent) && steps-- > 0)
+		{
+			root = track.m_parent;
+			track = tracks.get(root);
+		}
+
+		return (root);
+	}
+
+	/**
+	 * Calculates the confidence intervals of the CT, TF and BC(\e i) by resampling
+	 * GT lineages, only the measures requested with \e doCT, \e doTF and \e doBCi
+	 * are considered (the intervals of the others are left null).
+	 * RES tracks (and RES branching events) are attributed to the lineage
+	 * of the GT track that they first match 1:1 (in the sense of TrackDataCache.UniqueMatch());
+	 * those that never match are considered in proportion to the size of the resampled GT.
+	 * The \e cache must be valid.
+	 */
+	public void ResampleBIO(final TrackDataCache cache,
+	                        final boolean doCT, final boolean doTF, final boolean doBCi,
+	                        final int i)
+	{
+		checkParams();
+
+		ctCI  = null;
+		tfCI  = null;
+		bciCI = null;
+		if (!doCT && !doTF && !doBCi) return;
+
+		//enumerate lineages
+		final Map<Integer,Integer> gtLineage = new HashMap<>(); //GT track ID -> lineage index
+		final Map<Integer,Integer> rootIdx = new HashMap<>();   //root ID -> lineage index
+		for (Integer id : cache.gt_tracks.keySet())
+		{
+			final int root = findRoot(cache.gt_tracks, id);
+			Integer idx = rootIdx.get(root);
+			if (idx == null)
+			{
+				idx = rootIdx.size();
+				rootIdx.put(root, idx);
+			}
+			gtLineage.put(id, idx);
+		}
+		final int L = rootIdx.size();
+		if (L == 0)
+			throw new IllegalArgumentException("No reference (GT) track was found!");
+
+		//attribute RES tracks to lineages: the first 1:1 match decides
+		final Map<Integer,Integer> resLineage = new HashMap<>();
+		for (TemporalLevel level : cache.levels)
+			for (int j = 0; j < level.m_res_lab.length; ++j)
+			{
+				if (level.m_res_match[j].size() != 1 || resLineage.containsKey(level.m_res_lab[j])) continue;
+
+				//the only GT partner must be matched back to this RES label
+				final int gtIdx = level.m_res_match[j].iterator().next();
+				if (level.m_gt_match[gtIdx] != j) continue;
+
+				final Integer l = gtLineage.get(level.m_gt_lab[gtIdx]);
+				if (l != null) resLineage.put(level.m_res_lab[j], l);
+			}
+
+		//per-lineage contributions:
+		final long[] gtTracks  = new long[L];
+		final long[] resTracks = new long[L];
+		final long[] ctCorrect = new long[L];
+		final double[] tfSum = new double[L];
+		final long[]   tfCnt = new long[L];
+		final long[] gtForks    = new long[L];
+		final long[] resForks   = new long[L];
+		final long[] bciCorrect = new long[L];
+		//RES tracks and forks that were not attributed
+		long resTracksPool = 0, resForksPool = 0;
+
+		for (Integer id : cache.gt_tracks.keySet())
+			++gtTracks[gtLineage.get(id)];
+
+		for (Integer id : cache.res_tracks.keySet())
+		{
+			final Integer l = resLineage.get(id);
+			if (l != null) ++resTracks[l];
+			else ++resTracksPool;
+		}
+
+		//CT
+		if (doCT)
+		{
+			final Set<Integer> ctGTids = new HashSet<>();
+			new CT(log).NumCorrectPaths(cache, ctGTids);
+			for (Integer id : ctGTids)
+				++ctCorrect[gtLineage.get(id)];
+		}
+
+		//TF
+		if (doTF)
+		{
+			final Map<Integer,Float> gt_startingRatio = new HashMap<>();
+			final Map<Integer,Float> gt_followedRatio = new HashMap<>();
+			new TF(log).CalcFRs(cache, gt_startingRatio, gt_followedRatio);
+			for (Integer id : gt_followedRatio.keySet())
+			{
+				final float fR = gt_followedRatio.get(id);
+				if (fR > 0.f)
+				{
+					tfSum[gtLineage.get(id)] += fR;
+					++tfCnt[gtLineage.get(id)];
+				}
+			}
+		}
+
+		//BC(i)
+		if (doBCi)
+		{
+			final boolean[] forkCorrect = new BCi(log).FindCorrectForks(i, cache);
+			for (int f = 0; f < cache.gt_forks.size(); ++f)
+			{
+				final Integer l = gtLineage.get(cache.gt_forks.get(f).m_parent_id);
+				if (l == null) continue;
+				++gtForks[l];
+				if (forkCorrect[f]) ++bciCorrect[l];
+			}
+			for (Fork fork : cache.res_forks)
+			{
+				final Integer l = resLineage.get(fork.m_parent_id);
+				if (l != null) ++resForks[l];
+				else ++resForksPool;
+			}
+		}
+
+		//totals on the original data
+		final long G  = Arrays.stream(gtTracks).sum();
+		final long GF = Arrays.stream(gtForks).sum();
+		final long poolT = resTracksPool, poolF = resForksPool;
+
+		//resampling
+		final double[] ct  = new double[noOfResamples];
+		final double[] tf  = new double[noOfResamples];
+		final double[] bci = new double[noOfResamples];
+		IntStream.range(0, noOfResamples).parallel().forEach( k -> {
+			final SplittableRandom rnd = new SplittableRandom(seed + k);
+
+			long g = 0, r = 0, c = 0, tc = 0, gf = 0, rf = 0, bc = 0;
+			double ts = 0.0;
+			for (int n = 0; n < L; ++n)
+			{
+				final int l = rnd.nextInt(L);
+				g  += gtTracks[l];
+				r  += resTracks[l];
+				c  += ctCorrect[l];
+				ts += tfSum[l];
+				tc += tfCnt[l];
+				gf += gtForks[l];
+				rf += resForks[l];
+				bc += bciCorrect[l];
+			}
+
+			//the not attributed RES data, in proportion to the resampled GT
+			final double rAll  = r  + (G  > 0 ? poolT * (double)g  / (double)G  : 0.0);
+			final double rfAll = rf + (GF > 0 ? poolF * (double)gf / (double)GF : 0.0);
+
+			ct[k]  = g > 0 ? 2.0 * c / (rAll + g) : Double.NaN;
+			tf[k]  = tc > 0 ? ts / (double)tc : Double.NaN;
+			bci[k] = gf > 0 ? 2.0 * bc / (rfAll + gf) : Double.NaN;
+		} );
+
+		//the values on the original data
+		final long C  = Arrays.stream(ctCorrect).sum();
+		final long TC = Arrays.stream(tfCnt).sum();
+		final long BC = Arrays.stream(bciCorrect).sum();
+		final double TS = Arrays.stream(tfSum).sum();
+		final long R  = cache.res_tracks.size();
+		final long RF = cache.res_forks.size();
+
+		if (doCT)
+			ctCI  = new ConfidenceInterval("CT", G > 0 ? 2.0 * C / (double)(R + G) : Double.NaN, ct);
+		if (doTF)
+			tfCI  = new ConfidenceInterval("TF", TC > 0 ? TS / (double)TC : Double.NaN, tf);
+		if (doBCi)
+			bciCI = new ConfidenceInterval("BC("+i+")", GF > 0 ? 2.0 * BC / (double)(RF + GF) : Double.NaN, bci);
+
+		log.info("---");
+		log.info("Resampled "+L+" reference lineages "+noOfResamples+" times.");
+		if (ctCI  != null) ctCI.report();
+		if (tfCI  != null) tfCI.report();
+		if (bciCI != null) bciCI.report();
+	}
+}
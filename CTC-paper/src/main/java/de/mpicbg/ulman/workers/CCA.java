@@ -16,6 +16,9 @@ import java.io.IOException;
 
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Arrays;
 
 import de.mpicbg.ulman.workers.TrackDataCache.Track;
 import de.mpicbg.ulman.workers.TrackDataCache.Fork;
@@ -50,6 +53,34 @@ public class CCA
 	private double cca = 0.0;
 
 
+	/**
+	 * Returns lengths/durations of complete cell cycles, that is, of tracks that
+	 * connect two branching events (they start as a daughter in one event and end
+	 * as a mother in another one) -- we see the whole life of such a cell from its
+	 * birth till its division.
+	 */
+	private int[] CellCycleLengths(final Map<Integer,Track> tracks, final Vector<Fork> forks)
+	{
+		//index of tracks that start at some branching event
+		final HashSet<Integer> daughters = new HashSet<>();
+		for (Fork fork : forks)
+			for (int id : fork.m_child_ids) daughters.add(id);
+
+		//tracks that also end at a branching event
+		final int[] lengths = new int[forks.size()];
+		int cnt = 0;
+		for (Fork fork : forks)
+			if (daughters.contains(fork.m_parent_id))
+			{
+				//detected connecting track, its id and its duration/length
+				final Track track = tracks.get(fork.m_parent_id);
+				lengths[cnt++] = track.m_end - track.m_begin +1;
+			}
+
+		return (Arrays.copyOf(lengths, cnt));
+	}
+
+
 	//---------------------------------------------------------------------/
 	/**
 	 * Measure calculation happens in two stages. The first/upper stage does
@@ -108,61 +139,23 @@ public class CCA
 		//
 		//this we do by looking for tracks that connect two branching events
 
+		final int[] gt_lengths  = CellCycleLengths(gt_tracks,  gt_forks);
+		final int[] res_lengths = CellCycleLengths(res_tracks, res_forks);
+
 		//number of detected complete cell cycles
-		int gt_count=0;
-		int res_count=0;
+		final int gt_count  = gt_lengths.length;
+		final int res_count = res_lengths.length;
 
 		//maximum length spotted
 		int maxLength = 0;
+		for (int length : gt_lengths)  if (length > maxLength) maxLength = length;
+		for (int length : res_lengths) if (length > maxLength) maxLength = length;
 
 		//frequency histograms of their lengths
-		HashMap<Integer,Integer> gt_lenHist  = new HashMap<>();
-		HashMap<Integer,Integer> res_lenHist = new HashMap<>();
-
-		//now, scan all GT branching events
-		for (Fork parent : gt_forks) //later/ending point of some track
-		for (Fork child  : gt_forks) //earlier branching (may have many daughters)
-		for (int i=0; i < child.m_child_ids.length; ++i) //earlier/starting point of some track
-		{
-			//here we consider all combinations of starting vs. ending track points,
-			//see if the connection is realized with the same track
-			if (child.m_child_ids[i] == parent.m_parent_id)
-			{
-				//detected connecting track, its id and its duration/length
-				final int id = parent.m_parent_id;
-				final int length = gt_tracks.get(id).m_end - gt_tracks.get(id).m_begin +1;
-
-				//add the length to the histogram
-				Integer count = gt_lenHist.get(length);
-				gt_lenHist.put(length, count == null ? 1 : count+1);
-
-				//updated the max length observed so far
-				if (length > maxLength) maxLength = length;
-
-				//another complete cycle detected...
-				++gt_count;
-			}
-		}
-
-		//the same for RES branching events and tracks
-		for (Fork parent : res_forks)
-		for (Fork child  : res_forks)
-		for (int i=0; i < child.m_child_ids.length; ++i)
-		{
-			if (child.m_child_ids[i] == parent.m_parent_id)
-			{
-				//detected connecting track, its id and its duration/length
-				final int id = parent.m_parent_id;
-				final int length = res_tracks.get(id).m_end - res_tracks.get(id).m_begin +1;
-
-				Integer count = res_lenHist.get(length);
-				res_lenHist.put(length, count == null ? 1 : count+1);
-
-				if (length > maxLength) maxLength = length;
-
-				++res_count;
-			}
-		}
+		final long[] gt_lenHist  = new long[maxLength+1];
+		final long[] res_lenHist = new long[maxLength+1];
+		for (int length : gt_lengths)  if (length >= 0) ++gt_lenHist[length];
+		for (int length : res_lengths) if (length >= 0) ++res_lenHist[length];
 
 		//do some overview reports on the situation in the data
 		log.info("---");
@@ -178,11 +171,8 @@ public class CCA
 
 			//accumulate sums for both histograms, respectively, so that
 			//we can move into "domain of probabilities" from "frequency counts"
-			long gt_sum = 0;
-			for (Integer count : gt_lenHist.values()) gt_sum += count;
-
-			long res_sum = 0;
-			for (Integer count : res_lenHist.values()) res_sum += count;
+			final long gt_sum  = gt_count;
+			final long res_sum = res_count;
 
 			//with (for example) gt_lenHist[i] and gt_sum we can construct
 			//gt_CDF[i] = ( SUM_j=0..i gt_lenHist[j] ) / gt_sum
@@ -196,11 +186,8 @@ public class CCA
 			for (int len = 0; len <= maxLength; ++len)
 			{
 				//calculate gt_CDF[len]
-				Integer c = gt_lenHist.get(len);
-				gt_cumm += c == null ? 0 : c;
-
-				c = res_lenHist.get(len);
-				res_cumm += c == null ? 0 : c;
+				gt_cumm  += gt_lenHist[len];
+				res_cumm += res_lenHist[len];
 
 				//see the difference between the two CDFs[len]
 				double diff  = (double)gt_cumm  / (double)gt_sum;
@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class CHA extends AbstractDSmeasure
 {
@@ -30,21 +28,20 @@ public class CHA extends AbstractDSmeasure
 	 * Returns -1 if no object has been found at all.
 	 */
 	private double avgFGfromTimeSpan(final int from, final int to,
-		final Vector<HashMap<Integer,Double>> avgFG)
+		final FrameObjects[] objectsFG)
 	{
-		if (from < 0 || from >= avgFG.size()) return (-1.0);
-		if ( to  < 0 ||  to  >= avgFG.size()) return (-1.0);
+		if (from < 0 || from >= objectsFG.length) return (-1.0);
+		if ( to  < 0 ||  to  >= objectsFG.length) return (-1.0);
 
 		double avg = 0.0;
 		int cnt = 0;
 
 		for (int time = from; time <= to; ++time)
 		{
-			for (Double fg : avgFG.get(time).values())
-			{
-				avg += fg;
-				++cnt;
-			}
+			final double[] avgFG = objectsFG[time].m_avg;
+			for (int i=0; i < avgFG.length; ++i)
+				avg += avgFG[i];
+			cnt += avgFG.length;
 		}
 
 		return (cnt > 0 ? avg/(double)cnt : -1.0);
@@ -52,7 +49,13 @@ public class CHA extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
-	/// This is the main CHA calculator.
+	/**
+	 * This is the main CHA calculator.
+	 *
+	 * The CHA is calculated only from the first and last two frames, which are
+	 * always evaluated (see ImgQualityDataCache.SampleFrames()), and only from
+	 * the exact per-object data, so it has no sampling error.
+	 */
 	@Override
 	protected double calculateBottomStage()
 	{
@@ -66,29 +69,29 @@ public class CHA extends AbstractDSmeasure
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
 			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
+			final FrameObjects[] objectsFG = data.objectsFG;
 
 			double a = -1.0, b = -1.0;
 			double l_cha = 0.0;
 
-			if (avgFG.size() < 2)
+			if (objectsFG.length < 2)
 			{
 				throw new IllegalArgumentException("Cannot calculate CHA from less than two images.");
 			}
 			else
-			if (avgFG.size() == 2)
+			if (objectsFG.length == 2)
 			{
-				a = avgFGfromTimeSpan(0,0,avgFG);
-				b = avgFGfromTimeSpan(1,1,avgFG);
+				a = avgFGfromTimeSpan(0,0,objectsFG);
+				b = avgFGfromTimeSpan(1,1,objectsFG);
 				l_cha = b - a;
 			}
 			else
 			{
 				//use largest possible (possibly overlapping, though) window
 				//windows size = 2 time points
-				final int last = avgFG.size() - 1;
-				a = avgFGfromTimeSpan(0,1,avgFG);
-				b = avgFGfromTimeSpan(last-1,last,avgFG);
+				final int last = objectsFG.length - 1;
+				a = avgFGfromTimeSpan(0,1,objectsFG);
+				b = avgFGfromTimeSpan(last-1,last,objectsFG);
 				l_cha = b - a;
 				l_cha /= (double)last;
 			}
@@ -97,19 +100,21 @@ public class CHA extends AbstractDSmeasure
 				throw new IllegalArgumentException("CHA for video "+data.video
 					+": Current implementation cannot deal with images with no FG labels.");
 
-			log.info("CHA_debug: avg. int. "+a+" -> "+b+", over "+avgFG.size()+" frames");
-			log.info("CHA for video "+data.video+": "+l_cha);
+			log.info("CHA_debug: avg. int. "+a+" -> "+b+", over "+objectsFG.length+" frames");
+			log.info("CHA for video "+data.video+": "+l_cha+reportStdErr(0.0));
 
 			cha += l_cha;
 			++videoCnt;
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			cha /= (double)videoCnt;
 			cha = Math.abs(cha);
-			log.info("CHA for dataset: "+cha);
+			stdErr = 0.0;
+			log.info("CHA for dataset: "+cha+reportStdErr(stdErr));
 		}
 		else
 			log.info("CHA for dataset: Couldn't calculate average CHA because there are missing labels.");
@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class CR extends AbstractDSmeasure
 {
@@ -24,6 +22,37 @@ public class CR extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
+	/// The average CR of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final double[] avgBG = data.avgBG;
+
+		//go over all FG objects and calc their CRs
+		double noFGs = 0.0;
+		double l_cr = 0.0;
+		//over all time points
+		for (int time=0; time < objectsFG.length; ++time)
+		{
+			//skip this frame if we cannot compute anything on it
+			if (weights[time] == 0.0 || avgBG[time] == 0.0) continue;
+
+			//over all objects, in fact use their avg intensities
+			double f_cr = 0.0;
+			final double[] avgFG = objectsFG[time].m_avg;
+			for (int i=0; i < avgFG.length; ++i)
+				f_cr += avgFG[i] / avgBG[time];
+
+			l_cr  += weights[time] * f_cr;
+			noFGs += weights[time] * avgFG.length;
+		}
+
+		//finish the calculation of the average
+		return (noFGs > 0 ? l_cr / noFGs : Double.NaN);
+	}
+
 	/// This is the main CR calculator.
 	@Override
 	protected double calculateBottomStage()
@@ -31,40 +60,21 @@ public class CR extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the CR bottom part...");
 		double cr = 0.0;
+		double crVar = 0.0;
 		long videoCnt = 0; //how many videos were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. CRs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
-			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
-			final Vector<Double> avgBG = data.avgBG;
-
-			//go over all FG objects and calc their CRs
-			long noFGs = 0;
-			double l_cr = 0.0;
-			//over all time points
-			for (int time=0; time < avgFG.size(); ++time)
-			{
-				//skip this frame if we cannot compute anything on it
-				if (avgBG.get(time) == 0.0) continue;
-
-				//over all objects, in fact use their avg intensities
-				for (Double fg : avgFG.get(time).values())
-				{
-					l_cr += fg / avgBG.get(time);
-					++noFGs;
-				}
-			}
-
-			//finish the calculation of the average
-			if (noFGs > 0)
+			final double l_cr = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_cr))
 			{
-				l_cr /= (double)noFGs;
-				log.info("CR for video "+data.video+": "+l_cr);
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("CR for video "+data.video+": "+l_cr+reportStdErr(l_stdErr));
 
 				cr += l_cr;
+				crVar += l_stdErr * l_stdErr;
 				++videoCnt;
 			}
 			else
@@ -72,10 +82,12 @@ public class CR extends AbstractDSmeasure
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			cr /= (double)videoCnt;
-			log.info("CR for dataset: "+cr);
+			stdErr = Math.sqrt(crVar) / (double)videoCnt;
+			log.info("CR for dataset: "+cr+reportStdErr(stdErr));
 		}
 		else
 			log.info("CR for dataset: Couldn't calculate average CR because there are missing labels.");
@@ -0,0 +1,123 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.scijava.log.LogService;
+
+import io.scif.img.ImgIOException;
+import java.io.IOException;
+
+import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
+
+/**
+ * Robust variant of the CR: the averages are replaced with the medians,
+ * so that outliers (e.g., bright debris in the background annotation)
+ * have little influence on the result.
+ */
+public class CRrobust extends AbstractDSmeasure
+{
+	///a constructor requiring connection to Fiji report/log services
+	public CRrobust(final LogService _log)
+	{ super(_log); }
+
+
+	//---------------------------------------------------------------------/
+	/// Makes sure the robust stats are computed should a new cache be computed.
+	@Override
+	protected void calculateUpperStage(final String imgPath, final double[] resolution,
+	                                   final String annPath,
+	                                   final ImgQualityDataCache _cache)
+	throws IOException, ImgIOException
+	{
+		if (_cache != null && _cache.validFor(imgPath,annPath) && _cache.doRobustPrecalculation)
+			super.calculateUpperStage(imgPath, resolution, annPath, _cache);
+		else
+		{
+			//a cache with the same flags as _cache, and with the histograms
+			final ImgQualityDataCache flags = new ImgQualityDataCache(log, _cache);
+			flags.doRobustPrecalculation = true;
+			super.calculateUpperStage(imgPath, resolution, annPath, flags);
+		}
+	}
+
+	/// The average robust CR of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final double[] medBG = data.medBG;
+
+		//go over all FG objects and calc their CRs
+		double noFGs = 0.0;
+		double l_cr = 0.0;
+		//over all time points
+		for (int time=0; time < objectsFG.length; ++time)
+		{
+			//skip this frame if we cannot compute anything on it
+			if (weights[time] == 0.0 || medBG[time] == 0.0) continue;
+
+			//over all objects, in fact use their median intensities
+			double f_cr = 0.0;
+			final double[] medFG = objectsFG[time].m_median;
+			for (int i=0; i < medFG.length; ++i)
+				f_cr += medFG[i] / medBG[time];
+
+			l_cr  += weights[time] * f_cr;
+			noFGs += weights[time] * medFG.length;
+		}
+
+		//finish the calculation of the average
+		return (noFGs > 0 ? l_cr / noFGs : Double.NaN);
+	}
+
+	/// This is the main robust CR calculator.
+	@Override
+	protected double calculateBottomStage()
+	{
+		//do the bottom stage
+		//DEBUG//log.info("Computing the robust CR bottom part...");
+		double cr = 0.0;
+		double crVar = 0.0;
+		long videoCnt = 0; //how many videos were processed
+
+		//go over all encountered videos and calc
+		//their respective avg. robust CRs and average them
+		for (videoDataContainer data : cache.cachedVideoData)
+		{
+			final double l_cr = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_cr))
+			{
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("robust CR for video "+data.video+": "+l_cr+reportStdErr(l_stdErr));
+
+				cr += l_cr;
+				crVar += l_stdErr * l_stdErr;
+				++videoCnt;
+			}
+			else
+				log.info("robust CR for video "+data.video+": Couldn't calculate average robust CR because there are missing labels.");
+		}
+
+		//summarize over all datasets:
+		stdErr = Double.NaN;
+		if (videoCnt > 0)
+		{
+			cr /= (double)videoCnt;
+			stdErr = Math.sqrt(crVar) / (double)videoCnt;
+			log.info("robust CR for dataset: "+cr+reportStdErr(stdErr));
+		}
+		else
+			log.info("robust CR for dataset: Couldn't calculate average robust CR because there are missing labels.");
+
+		return (cr);
+	}
+}
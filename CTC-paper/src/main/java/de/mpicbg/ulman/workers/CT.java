@@ -17,9 +17,11 @@ import java.io.IOException;
 import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
 
 import de.mpicbg.ulman.workers.TrackDataCache.Track;
 import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
+import de.mpicbg.ulman.workers.TrackDataCache.MatchRuns;
 
 public class CT
 {
@@ -56,59 +58,52 @@ public class CT
 		final Map<Integer,Track> gt_tracks,
 		final Map<Integer,Track> res_tracks)
 	{
-		//return value
-		int num_correct = 0;
-
-		//serialization of GT tracks to obtain:
-		//indicator if given GT track has been correctly reconstructed ...
-		final boolean[] gt_correct = new boolean[gt_tracks.size()];
-		//... with its corresponding track ID
-		final int[] gt_ids = new int[gt_tracks.size()];
-
-		int i = 0;
-		for (Integer id : gt_tracks.keySet())
-		{
-			//NB: enumerates GT IDs in some undefined order
-			//NB: (and we need to scan gt_tracks repeatedly, always in the same order)
-			gt_correct[i] = false;
-			gt_ids[i] = id;
-			++i;
-		}
+		return NumCorrectPaths(levels, gt_tracks, res_tracks, null);
+	}
 
-		//helper variable
-		boolean overlap;
+	/**
+	 * Calculate the number of completely correctly reconstructed tracks,
+	 * and note IDs of these GT tracks into the \e correctGTids (if it is not null).
+	 * The \e cache must be given (in contrast to the other variant of this function)
+	 * as this function may be called from outside of this.calculate().
+	 */
+	public int NumCorrectPaths(final TrackDataCache _cache, final Set<Integer> correctGTids)
+	{
+		cache = _cache;
+		return NumCorrectPaths(cache.levels, cache.gt_tracks, cache.res_tracks, correctGTids);
+	}
 
-		//now, over all RES tracks and look for appropriate, not yet reconstructed GT track
-		for (Track res_track : res_tracks.values())
-		{
-			//scan over all GT tracks ...
-			for (i = 0; i < gt_correct.length; ++i)
+	private int NumCorrectPaths(final Vector<TemporalLevel> levels,
+		final Map<Integer,Track> gt_tracks,
+		final Map<Integer,Track> res_tracks,
+		final Set<Integer> correctGTids)
+	{
+		//a RES track can reconstruct only such GT track that it matches 1:1
+		//in its first time point, so there is at most one candidate GT track
+		//for every RES track; and since the 1:1 matching is exclusive, no two
+		//RES tracks can compete for the same GT track -- the RES tracks can be
+		//therefore examined independently, and thus in parallel
+		final MatchRuns runs = cache.getMatchRuns();
+		final int[] reconstructedGTids = res_tracks.values().parallelStream().mapToInt( res_track -> {
+			//over all GT tracks that this RES track matches at least once
+			for (int gt_id : runs.getPartners(res_track.m_id))
 			{
-				//... to find not reconstructed GT track that starts and ends at the same time point
-				if (!gt_correct[i] && gt_tracks.get(gt_ids[i]).m_begin == res_track.m_begin
-				   && gt_tracks.get(gt_ids[i]).m_end == res_track.m_end)
-				{
-					//check spatial overlap at all time points of the track
-					overlap = true;
-					for (int t=res_track.m_begin; t <= res_track.m_end && overlap; ++t)
-						if (!cache.UniqueMatch(gt_ids[i], res_track.m_id, levels.get(t)))
-							overlap = false;
-
-					if (overlap == true)
-					{
-						//overlaps okay in the entire length of the GT track,
-						//thus, mark it as reconstructed
-						gt_correct[i] = true;
-						++num_correct;
-						break;
-						//NB: breaks the "over all GT" cycle as this res_track
-						//    cannot reconstruct another GT track
-					}
-				}
+				//the candidate must start and end at the same time point, and
+				//there must be spatial overlap at all time points of the track
+				final Track gt_track = gt_tracks.get(gt_id);
+				if (gt_track != null
+				    && gt_track.m_begin == res_track.m_begin && gt_track.m_end == res_track.m_end
+				    && runs.isMatched(gt_id, res_track.m_id, res_track.m_begin, res_track.m_end))
+					return (gt_id);
 			}
-		}
 
-		return (num_correct);
+			return (-1);
+		} ).filter(id -> id > -1).toArray();
+
+		if (correctGTids != null)
+			for (int id : reconstructedGTids) correctGTids.add(id);
+
+		return (reconstructedGTids.length);
 	}
 
 
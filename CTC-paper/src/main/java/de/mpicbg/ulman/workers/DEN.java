@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class DEN extends AbstractDSmeasure
 {
@@ -31,40 +29,47 @@ public class DEN extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the DEN bottom part...");
 		double den = 0.0;
-		long fgCnt = 0; //how many videos were processed
+		double fgCnt = 0; //how many objects were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. DENs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
 			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Float>> nearDistFG = data.nearDistFG;
+			final FrameObjects[] objectsFG = data.objectsFG;
 
 			//number of objects whose neighbors were not found (within the distance)
-			long noIsolatedFGs = 0;
+			double noIsolatedFGs = 0;
 
 			//go over all FG objects and calc their DENs
-			long noFGs = 0;
+			double noFGs = 0;
 			double l_den = 0.;
 
-			//over all time points
-			for (int time=0; time < nearDistFG.size(); ++time)
+			//over all (evaluated) time points
+			for (int time=0; time < objectsFG.length; ++time)
 			{
-				//over all objects, in fact use their avg intensities
-				for (Float dist : nearDistFG.get(time).values())
+				final double weight = data.frameWeights[time];
+				if (weight == 0.0) continue;
+
+				//skip this frame if the distances were not computed
+				final float[] nearDistFG = objectsFG[time].m_nearDist;
+				if (nearDistFG == null) continue;
+
+				//over all objects, in fact use their distances
+				for (int i=0; i < nearDistFG.length; ++i)
 				{
-					l_den += (double)dist;
-					++noFGs;
-					if (dist == 50.0) ++noIsolatedFGs;
+					l_den += weight * (double)nearDistFG[i];
+					if (nearDistFG[i] == 50.0) noIsolatedFGs += weight;
 				}
+				noFGs += weight * nearDistFG.length;
 			}
 
 			//finish the calculation of the average
 			if (noFGs > 0)
 			{
-				log.info("DEN for video "+data.video+": There is "+noIsolatedFGs+" ( "+100.0*noIsolatedFGs/(double)noFGs
+				log.info("DEN for video "+data.video+": There is "+Math.round(noIsolatedFGs)+" ( "+100.0*noIsolatedFGs/noFGs
 					+" %) cells with no neighbor in the range of 50 voxels.");
-				log.info("DEN for video "+data.video+": "+l_den/(double)noFGs);
+				log.info("DEN for video "+data.video+": "+l_den/noFGs);
 
 				den += l_den;
 				fgCnt += noFGs;
@@ -76,7 +81,7 @@ public class DEN extends AbstractDSmeasure
 		//summarize over all datasets:
 		if (fgCnt > 0)
 		{
-			den /= (double)fgCnt;
+			den /= fgCnt;
 			log.info("DEN for dataset: "+den);
 		}
 		else
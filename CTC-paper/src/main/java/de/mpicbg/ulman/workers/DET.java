@@ -0,0 +1,197 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.scijava.log.LogService;
+
+import io.scif.img.ImgIOException;
+import java.io.IOException;
+
+import java.util.Vector;
+import java.util.List;
+
+import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
+
+public class DET
+{
+	///shortcuts to some Fiji services
+	private final LogService log;
+
+	///a constructor requiring connection to Fiji report/log services
+	public DET(final LogService _log)
+	{
+		//check that non-null was given for _log!
+		if (_log == null)
+			throw new NullPointerException("No log service supplied.");
+
+		log = _log;
+
+		vertexErrors = new TRA(log);
+		penalty = vertexErrors.penalty;
+		logNS = vertexErrors.logNS;
+		logFN = vertexErrors.logFN;
+		logFP = vertexErrors.logFP;
+	}
+
+	///reference on cache that we used recently
+	private TrackDataCache cache = null;
+
+	///to provide the cache to others/to share it with others
+	public TrackDataCache getCache()
+	{ return (cache); }
+
+	/**
+	 * Calculation option: do report list of discrepancies between the reference
+	 * and computed detection result.
+	 * This is helpful for algorithm developers as it shows what, where and when
+	 * was incorrect in their results.
+	 */
+	public boolean doLogReports = false;
+
+	/**
+	 * This flag, when set to true, changes the default calculation mode, that is,
+	 * the AOGM-D will be calculated instead of the DET (which is essentially
+	 * a normalized AOGM-D).
+	 */
+	public boolean doAOGM = false;
+
+	// ----------- the DET essentially starts here -----------
+	//auxiliary data:
+
+	///the TRA whose vertex portion of the AOGM is exactly the AOGM-D
+	private final TRA vertexErrors;
+
+	/**
+	 * The weights used for AOGM-D/DET, only the vertex penalties (NS, FN, FP)
+	 * are used. The default (CellTrackingChallenge) weights are those of the TRA,
+	 * assign here TRA.penalty to have both measures evaluated with the same weights.
+	 */
+	public TRA.PenaltyConfig penalty;
+
+	///the to-be-calculated DET value (based on the AOGM-D measure)
+	private double aogm = 0.0;
+
+	///logs to note discrepancies between GT and RES detections (shared with this.vertexErrors)
+	public final List<String> logNS;
+	public final List<String> logFN;
+	public final List<String> logFP;
+
+	///convenience function to report given log -- one of the above
+	public void reportLog(final List<String> log)
+	{
+		for (String msg : log)
+			this.log.info(msg);
+	}
+
+	//---------------------------------------------------------------------/
+	/**
+	 * Measure calculation happens in two stages. The first/upper stage does
+	 * data pre-fetch and calculations to populate the TrackDataCache.
+	 * TrackDataCache.calculate() actually does this job. The sort of
+	 * calculations is such that the other measures could benefit from
+	 * it and re-use it (instead of loading images again and doing some
+	 * calculations again), and the results are stored in the cache.
+	 * The second/bottom stage is measure-specific. It basically finishes
+	 * the measure calculation procedure, possible using data from the cache.
+	 *
+	 * This function is asked to use, if applicable, such cache data
+	 * as the caller believes the given cache is still valid. The measure
+	 * can only carry on with the bottom stage then (thus being overall faster
+	 * than when computing both stages). In particular, the cache can be
+	 * shared with the TRA as DET considers only the vertex errors of the AOGM.
+	 *
+	 * The class never re-uses its own cache to allow for fresh complete
+	 * re-calculation on the (new) data in the same folders.
+	 *
+	 * This is the main DET calculator.
+	 */
+	public double calculate(final String gtPath, final String resPath,
+	                        final TrackDataCache _cache)
+	throws IOException, ImgIOException
+	{
+		//invalidate own cache
+		cache = null;
+
+		//check we got some hint/cache
+		//and if it fits our input, then use it
+		if (_cache != null && _cache.validFor(gtPath,resPath)) cache = _cache;
+
+		//if no cache is available after all, compute it
+		if (cache == null)
+		{
+			//do the upper stage
+			cache = new TrackDataCache(log);
+			cache.calculate(gtPath,resPath);
+		}
+
+		//do the bottom stage
+		//DEBUG//log.info("Computing the DET bottom part...");
+
+		//shadows of the/short-cuts to the cache data
+		final Vector<TemporalLevel> levels = cache.levels;
+
+		//this is the vertex-only portion of the AOGM, see TRA.calculate()
+		vertexErrors.penalty = penalty;
+		vertexErrors.FindVertexErrors(levels);
+		aogm = penalty.m_ns * (double)vertexErrors.getNoOfErrors(TRA.ERR_NS)
+		     + penalty.m_fn * (double)vertexErrors.getNoOfErrors(TRA.ERR_FN)
+		     + penalty.m_fp * (double)vertexErrors.getNoOfErrors(TRA.ERR_FP);
+
+		//how many GT vertices are there to be detected
+		long noGTvertices = 0;
+		for (TemporalLevel level : levels)
+			noGTvertices += level.m_gt_lab.length;
+
+		//should the log reports be printed?
+		if (doLogReports)
+		{
+			reportLog(logNS);
+			reportLog(logFN);
+			reportLog(logFP);
+		}
+
+		if (doAOGM == false)
+		{
+			//calculate the AOGM-D when no result is supplied
+			// (approx. an energy required to CREATE detection result from the scratch)
+			final double aogm_empty = penalty.m_fn * (double)noGTvertices;
+
+			log.info("---");
+			log.info("AOGM-D to curate  the  given  result: "+aogm);
+			log.info("AOGM-D to build a new correct result: "+aogm_empty);
+
+			if (aogm_empty == 0.0)
+				throw new IllegalArgumentException("No reference (GT) vertex was found!");
+
+			//if correcting is more expensive than creating, we assume user deletes
+			//the whole result and starts from the scratch, hence aogm = aogm_empty
+			aogm = aogm > aogm_empty ? aogm_empty : aogm;
+
+			//normalization:
+			aogm = 1.0 - aogm/aogm_empty;
+
+			log.info("normalized AOGM-D = DET: "+aogm);
+		}
+		else
+		{
+			//just report the AOGM-D as it is...
+			log.info("---");
+			log.info("AOGM-D: "+aogm);
+		}
+		return (aogm);
+	}
+
+	/// This is the wrapper DET calculator, assuring complete re-calculation.
+	public double calculate(final String gtPath, final String resPath)
+	throws IOException, ImgIOException
+	{
+		return this.calculate(gtPath,resPath,null);
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+
+import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameOverlaps;
+
+/**
+ * Persistent (on-disk) store of the per-frame data of the ImgQualityDataCache,
+ * which allows to skip the processing of already seen frames in later runs.
+ *
+ * Every frame (BG stats and the table of per-object data) and every pair of
+ * consecutive frames (the overlaps) is stored in its own compact binary file
+ * in the store folder. The file name is a fingerprint (a hash) of the input
+ * image files (their paths, sizes and times of last modification) and of other
+ * parameters that influence the stored values (e.g., resolution), so that
+ * data of a changed frame is never found in the store.
+ */
+public class FrameStatsStore
+{
+	///the folder with the stored files
+	private final File folder;
+
+	///marks the beginning of files with frame data
+	private static final int FRAME_MAGIC = 0x43544346;    //"CTCF"
+	///marks the beginning of files with overlaps data
+	private static final int OVERLAPS_MAGIC = 0x4354434F; //"CTCO"
+	///version of the format of the files with frame data
+	private static final int FRAME_VERSION = 2;
+	///version of the format of the files with overlaps data
+	private static final int OVERLAPS_VERSION = 1;
+
+	/**
+	 * Opens (and possibly creates) the store in the \e _folder. Several stores
+	 * may be opened over the same folder at the same time (e.g., from parallel
+	 * tasks), the folder is then created only once.
+	 */
+	public FrameStatsStore(final String _folder)
+	throws IOException
+	{
+		folder = new File(_folder);
+		try {
+			Files.createDirectories(folder.toPath());
+		}
+		catch (IOException e) {
+			throw new IOException("Cannot create the statistics cache folder: "+_folder);
+		}
+	}
+
+
+	/**
+	 * Returns a fingerprint of the given \e files (of their paths, sizes and times
+	 * of last modification) and of the given \e params (in their string form).
+	 */
+	public static String Fingerprint(final String[] files, final Object... params)
+	throws IOException
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (String f : files)
+		{
+			final File file = new File(f);
+			if (!file.isFile())
+				throw new IOException("Cannot fingerprint non-existing file: "+f);
+
+			sb.append(file.getAbsolutePath()).append('|')
+			  .append(file.length()).append('|')
+			  .append(file.lastModified()).append('\n');
+		}
+		for (Object p : params)
+			sb.append(p).append('\n');
+
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-1")
+				.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+			final StringBuilder hex = new StringBuilder();
+			for (byte b : hash) hex.append(String.format("%02x",b));
+			return (hex.toString());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cannot fingerprint files: "+e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Stores the data of the frame at \e time of the video \e data
+	 * (BG stats incl. the robust ones, dimensionality and per-object data)
+	 * under the \e key.
+	 */
+	public void SaveFrame(final String key, final videoDataContainer data, final int time)
+	throws IOException
+	{
+		final FrameObjects o = data.objectsFG[time];
+
+		final File tmp = File.createTempFile("frame", ".tmp", folder);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+			       new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+				out.writeInt(FRAME_MAGIC);
+				out.writeInt(FRAME_VERSION);
+				out.writeInt(data.dimensionality);
+				out.writeDouble(data.avgBG[time]);
+				out.writeDouble(data.stdBG[time]);
+				out.writeDouble(data.medBG[time]);
+				out.writeDouble(data.madBG[time]);
+
+				out.writeInt(o.size());
+				out.writeBoolean(o.m_surface != null);
+				out.writeBoolean(o.m_nearDist != null);
+				out.writeBoolean(o.m_median != null);
+				for (int i=0; i < o.size(); ++i)
+				{
+					out.writeInt(o.m_labels[i]);
+					out.writeDouble(o.m_avg[i]);
+					out.writeDouble(o.m_std[i]);
+					out.writeLong(o.m_volume[i]);
+					if (o.m_surface != null)  out.writeDouble(o.m_surface[i]);
+					if (o.m_nearDist != null) out.writeFloat(o.m_nearDist[i]);
+					if (o.m_median != null)   out.writeDouble(o.m_median[i]);
+				}
+			}
+
+			//NB: the file appears complete, or not at all
+			Files.move(tmp.toPath(), new File(folder,key+".frame").toPath(),
+			           StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException | RuntimeException e) {
+			//do not leave the incomplete file behind
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the data stored under the \e key into the frame at \e time of the video
+	 * \e data, and returns true. If there is no such data stored, returns false.
+	 * The per-object data may lack some columns (if they were not computed before).
+	 */
+	public boolean LoadFrame(final String key, final videoDataContainer data, final int time)
+	throws IOException
+	{
+		final File file = new File(folder,key+".frame");
+		if (!file.isFile()) return (false);
+
+		try (DataInputStream in = new DataInputStream(
+		       new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (in.readInt() != FRAME_MAGIC)
+				throw new IOException("Not a frame statistics file: "+file.getPath());
+			if (in.readInt() != FRAME_VERSION)
+				throw new IOException("Unsupported version of the frame statistics file: "+file.getPath());
+
+			data.dimensionality = in.readInt();
+			data.avgBG[time] = in.readDouble();
+			data.stdBG[time] = in.readDouble();
+			data.medBG[time] = in.readDouble();
+			data.madBG[time] = in.readDouble();
+
+			final int size = in.readInt();
+			final boolean hasSurface  = in.readBoolean();
+			final boolean hasDistance = in.readBoolean();
+			final boolean hasMedian   = in.readBoolean();
+
+			final FrameObjects o = new FrameObjects(size, hasSurface, hasDistance, hasMedian);
+			for (int i=0; i < size; ++i)
+			{
+				o.m_labels[i] = in.readInt();
+				o.m_avg[i]    = in.readDouble();
+				o.m_std[i]    = in.readDouble();
+				o.m_volume[i] = in.readLong();
+				if (hasSurface)  o.m_surface[i]  = in.readDouble();
+				if (hasDistance) o.m_nearDist[i] = in.readFloat();
+				if (hasMedian)   o.m_median[i]   = in.readDouble();
+			}
+			data.objectsFG[time] = o;
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * Stores the overlaps of the frame at \e time (with its previous frame)
+	 * of the video \e data (incl. the cross-marker overlaps, if available)
+	 * under the \e key.
+	 */
+	public void SaveOverlaps(final String key, final videoDataContainer data, final int time,
+	                         final boolean withCrossOverlaps)
+	throws IOException
+	{
+		final FrameOverlaps o = data.overlapsFG[time];
+		final HashMap<Integer,HashMap<Integer,Long>> cross = data.overlapCrossFG.get(time);
+
+		final File tmp = File.createTempFile("overlaps", ".tmp", folder);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+			       new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+				out.writeInt(OVERLAPS_MAGIC);
+				out.writeInt(OVERLAPS_VERSION);
+
+				out.writeInt(o.size());
+				for (int i=0; i < o.size(); ++i)
+				{
+					out.writeInt(o.m_labels[i]);
+					out.writeLong(o.m_overlap[i]);
+				}
+
+				out.writeBoolean(withCrossOverlaps);
+				if (withCrossOverlaps)
+				{
+					out.writeInt(cross.size());
+					for (Integer label : cross.keySet())
+					{
+						final HashMap<Integer,Long> prevLabels = cross.get(label);
+						out.writeInt(label);
+						out.writeInt(prevLabels.size());
+						for (Integer prevLabel : prevLabels.keySet())
+						{
+							out.writeInt(prevLabel);
+							out.writeLong(prevLabels.get(prevLabel));
+						}
+					}
+				}
+			}
+
+			Files.move(tmp.toPath(), new File(folder,key+".overlaps").toPath(),
+			           StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException | RuntimeException e) {
+			//do not leave the incomplete file behind
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the overlaps stored under the \e key into the frame at \e time of the
+	 * video \e data, and returns true. If there is no such data stored, or if the
+	 * cross-marker overlaps are required and were not stored, returns false.
+	 */
+	public boolean LoadOverlaps(final String key, final videoDataContainer data, final int time,
+	                            final boolean withCrossOverlaps)
+	throws IOException
+	{
+		final File file = new File(folder,key+".overlaps");
+		if (!file.isFile()) return (false);
+
+		try (DataInputStream in = new DataInputStream(
+		       new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (in.readInt() != OVERLAPS_MAGIC)
+				throw new IOException("Not an overlaps statistics file: "+file.getPath());
+			if (in.readInt() != OVERLAPS_VERSION)
+				throw new IOException("Unsupported version of the overlaps statistics file: "+file.getPath());
+
+			final int size = in.readInt();
+			final FrameOverlaps o = new FrameOverlaps(size);
+			for (int i=0; i < size; ++i)
+			{
+				o.m_labels[i]  = in.readInt();
+				o.m_overlap[i] = in.readLong();
+			}
+
+			final HashMap<Integer,HashMap<Integer,Long>> cross = new HashMap<>();
+			final boolean hasCrossOverlaps = in.readBoolean();
+			if (hasCrossOverlaps)
+			{
+				final int crossSize = in.readInt();
+				for (int i=0; i < crossSize; ++i)
+				{
+					final int label = in.readInt();
+					final int prevSize = in.readInt();
+					final HashMap<Integer,Long> prevLabels = new HashMap<>();
+					for (int j=0; j < prevSize; ++j)
+						prevLabels.put(in.readInt(), in.readLong());
+					cross.put(label, prevLabels);
+				}
+			}
+			else if (withCrossOverlaps) return (false);
+
+			data.overlapsFG[time] = o;
+			data.overlapCrossFG.set(time, cross);
+		}
+
+		return (true);
+	}
+}
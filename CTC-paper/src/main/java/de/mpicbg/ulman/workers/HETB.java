@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class HETB extends AbstractDSmeasure
 {
@@ -24,6 +22,64 @@ public class HETB extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
+	/// The HETB of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		double intSum = 0.; //for mean and variance
+		double int2Sum = 0.;
+		//see ImgQualityDataCache.ObjectStats for explanation of this variable
+		double valShift=-1.;
+
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final double[] avgBG = data.avgBG;
+
+		//go over all FG objects and calc their HETBs
+		double noFGs = 0.0;
+		//over all time points
+		for (int time=0; time < objectsFG.length; ++time)
+		{
+			if (weights[time] == 0.0) continue;
+
+			final double[] avgFG = objectsFG[time].m_avg;
+
+			//skip this frame if it is empty
+			if (avgFG.length == 0) continue;
+
+			//get average signal height from all objects in the given frame
+			//NB: the denominator of the HETb_i,t expression
+			double frameAvgFGSignal = 0.0;
+			for (int i=0; i < avgFG.length; ++i)
+				frameAvgFGSignal += Math.abs(avgFG[i] - avgBG[time]);
+			frameAvgFGSignal /= (double)avgFG.length;
+
+			//over all objects, in fact use their avg intensities
+			for (int i=0; i < avgFG.length; ++i)
+			{
+				//object signal height "normalized" with respect to the
+				//usual signal height in this frame, we have to calculate
+				//std.dev. from these values
+				final double hetb = (avgFG[i] - avgBG[time]) / frameAvgFGSignal;
+
+				if (valShift == -1) valShift = hetb;
+
+				intSum  += weights[time] * (hetb-valShift);
+				int2Sum += weights[time] * (hetb-valShift) * (hetb-valShift);
+				noFGs   += weights[time];
+			}
+		}
+
+		if (noFGs == 0) return (Double.NaN);
+
+		//finish calculation of the variance...
+		int2Sum -= (intSum*intSum/noFGs);
+		int2Sum /= noFGs;
+
+		//...to get the final standard deviation
+		return (Math.sqrt(int2Sum));
+	}
+
 	/// This is the main HETB calculator.
 	@Override
 	protected double calculateBottomStage()
@@ -31,66 +87,21 @@ public class HETB extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the HETB bottom part...");
 		double hetb = 0.0;
+		double hetbVar = 0.0;
 		long videoCnt = 0; //how many videos were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. HETBs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
-			double intSum = 0.; //for mean and variance
-			double int2Sum = 0.;
-			//see ImgQualityDataCache.extractFGObjectStats() for explanation of this variable
-			double valShift=-1.;
-
-			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
-			final Vector<Double> avgBG = data.avgBG;
-
-			//go over all FG objects and calc their HETBs
-			long noFGs = 0;
-			double l_hetb = 0.0;
-			//over all time points
-			for (int time=0; time < avgFG.size(); ++time)
+			final double l_hetb = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_hetb))
 			{
-				//skip this frame if it is empty
-				if (avgFG.get(time).size() == 0) continue;
-
-				//get average signal height from all objects in the given frame
-				//NB: the denominator of the HETb_i,t expression
-				double frameAvgFGSignal = 0.0;
-				for (Double fg : avgFG.get(time).values())
-					frameAvgFGSignal += Math.abs(fg - avgBG.get(time));
-				frameAvgFGSignal /= (double)avgFG.get(time).size();
-
-				//over all objects, in fact use their avg intensities
-				for (Double fg : avgFG.get(time).values())
-				{
-					//object signal height "normalized" with respect to the
-					//usual signal height in this frame, we have to calculate
-					//std.dev. from these values
-					l_hetb = (fg - avgBG.get(time)) / frameAvgFGSignal;
-
-					if (valShift == -1) valShift = l_hetb;
-
-					intSum  += (l_hetb-valShift);
-					int2Sum += (l_hetb-valShift) * (l_hetb-valShift);
-					++noFGs;
-				}
-			}
-
-			//finish the calculation of the average
-			if (noFGs > 0)
-			{
-				//finish calculation of the variance...
-				int2Sum -= (intSum*intSum/(double)noFGs);
-				int2Sum /= (double)noFGs;
-
-				//...to get the final standard deviation
-				l_hetb = Math.sqrt(int2Sum);
-
-				log.info("HETB for video "+data.video+": "+l_hetb);
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("HETB for video "+data.video+": "+l_hetb+reportStdErr(l_stdErr));
 
 				hetb += l_hetb;
+				hetbVar += l_stdErr * l_stdErr;
 				++videoCnt;
 			}
 			else
@@ -98,10 +109,12 @@ public class HETB extends AbstractDSmeasure
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			hetb /= (double)videoCnt;
-			log.info("HETB for dataset: "+hetb);
+			stdErr = Math.sqrt(hetbVar) / (double)videoCnt;
+			log.info("HETB for dataset: "+hetb+reportStdErr(stdErr));
 		}
 		else
 			log.info("HETB for dataset: Couldn't calculate average HETB because there are missing labels.");
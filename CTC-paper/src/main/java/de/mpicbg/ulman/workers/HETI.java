@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class HETI extends AbstractDSmeasure
 {
@@ -24,6 +22,42 @@ public class HETI extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
+	/// The average HETI of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final double[] avgBG = data.avgBG;
+
+		//go over all FG objects and calc their HETIs
+		double noFGs = 0.0;
+		double l_heti = 0.0;
+		//over all time points
+		for (int time=0; time < objectsFG.length; ++time)
+		{
+			if (weights[time] == 0.0) continue;
+
+			final double[] avgFG = objectsFG[time].m_avg;
+			final double[] stdFG = objectsFG[time].m_std;
+
+			//over all objects
+			for (int i=0; i < avgFG.length; ++i)
+			{
+				double denom = Math.abs(avgFG[i] - avgBG[time]);
+				//exclude close-to-zero denominators (that otherwise escalate/outlay the average)
+				if (denom > 0.01)
+				{
+					l_heti += weights[time] * stdFG[i] / denom;
+					noFGs  += weights[time];
+				}
+			}
+		}
+
+		//finish the calculation of the average
+		return (noFGs > 0 ? l_heti / noFGs : Double.NaN);
+	}
+
 	/// This is the main HETI calculator.
 	@Override
 	protected double calculateBottomStage()
@@ -31,43 +65,21 @@ public class HETI extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the HETI bottom part...");
 		double heti = 0.0;
+		double hetiVar = 0.0;
 		long videoCnt = 0; //how many videos were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. HETIs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
-			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
-			final Vector<HashMap<Integer,Double>> stdFG = data.stdFG;
-			final Vector<Double> avgBG = data.avgBG;
-
-			//go over all FG objects and calc their CRs
-			long noFGs = 0;
-			double l_heti = 0.0;
-			//over all time points
-			for (int time=0; time < avgFG.size(); ++time)
-			{
-				//over all objects
-				for (Integer fgID : avgFG.get(time).keySet())
-				{
-					double denom = Math.abs(avgFG.get(time).get(fgID) - avgBG.get(time));
-					//exclude close-to-zero denominators (that otherwise escalate/outlay the average)
-					if (denom > 0.01)
-					{
-						l_heti += stdFG.get(time).get(fgID) / denom;
-						++noFGs;
-					}
-				}
-			}
-
-			//finish the calculation of the average
-			if (noFGs > 0)
+			final double l_heti = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_heti))
 			{
-				l_heti /= (double)noFGs;
-				log.info("HETI for video "+data.video+": "+l_heti);
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("HETI for video "+data.video+": "+l_heti+reportStdErr(l_stdErr));
 
 				heti += l_heti;
+				hetiVar += l_stdErr * l_stdErr;
 				++videoCnt;
 			}
 			else
@@ -75,10 +87,12 @@ public class HETI extends AbstractDSmeasure
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			heti /= (double)videoCnt;
-			log.info("HETI for dataset: "+heti);
+			stdErr = Math.sqrt(hetiVar) / (double)videoCnt;
+			log.info("HETI for dataset: "+heti+reportStdErr(stdErr));
 		}
 		else
 			log.info("HETI for dataset: Couldn't calculate average HETI because there are missing labels.");
@@ -12,18 +12,16 @@ package de.mpicbg.ulman.workers;
 import org.scijava.log.LogService;
 
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.IterableInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.view.Views;
-import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
-import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.imglib2.type.numeric.IntegerType;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,10 +29,15 @@ import java.nio.file.Files;
 import io.scif.img.ImgIOException;
 
 import java.util.Vector;
-import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ImgQualityDataCache
 {
@@ -42,12 +45,43 @@ public class ImgQualityDataCache
 	private final LogService log;
 
 	/**
-	 * flag to notify ClassifyLabels() if to call extractObjectDistance()
+	 * flag to notify ClassifyLabels() if to call extractObjectDistances()
 	 * (which will be called in addition to extractFGObjectStats())
 	 */
 	public boolean doDensityPrecalculation = false;
-	///flag to notify extractFGObjectStats() if to bother itself with surface mesh
+	///flag to notify ClassifyLabels() if to bother itself with surfaces of the objects
 	public boolean doShapePrecalculation = false;
+	/**
+	 * flag to notify ClassifyLabels() if to collect also the overlaps of
+	 * different markers in consecutive frames (see videoDataContainer.overlapCrossFG)
+	 */
+	public boolean doCrossOverlapPrecalculation = false;
+	/**
+	 * flag to notify ClassifyLabels() if to collect also histograms of intensities
+	 * of the background and of the objects, from which the robust statistics
+	 * (medians and MADs, see IntensityHistogram) are determined
+	 */
+	public boolean doRobustPrecalculation = false;
+
+	///how many videos (of a dataset), their frames and (within a frame) the distance transform lines to process in parallel
+	public int noOfThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * folder of the persistent cache of per-frame data (see FrameStatsStore),
+	 * null means no such cache is used
+	 */
+	public String statsCachePath = null;
+
+	/**
+	 * fraction of the frames of every video, and of the background of every
+	 * evaluated frame, that is evaluated; 1.0 means all is evaluated and the
+	 * measures are exact, smaller values make the measures approximate (with
+	 * standard errors reported) but faster, see SampleFrames() and ClassifyLabelsSampled()
+	 */
+	public double samplingFraction = 1.0;
+
+	///the seed of the sampling, the same seed gives the same subsets
+	public long samplingSeed = 42;
 
 	///a constructor requiring connection to Fiji report/log services
 	public ImgQualityDataCache(final LogService _log)
@@ -78,6 +112,12 @@ public class ImgQualityDataCache
 			//preserve the feature flags
 			doDensityPrecalculation = _cache.doDensityPrecalculation;
 			doShapePrecalculation   = _cache.doShapePrecalculation;
+			doCrossOverlapPrecalculation = _cache.doCrossOverlapPrecalculation;
+			doRobustPrecalculation  = _cache.doRobustPrecalculation;
+			noOfThreads = _cache.noOfThreads;
+			statsCachePath = _cache.statsCachePath;
+			samplingFraction = _cache.samplingFraction;
+			samplingSeed = _cache.samplingSeed;
 		}
 	}
 
@@ -117,15 +157,95 @@ public class ImgQualityDataCache
 			resolution[n] = _res[n];
 	}
 
-	//"time savers" to prevent allocating it over and over again:
-	//for extractObjectDistance(), for storing coordinates
-	private int[] pos = null;
-	private int[] box = null;
-	//for extractObjectDistance(), only for isotropic boxes 3x3x...x3
-	private float[] boxDistances = null;
-	//for extractObjectDistance(), for calculating distance tranforms per object
-	Img<FloatType> dilIgA = null;
-	Img<FloatType> dilIgB = null;
+	/**
+	 * Per-object data of one frame, stored in columns: the i-th values of
+	 * all columns belong to the object (marker) m_labels[i]. The markers are
+	 * sorted in the ascending order. The columns of features that were not
+	 * asked for (see the do...Precalculation flags) are null.
+	 *
+	 * Usage: to stream over all objects of the frame, iterate i = 0 ... size()-1,
+	 * to get data of a particular object, use i = indexOf(labelID).
+	 */
+	public static class FrameObjects
+	{
+		FrameObjects(final int noOfObjects,
+		             final boolean withSurface, final boolean withDistance,
+		             final boolean withMedian)
+		{
+			m_labels = new int[noOfObjects];
+			m_avg    = new double[noOfObjects];
+			m_std    = new double[noOfObjects];
+			m_volume = new long[noOfObjects];
+			m_surface  = withSurface  ? new double[noOfObjects] : null;
+			m_nearDist = withDistance ? new float[noOfObjects]  : null;
+			m_median   = withMedian   ? new double[noOfObjects] : null;
+		}
+
+		///markers of the objects, in the ascending order
+		public final int[] m_labels;
+
+		///average intensities within the individual foreground masks
+		public final double[] m_avg;
+		///std. deviations of intensities within the individual foreground masks
+		public final double[] m_std;
+
+		///NUMBER OF VOXELS (not a real volume) of the foreground masks
+		public final long[] m_volume;
+
+		/**
+		 * REAL SURFACE (in square micrometers) of the foreground masks.
+		 * The surface is the total area of the voxel faces on the mask boundary,
+		 * which is a real perimeter (in micrometers) for 2D videos.
+		 */
+		public final double[] m_surface;
+
+		/**
+		 * How many voxels are there in between the marker and its nearest
+		 * neighboring (other) marker. The distance is the Euclidean distance
+		 * and thus the value is not necessarily an integer. The resolution
+		 * (size of voxels) of the image is taken into account, but the distance is
+		 * given in voxels along the x-axis. See extractObjectDistances() for details.
+		 */
+		public final float[] m_nearDist;
+
+		/**
+		 * median intensities within the individual foreground masks, determined
+		 * from the histograms of intensities (see IntensityHistogram for precision)
+		 */
+		public final double[] m_median;
+
+		///number of objects in the frame
+		public int size()
+		{ return (m_labels.length); }
+
+		///returns index of the object \e labelID, or negative value if there is no such
+		public int indexOf(final int labelID)
+		{ return (Arrays.binarySearch(m_labels, labelID)); }
+	}
+
+	/**
+	 * How many voxels are there in the intersection of masks of the same marker
+	 * at a time point and the previous time point, stored in columns: the i-th
+	 * overlap belongs to the object (marker) m_labels[i]. Only the markers present
+	 * in both time points are listed, sorted in the ascending order.
+	 */
+	public static class FrameOverlaps
+	{
+		FrameOverlaps(final int noOfObjects)
+		{
+			m_labels  = new int[noOfObjects];
+			m_overlap = new long[noOfObjects];
+		}
+
+		///markers of the objects, in the ascending order
+		public final int[] m_labels;
+		///voxel counts of the intersections
+		public final long[] m_overlap;
+
+		///number of objects listed
+		public int size()
+		{ return (m_labels.length); }
+	}
 
 	/**
 	 * This class holds all relevant data that are a) needed for individual
@@ -142,51 +262,110 @@ public class ImgQualityDataCache
 		///number/ID of the video this data belongs to
 		public int video;
 
+		///dimensionality of the images of this video (0 if no image was read yet)
+		public int dimensionality = 0;
+
 		/**
-		 * Representation of average & std. deviations within individual
-		 * foreground masks.
-		 * Usage: avgFG[timePoint].get(labelID) = averageIntensityValue
+		 * Prepares all per-frame data structures to hold \e noOfFrames time points,
+		 * which can be then populated in any order.
 		 */
-		public final Vector<HashMap<Integer,Double>> avgFG = new Vector<>(1000,100);
-		/// Similar to this.avgFG
-		public final Vector<HashMap<Integer,Double>> stdFG = new Vector<>(1000,100);
+		void setNoOfFrames(final int noOfFrames)
+		{
+			objectsFG  = new FrameObjects[noOfFrames];
+			overlapsFG = new FrameOverlaps[noOfFrames];
+			overlapCrossFG.setSize(noOfFrames);
+
+			avgBG = new double[noOfFrames];
+			stdBG = new double[noOfFrames];
+			medBG = new double[noOfFrames];
+			madBG = new double[noOfFrames];
+			Arrays.fill(avgBG, Double.NaN);
+			Arrays.fill(stdBG, Double.NaN);
+			Arrays.fill(medBG, Double.NaN);
+			Arrays.fill(madBG, Double.NaN);
+
+			//all frames are evaluated, each is its own stratum
+			frameWeights = new double[noOfFrames];
+			frameStrata = new int[noOfFrames];
+			Arrays.fill(frameWeights, 1.0);
+			for (int t=0; t < noOfFrames; ++t) frameStrata[t] = t;
+		}
 
-		/// Stores NUMBER OF VOXELS (not a real volume) of the FG masks at time points.
-		public final Vector<HashMap<Integer,Long>> volumeFG = new Vector<>(1000,100);
+		///number of time points of this video
+		public int getNoOfFrames()
+		{ return (objectsFG.length); }
+
+		/**
+		 * How many frames of this video every frame represents: it is 1 for all
+		 * frames unless the video was sampled (see ImgQualityDataCache.samplingFraction),
+		 * in which case the frames that were not evaluated have 0 (and no data).
+		 * The measures should use the weights for averaging over frames.
+		 */
+		public double[] frameWeights = new double[0];
 
-		/// Converts this.volumeFG values (no. of voxels) into a real volume (in cubic micrometers)
+		/**
+		 * Sampling strata of the frames, a stratum is identified with its first frame:
+		 * the frames of the same stratum were sampled together (see SampleFrames()).
+		 * Every frame is its own stratum unless the video was sampled.
+		 */
+		public int[] frameStrata = new int[0];
+
+		///is the data of the frame at \e time available?
+		public boolean isEvaluated(final int time)
+		{ return (frameWeights[time] > 0.0); }
+
+		/**
+		 * Representation of per-object data (average & std. deviations of
+		 * intensities within individual foreground masks, volumes etc.)
+		 * Usage: objectsFG[timePoint].m_avg[ objectsFG[timePoint].indexOf(labelID) ] = averageIntensityValue
+		 */
+		public FrameObjects[] objectsFG = new FrameObjects[0];
+
+		/**
+		 * Converts FrameObjects.m_volume values (no. of voxels) into a real volume (in cubic micrometers),
+		 * only the resolutions of the image axes are considered (so it is a real area for 2D videos)
+		 */
 		public double getRealVolume(final long vxlCnt)
 		{
+			final int D = dimensionality > 0 ? Math.min(dimensionality,resolution.length) : resolution.length;
+
 			double v = (double)vxlCnt;
-			for (double r : resolution) v *= r;
+			for (int n=0; n < D; ++n) v *= resolution[n];
 			return (v);
 		}
 
-		/// Stores REAL SURFACE (in square micrometers) of the FG masks at time points.
-		public final Vector<HashMap<Integer,Double>> surfaceFG = new Vector<>(1000,100);
-
 		/**
 		 * Stores how many voxels are there in the intersection of masks of the same
 		 * marker at time point and previous time point.
+		 * Usage: overlapsFG[timePoint].m_overlap[i] = noOfVoxels of the object overlapsFG[timePoint].m_labels[i]
 		 */
-		public final Vector<HashMap<Integer,Long>> overlapFG = new Vector<>(1000,100);
+		public FrameOverlaps[] overlapsFG = new FrameOverlaps[0];
 
 		/**
-		 * Stores how many voxels are there in between the marker and its nearest
-		 * neighboring (other) marker at time points. The distance is measured with
-		 * Chamfer distance (which considers diagonals in voxels) and thus the value
-		 * is not necessarily an integer anymore. The resolution (size of voxels)
-		 * of the image is not taken into account.
+		 * Stores how many voxels are there in the intersection of mask of a marker
+		 * at time point and mask of any (incl. the same) marker at previous time point.
+		 * Only non-zero intersections are stored, and only if the cache was asked
+		 * for it (see ImgQualityDataCache.doCrossOverlapPrecalculation).
+		 * Usage: overlapCrossFG[timePoint].get(labelID).get(prevLabelID) = noOfVoxels
 		 */
-		public final Vector<HashMap<Integer,Float>> nearDistFG = new Vector<>(1000,100);
+		public final Vector<HashMap<Integer,HashMap<Integer,Long>>> overlapCrossFG = new Vector<>(1000,100);
 
 		/**
 		 * Representation of average & std. deviations of background region.
 		 * There is only one background marker expected in the images.
 		 */
-		public final Vector<Double> avgBG = new Vector<>(1000,100);
+		public double[] avgBG = new double[0];
 		/// Similar to this.avgBG
-		public final Vector<Double> stdBG = new Vector<>(1000,100);
+		public double[] stdBG = new double[0];
+
+		/**
+		 * Representation of median & median absolute deviation (MAD) of background
+		 * region, determined from the histogram of intensities (see IntensityHistogram),
+		 * NaN if not asked for (see ImgQualityDataCache.doRobustPrecalculation).
+		 */
+		public double[] medBG = new double[0];
+		/// Similar to this.medBG
+		public double[] madBG = new double[0];
 	}
 
 	/// this list holds relevant data for every discovered video
@@ -196,354 +375,269 @@ public class ImgQualityDataCache
 	//aux data fillers -- merely markers' properties calculator
 
 	/**
-	 * The cursor \e imgPosition points into the raw image at voxel whose counterparting voxel
-	 * in the \e imgFGcurrent image stores the first (in the sense of \e imgPosition internal
-	 * sweeping order) occurence of the marker that is to be processed with this function.
-	 *
-	 * This function pushes into global data at the specific \e time .
+	 * Per-object (per-marker) intensity statistics, all collected in one sweep
+	 * over the image. The statistics are stored in arrays indexed with the marker.
 	 */
-	private <T extends RealType<T>>
-	void extractFGObjectStats(final Cursor<T> imgPosition, final int time, //who: "object" @ time
-		final RandomAccessibleInterval<UnsignedShortType> imgFGcurrent,     //where: input masks
-		final RandomAccessibleInterval<UnsignedShortType> imgFGprevious,
-		final videoDataContainer data)
+	static class ObjectStats
 	{
-		//working pointers into the mask images
-		final RandomAccess<UnsignedShortType> fgCursor = imgFGcurrent.randomAccess();
+		ObjectStats(final int maxMarker)
+		{ this(maxMarker, false, false); }
 
-		//obtain the ID of the processed object
-		//NB: imgPosition points already at sure existing voxel
-		fgCursor.setPosition(imgPosition);
-		final int marker = fgCursor.get().getInteger();
+		/**
+		 * If \e withHistograms, also a histogram of intensities is collected for
+		 * every object (the \e integerValues tells the type of the intensities).
+		 */
+		ObjectStats(final int maxMarker,
+		            final boolean withHistograms, final boolean _integerValues)
+		{
+			count = new long[maxMarker+1];
+			shift = new double[maxMarker+1];
+			sum   = new double[maxMarker+1];
+			sum2  = new double[maxMarker+1];
+			surface = new double[maxMarker+1];
+			histograms = withHistograms ? new IntensityHistogram[maxMarker+1] : null;
+			integerValues = _integerValues;
+		}
+
+		///the voxel counter (for volume)
+		final long[] count;
 
-		//init aux variables:
-		double intSum = 0.; //for single-pass calculation of mean and variance
-		double int2Sum = 0.;
 		//according to: https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Computing_shifted_data
 		//to fight against numerical issues we introduce a "value shifter",
-		//which we can already initiate with an "estimate of mean" which we
-		//derive from the object's first spotted voxel value
-		//NB: imgPosition points already at sure existing voxel
-		final double valShift=imgPosition.get().getRealDouble();
-
-		//the voxel counter (for volume)
-		long vxlCnt = 0L;
-
-		//working copy of the input cursor, this one drives the image sweeping
-		//sweep the image and search for this object/marker
-		final Cursor<T> rawCursor = imgPosition.copyCursor();
-		rawCursor.reset();
-		while (rawCursor.hasNext())
-		{
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
+		//which we initiate with an "estimate of mean" which we derive from
+		//the object's first spotted voxel value
+		final double[] shift;
 
-			if (fgCursor.get().getInteger() == marker)
-			{
-				//processing voxel that belongs to the current FG object:
-				//increase current volume
-				++vxlCnt;
+		///for single-pass calculation of mean and variance
+		final double[] sum, sum2;
 
-				final double val = rawCursor.get().getRealDouble();
-				intSum += (val-valShift);
-				int2Sum += (val-valShift) * (val-valShift);
+		///the (real) area of the boundary voxel faces
+		final double[] surface;
+
+		///the histograms of intensities, allocated for the spotted objects only
+		final IntensityHistogram[] histograms;
+		final boolean integerValues;
+
+		///adds the voxel value \e val to the object \e marker
+		void add(final int marker, final double val)
+		{
+			if (count[marker] == 0)
+			{
+				shift[marker] = val;
+				if (histograms != null)
+					histograms[marker] = new IntensityHistogram(OBJECT_HISTOGRAM_BINS, integerValues);
 			}
-		}
-		//must hold: vxlCnt > 1 (otherwise ClassifyLabels wouldn't call this function)
+			++count[marker];
+			if (histograms != null) histograms[marker].add(val);
 
-		//finish processing of the FG objects stats:
-		//mean intensity
-		data.avgFG.get(time).put(marker, (intSum / (double)vxlCnt) + valShift );
+			final double v = val - shift[marker];
+			sum[marker]  += v;
+			sum2[marker] += v*v;
+		}
 
-		//variance
-		int2Sum -= (intSum*intSum/(double)vxlCnt);
-		int2Sum /= (double)vxlCnt;
-		//
-		//std. dev.
-		data.stdFG.get(time).put(marker, Math.sqrt(int2Sum) );
+		///mean intensity of the object \e marker
+		double mean(final int marker)
+		{ return ( (sum[marker] / (double)count[marker]) + shift[marker] ); }
 
-		//voxel count
-		data.volumeFG.get(time).put(marker, vxlCnt );
+		///std. dev. of the intensities of the object \e marker
+		double std(final int marker)
+		{
+			//variance
+			double var = sum2[marker] - (sum[marker]*sum[marker]/(double)count[marker]);
+			var /= (double)count[marker];
+			return (Math.sqrt(var));
+		}
+	}
 
-		//call dedicated function to calculate surface in real coordinates,
-		//the real area/surface
-		if (doShapePrecalculation)
-			data.surfaceFG.get(time).put(marker, 999.9 ); //TODO replace 999 with some function call
+	/**
+	 * Number of bins of the per-object histograms of intensities: the median
+	 * of an object is exact for integer intensities if the intensities of the
+	 * object span no more than this number of values, otherwise the bins are
+	 * coarser (see IntensityHistogram).
+	 */
+	static final int OBJECT_HISTOGRAM_BINS = 1024;
 
-		//also process the "overlap feature" (if the object was found in the previous frame)
-		if (time > 0 && data.volumeFG.get(time-1).get(marker) != null)
-			data.overlapFG.get(time).put(marker,
-				measureObjectsOverlap(imgPosition,imgFGcurrent, marker,imgFGprevious) );
+	/**
+	 * Creates an empty histogram suitable for intensities of the given \e type:
+	 * for 8- and 16-bit integer types, it is a dense one (a bin for every possible
+	 * value), otherwise it is an adaptive one with 65536 bins.
+	 */
+	static <T extends RealType<T>>
+	IntensityHistogram CreateHistogram(final T type)
+	{
+		if (type instanceof IntegerType && type.getBitsPerPixel() <= 16)
+			return ( new IntensityHistogram(1 << type.getBitsPerPixel(), (long)type.getMinValue()) );
+		else
+			return ( new IntensityHistogram(65536, type instanceof IntegerType) );
 	}
 
+	///returns real areas of voxel faces that are perpendicular to the image axes
+	private double[] getFaceAreas(final int D)
+	{
+		final double[] faceAreas = new double[D];
+		for (int d=0; d < D; ++d)
+		{
+			faceAreas[d] = 1.0;
+			for (int n=0; n < D; ++n)
+				if (n != d) faceAreas[d] *= resolution[n];
+		}
+		return (faceAreas);
+	}
 
 	/**
-	 * The functions counts how many times the current marker (see below) in the image \e imgFGcurrent
-	 * co-localizes with marker \e prevID in the image \e imgFGprevious. This number is returned.
-	 *
-	 * The cursor \e imgPosition points into the raw image at voxel whose counterparting voxel
-	 * in the \e imgFGcurrent image stores the first (in the sense of \e imgPosition internal
-	 * sweeping order) occurence of the marker that is to be processed with this function.
+	 * Adds to the surface of the object \e fgMarker those faces of the voxel,
+	 * at which the \e fgCursor is, that are shared with voxels of other markers
+	 * or with the image border, in both directions along all axes.
+	 * The \e fgCursor is returned back to the voxel.
 	 */
-	private <T extends RealType<T>>
-	long measureObjectsOverlap(final Cursor<T> imgPosition, //pointer to the raw image -> gives current FG ID
-	                           final RandomAccessibleInterval<UnsignedShortType> imgFGcurrent, //FG mask
-									   final int prevID, //prev FG ID
-	                           final RandomAccessibleInterval<UnsignedShortType> imgFGprevious) //FG mask
+	private
+	void addSurfaceFaces(final RandomAccess<UnsignedShortType> fgCursor, final int fgMarker,
+	                     final Interval imgFG, final double[] faceAreas,
+	                     final ObjectStats stats)
 	{
-		//working copy of the input cursor, this one drives the image sweeping
-		final Cursor<T> rawCursor = imgPosition.copyCursor();
+		for (int d=0; d < faceAreas.length; ++d)
+		{
+			final long pos = fgCursor.getLongPosition(d);
+
+			if (pos == imgFG.min(d)) stats.surface[fgMarker] += faceAreas[d];
+			else
+			{
+				fgCursor.bck(d);
+				if (fgCursor.get().getInteger() != fgMarker) stats.surface[fgMarker] += faceAreas[d];
+				fgCursor.fwd(d);
+			}
+
+			if (pos == imgFG.max(d)) stats.surface[fgMarker] += faceAreas[d];
+			else
+			{
+				fgCursor.fwd(d);
+				if (fgCursor.get().getInteger() != fgMarker) stats.surface[fgMarker] += faceAreas[d];
+				fgCursor.bck(d);
+			}
+		}
+	}
 
-		//working pointers into the (current and previous) object masks
-		final RandomAccess<UnsignedShortType> fgCursor = imgFGcurrent.randomAccess();
-		final RandomAccess<UnsignedShortType> prevFgCursor = imgFGprevious.randomAccess();
+	/**
+	 * Stores the properties of the object \e marker at the i-th row of the
+	 * table \e objects. The intensity statistics and surface of the marker
+	 * are already in the \e stats.
+	 */
+	private
+	void extractFGObjectStats(final int marker, final int i, //who: "object" @ row
+		final ObjectStats stats,
+		final FrameObjects objects)
+	{
+		//must hold: stats.count[marker] > 0 (otherwise ClassifyLabels wouldn't call this function)
+		objects.m_labels[i] = marker;
 
-		//obtain the ID of the processed object
-		//NB: imgPosition points already at sure existing voxel
-		//NB: rawCursor is as if newly created cursor, i.e., now it points before the image
-		fgCursor.setPosition(imgPosition);
-		final int marker = fgCursor.get().getInteger();
+		//finish processing of the FG objects stats:
+		//mean intensity
+		objects.m_avg[i] = stats.mean(marker);
 
-		//return value...
-		long count = 0;
+		//std. dev.
+		objects.m_std[i] = stats.std(marker);
 
-		rawCursor.reset();
-		while (rawCursor.hasNext())
-		{
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
-			prevFgCursor.setPosition(rawCursor);
+		//voxel count
+		objects.m_volume[i] = stats.count[marker];
 
-			if (fgCursor.get().getInteger() == marker && prevFgCursor.get().getInteger() == prevID)
-				++count;
-		}
+		//the real area/surface
+		if (objects.m_surface != null)
+			objects.m_surface[i] = stats.surface[marker];
 
-		return(count);
+		//the median from the histogram
+		if (objects.m_median != null)
+			objects.m_median[i] = stats.histograms[marker].median();
 	}
 
 
 	/**
-	 * The \e curMarker represents the marker whose distance to nearest
-	 * neighbor is to be calculated.
+	 * Determines, for every marker in the \e img, the distance to its nearest
+	 * neighboring (other) marker. The result is indexed with the markers.
 	 *
-	 * It dilates (with 3x3x... SE) until it hits some other marker and returns Chamfer
-	 * distance to that marker. The iterations (number of dilations) are however limited
-	 * with \e maxIters.
+	 * It uses the exact Euclidean distance transform with the propagation of
+	 * the nearest markers (see LabelDistanceTransform), which also honours the
+	 * resolution. The distance is in voxels along the x-axis and it is measured
+	 * as 1 + distance of the closest voxels of the two markers (so that touching
+	 * markers are 2 apart, as it used to be with the former dilation-based
+	 * calculation). The distances are, however, limited with \e maxDist.
+	 * The transform uses this.noOfThreads.
 	 */
-	private <T extends IntegerType<T>>
-	float extractObjectDistance(final Img<T> img, final int curMarker,
-	                            final int maxIters)
+	private
+	float[] extractObjectDistances(final RandomAccessibleInterval<UnsignedShortType> img,
+	                               final float maxDist)
 	{
-		//overlay over the original input image with special marker boundary
-		T specialBorderMarker = img.firstElement().createVariable();
-		specialBorderMarker.setInteger(-1);
-		final int borderMarker = specialBorderMarker.getInteger(); //short-cut...
-
-		ExtendedRandomAccessibleInterval<T,Img<T>> extImg
-			= Views.extendValue(img, specialBorderMarker);
-
-		//working (float-type) "copies" of the input image
-		if (dilIgA == null || dilIgB == null)
-			throw new IllegalArgumentException("Internal error in extractFGObjectStats(), sorry.");
-		//could also check for proper size of the two images vs. img...
-
-		//overlays over the working copies with extended boundary
-		ExtendedRandomAccessibleInterval<FloatType,Img<FloatType>> dilImgA
-			= Views.extendValue(dilIgA, new FloatType());
-		ExtendedRandomAccessibleInterval<FloatType,Img<FloatType>> dilImgB
-			= Views.extendValue(dilIgB, new FloatType());
-
-		//setup necessary pointers for the tmp images
-		final Cursor<FloatType> sweepCursorA = dilIgA.localizingCursor();
-		final Cursor<FloatType> sweepCursorB = dilIgB.localizingCursor();
-		final RandomAccess<FloatType> outCursorA = dilImgA.randomAccess();
-		final RandomAccess<FloatType> outCursorB = dilImgB.randomAccess();
-
-		//prepare the initial working image
-		Cursor<T> imgCursor = img.localizingCursor();
-		RandomAccess<FloatType> outCursor = outCursorA;
-		int tmp;
-		while (imgCursor.hasNext())
-		{
-			tmp = imgCursor.next().getInteger();
-			outCursor.setPosition(imgCursor);
-			//make sure all voxels are initiated
-			outCursor.get().setReal( tmp == curMarker ? 1.f : 0.f );
-		}
-		imgCursor = null;
-
-		//clear the second temp image
-		while (sweepCursorB.hasNext())
-			sweepCursorB.next().setReal(0.f);
-
-		//current working cursors: "sweep" scans the input image, "out" checks the input image
-		boolean AisInput = true;
-		Cursor<FloatType> sweepCursor = sweepCursorA;
-		outCursor = outCursorB;
-		RandomAccess<T> inCursor = extImg.randomAccess();
-
-		boolean hasHit = false;
-		//DEBUG//int closestMarker = 0;
-		float closestDist = Float.MAX_VALUE;
-
-		int iters=0;
-		do
-		{
-			//dilate and check if we are running into somebody
-			//NB: always finish the whole round!
-			sweepCursor.reset();
-			while (sweepCursor.hasNext())
-			{
-				//currently observed distance at the currently examined voxel
-				float curDist = sweepCursor.next().getRealFloat();
+		final float[] dists
+			= new LabelDistanceTransform(img, resolution, noOfThreads).NearestOtherMarkerDistances(65535);
 
-				//check we are over "any already touched" voxel:
-				//NB: should be faster than checking if our voxel is a neighbor to "any touched" voxel
-				if (curDist > 0.f)
-				{
-					sweepCursor.localize(pos);
-					//reportCoordinate("found marker "+curMarker+" at: ");
+		for (int i=0; i < dists.length; ++i)
+			dists[i] = Math.min(1.f + dists[i], maxDist);
 
-					//BOX STRUCTURING ELEMENT -- APPROXIMATES L2 DISTANCES (Eucledian metric)
+		return (dists);
+	}
 
-					//now check its neighbors..., and update hasHit possibly
-					//NB: always finish the whole round!
-					sweepBox(true); //true means "do init"
-					do
-					{
-						inCursor.setPosition(pos);
-						outCursor.setPosition(pos);
-
-						//First, update the distance value at the current "neighbor" voxel:
-						//so far best distance stored in the output voxel
-						final float neigDist = outCursor.get().getRealFloat();
-
-						//update distance for the current inside-box position
-						/*
-						float offsetDist = 0;
-						for (int i=0; i < box.length; ++i)
-							offsetDist += (float)box[i]*(float)box[i];
-						offsetDist = (float)Math.sqrt(offsetDist);
-						*/
-
-						//NB: this works only for isotropic boxes 3x3x...x3
-						int nonZeroAxesCnt = 0;
-						for (int i=0; i < box.length; ++i)
-							nonZeroAxesCnt += box[i]&1;
-						final float offsetDist = boxDistances[nonZeroAxesCnt];
-
-						//first condition: is there any distance stored already?
-						//second condition: would a move from the current position
-						//improve currently saved distance in the output voxel?
-						if (neigDist == 0. || neigDist > curDist+offsetDist)
-							outCursor.get().setReal(curDist+offsetDist);
-
-						//Second, check we haven't run into another object (marker)
-						int examinedMarker = inCursor.get().getInteger();
-						if (examinedMarker > 0 && examinedMarker != curMarker && examinedMarker != borderMarker)
-						{
-							hasHit = true;
-							curDist = outCursor.get().getRealFloat(); //get fresh distance value
-							//reportCoordinate(curMarker+" found his neighbor "+examinedMarker+" at distance "+curDist+" at: ");
-
-							if (curDist < closestDist)
-							{
-								closestDist = curDist;
-								//DEBUG//closestMarker = examinedMarker;
-							}
-						}
-					}
-					while (sweepBox(false));
-				} //over "already discovered" voxel
-			} //input image sweeping
 
-			//flip the intput/output image sense
-			if (AisInput)
-			{
-				//make B input
-				sweepCursor = sweepCursorB;
-				outCursor = outCursorA;
-				AisInput=false;
-			}
-			else
-			{
-				//make A input
-				sweepCursor = sweepCursorA;
-				outCursor = outCursorB;
-				AisInput=true;
-			}
+	/**
+	 * Returns the table of per-object data \e objects completed with the demanded
+	 * features (see the do...Precalculation flags) that are missing in it.
+	 * The features are computed from the FG mask \e imgFG of the frame, which
+	 * is why the (intensity-based) medians cannot be completed this way.
+	 */
+	FrameObjects CompleteFrameObjects(final Img<UnsignedShortType> imgFG,
+	                                  final FrameObjects objects)
+	{
+		final boolean needSurface  = doShapePrecalculation   && objects.m_surface  == null;
+		final boolean needDistance = doDensityPrecalculation && objects.m_nearDist == null;
 
-			//calculates truly a number of iterations (for now)
-			++iters;
-		}
-		while (!hasHit && iters < maxIters);
+		final FrameObjects o = new FrameObjects(objects.size(),
+			objects.m_surface  != null || needSurface,
+			objects.m_nearDist != null || needDistance,
+			objects.m_median   != null);
 
-		//set up the return values
-		if (hasHit)
-		{
-			//objDistance.otherMarker = closestMarker;
-			//objDistance.distance = closestDist;
-			//DEBUG//log.info(curMarker+" found his neighbor "+closestMarker+" at distance "+closestDist+" isotropic voxels.");
-			return (closestDist);
-		}
-		else
+		for (int i=0; i < o.size(); ++i)
 		{
-			//objDistance.otherMarker = -1;
-			//objDistance.distance = (float)maxIters;
-			//DEBUG//log.info(curMarker+" has not found his neighbor with in "+maxIters+" iterations.");
-			return ((float)maxIters);
+			o.m_labels[i] = objects.m_labels[i];
+			o.m_avg[i]    = objects.m_avg[i];
+			o.m_std[i]    = objects.m_std[i];
+			o.m_volume[i] = objects.m_volume[i];
+			if (objects.m_surface  != null) o.m_surface[i]  = objects.m_surface[i];
+			if (objects.m_nearDist != null) o.m_nearDist[i] = objects.m_nearDist[i];
+			if (objects.m_median   != null) o.m_median[i]   = objects.m_median[i];
 		}
-	}
 
-	private boolean sweepBox(final boolean init)
-	{
-		if (init == true)
-		{
-			for (int i=0; i < box.length; ++i)
-			{
-				box[i]=-1;
-				--pos[i];
-			}
-			return (true);
-		}
-		else
+		if (needSurface)
 		{
-			int index=box.length-1;
-			while (index >= 0)
+			final double[] faceAreas = getFaceAreas(imgFG.numDimensions());
+			final ObjectStats stats = new ObjectStats(65535);
+
+			final Cursor<UnsignedShortType> sweepCursor = imgFG.localizingCursor();
+			final RandomAccess<UnsignedShortType> fgCursor = imgFG.randomAccess();
+			while (sweepCursor.hasNext())
 			{
-				++box[index];
-				++pos[index];
-				if (box[index] == 2)
+				final int fgMarker = sweepCursor.next().getInteger();
+				if (fgMarker > 0)
 				{
-					box[index]=-1;
-					pos[index]-=3;
-					--index;
+					fgCursor.setPosition(sweepCursor);
+					addSurfaceFaces(fgCursor, fgMarker, imgFG, faceAreas, stats);
 				}
-				else return (true);
 			}
+
+			for (int i=0; i < o.size(); ++i)
+				o.m_surface[i] = stats.surface[o.m_labels[i]];
 		}
-		return (false);
-	}
 
+		if (needDistance)
+		{
+			final float[] nearDists = extractObjectDistances(imgFG, 50.f);
+			for (int i=0; i < o.size(); ++i)
+				o.m_nearDist[i] = nearDists[o.m_labels[i]];
+		}
 
-	///reports coordinate stored in the internal attribute this.pos[]
-	@SuppressWarnings("unused")
-	private void reportCoordinate(final String msg)
-	{
-		if (pos.length == 3)
-			System.out.println(msg+"("+pos[0]+","+pos[1]+","+pos[2]+")");
-		else
-			System.out.println(msg+"("+pos[0]+","+pos[1]+")");
+		return (o);
 	}
 
 
-	public <T extends RealType<T>>
-	void ClassifyLabels(final int time,
-	                    IterableInterval<T> imgRaw,
-	                    RandomAccessibleInterval<UnsignedByteType> imgBG,
-	                    Img<UnsignedShortType> imgFG,
-	                    RandomAccessibleInterval<UnsignedShortType> imgFGprev,
-	                    final videoDataContainer data)
+	///checks the resolution is available and the images are of the same size
+	private void checkImages(final Interval imgRaw, final Interval imgBG, final Interval imgFG)
 	{
 		//uses resolution from the class internal structures, check it is set already
 		if (resolution == null)
@@ -571,6 +665,17 @@ public class ImgQualityDataCache
 			if (imgRaw.dimension(n) != imgBG.dimension(n))
 				throw new IllegalArgumentException("Raw image and BG label image"
 					+" are not of the same size.");
+	}
+
+
+	public <T extends RealType<T>>
+	void ClassifyLabels(final int time,
+	                    IterableInterval<T> imgRaw,
+	                    RandomAccessibleInterval<UnsignedByteType> imgBG,
+	                    Img<UnsignedShortType> imgFG,
+	                    final videoDataContainer data)
+	{
+		checkImages(imgRaw, imgBG, imgFG);
 
 		//.... populate the internal structures ....
 		//first, frame-related stats variables:
@@ -580,25 +685,39 @@ public class ImgQualityDataCache
 
 		double intSum = 0.; //for mean and variance
 		double int2Sum = 0.;
-		//see extractFGObjectStats() for explanation of this variable
+		//see ObjectStats for explanation of this variable
 		double valShift=-1.;
 
+		//histogram of BG intensities for the robust stats, collected in the same sweep
+		final IntensityHistogram histBG
+			= doRobustPrecalculation ? CreateHistogram(imgRaw.firstElement()) : null;
+
+		//per-object stats, collected in the same sweep
+		//NB: markers are 16-bit
+		final ObjectStats stats = new ObjectStats(65535,
+			doRobustPrecalculation, imgRaw.firstElement() instanceof IntegerType);
+
 		//sweeping variables:
 		final Cursor<T> rawCursor = imgRaw.localizingCursor();
 		final RandomAccess<UnsignedByteType> bgCursor = imgBG.randomAccess();
 		final RandomAccess<UnsignedShortType> fgCursor = imgFG.randomAccess();
 
+		//real areas of voxel faces that are perpendicular to the image axes
+		final double[] faceAreas = getFaceAreas(imgFG.numDimensions());
+		data.dimensionality = imgFG.numDimensions();
+
 		while (rawCursor.hasNext())
 		{
 			//update cursors...
 			rawCursor.next();
 			bgCursor.setPosition(rawCursor);
 			fgCursor.setPosition(rawCursor);
+			final int fgMarker = fgCursor.get().getInteger();
 
 			//analyze background voxels
 			if (bgCursor.get().getInteger() > 0)
 			{
-				if (fgCursor.get().getInteger() > 0)
+				if (fgMarker > 0)
 				{
 					//found colliding BG voxel, exclude it from BG stats
 					++volFGBGcollisionVoxelCnt;
@@ -613,10 +732,20 @@ public class ImgQualityDataCache
 
 					intSum += (val-valShift);
 					int2Sum += (val-valShift) * (val-valShift);
+
+					if (histBG != null) histBG.add(val);
 				}
 			}
-			if (fgCursor.get().getInteger() > 0)
-				++volFGvoxelCnt; //found FG voxel, update FG stats
+			if (fgMarker > 0)
+			{
+				//found FG voxel, update FG stats
+				++volFGvoxelCnt;
+				stats.add(fgMarker, rawCursor.get().getRealDouble());
+
+				//update the surface
+				if (doShapePrecalculation)
+					addSurfaceFaces(fgCursor, fgMarker, imgFG, faceAreas, stats);
+			}
 		}
 
 		//report the "occupancy stats"
@@ -632,57 +761,367 @@ public class ImgQualityDataCache
 		if (volBGvoxelCnt > 0)
 		{
 			//great, some pure-background voxels have been found
-			data.avgBG.add( (intSum / (double)volBGvoxelCnt) + valShift );
+			data.avgBG[time] = (intSum / (double)volBGvoxelCnt) + valShift;
 
 			int2Sum -= (intSum*intSum/(double)volBGvoxelCnt);
 			int2Sum /= (double)volBGvoxelCnt;
-			data.stdBG.add( Math.sqrt(int2Sum) );
+			data.stdBG[time] = Math.sqrt(int2Sum);
+
+			if (histBG != null)
+			{
+				data.medBG[time] = histBG.median();
+				data.madBG[time] = histBG.MAD();
+			}
 		}
 		else
 		{
 			log.info("Warning: Background annotation has no pure background voxels.");
-			data.avgBG.add( 0.0 );
-			data.stdBG.add( 0.0 );
+			data.avgBG[time] = 0.0;
+			data.stdBG[time] = 0.0;
+			if (histBG != null)
+			{
+				data.medBG[time] = 0.0;
+				data.madBG[time] = 0.0;
+			}
 		}
 
-		//now, sweep the image, detect all labels and calculate & save their properties
+		//NB: the frames may be processed in parallel, and in any order
+		data.objectsFG[time] = ExtractFrameObjects(stats, imgFG);
+	}
+
+	/**
+	 * Returns the table of per-object data of all objects found in the \e stats,
+	 * the distances (if demanded) are computed from the FG mask \e imgFG.
+	 */
+	private
+	FrameObjects ExtractFrameObjects(final ObjectStats stats,
+	                                 final Img<UnsignedShortType> imgFG)
+	{
+		//now, save properties of all discovered labels
+		//(and calculate those that are not available yet)
 		log.info("Retrieving per object statistics, might take some time...");
-		//
-		//set to remember already discovered labels
-		//(with initial capacity for 1000 labels)
-		HashSet<Integer> mDiscovered = new HashSet<Integer>(1000);
-
-		//prepare the per-object data structures
-		data.avgFG.add( new HashMap<>() );
-		data.stdFG.add( new HashMap<>() );
-		data.volumeFG.add( new HashMap<>() );
-		data.surfaceFG.add( new HashMap<>() );
-		data.overlapFG.add( new HashMap<>() );
-		data.nearDistFG.add( new HashMap<>() );
-
-		rawCursor.reset();
-		while (rawCursor.hasNext())
+
+		//prepare the per-object data structure
+		int noOfObjects = 0;
+		for (int marker = 1; marker < stats.count.length; ++marker)
+			if (stats.count[marker] > 0) ++noOfObjects;
+
+		final FrameObjects objects
+			= new FrameObjects(noOfObjects, doShapePrecalculation, doDensityPrecalculation,
+			                   doRobustPrecalculation);
+
+		//distances to the nearest neighbors, for all objects at once
+		final float[] nearDists
+			= doDensityPrecalculation ? extractObjectDistances(imgFG, 50.f) : null;
+
+		//NB: markers are visited in the ascending order
+		int i = 0;
+		for (int marker = 1; marker < stats.count.length; ++marker)
 		{
-			//update cursors...
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
+			//skip markers not present in this frame
+			if (stats.count[marker] == 0) continue;
 
-			//analyze foreground voxels
-			final int curMarker = fgCursor.get().getInteger();
-			if ( curMarker > 0 && (!mDiscovered.contains(curMarker)) )
+			extractFGObjectStats(marker, i, stats, objects);
+
+			if (doDensityPrecalculation)
+				objects.m_nearDist[i] = nearDists[marker];
+
+			++i;
+		}
+
+		return (objects);
+	}
+
+	///the (max) size of the blocks of background along every axis, see ClassifyLabelsSampled()
+	static final int BG_BLOCK_SIZE = 32;
+	///the least number of background voxels to be sampled, see ClassifyLabelsSampled()
+	static final long MIN_SAMPLED_BG_VOXELS = 10000;
+
+	/**
+	 * The sampling counterpart of the ClassifyLabels(), which does not sweep over
+	 * the whole raw image. The per-object data are exact: the FG mask is swept
+	 * first to find bounding boxes of the objects, and then the raw image is swept
+	 * only within these boxes. The background stats are, however, estimated from
+	 * a random subset of blocks (of BG_BLOCK_SIZE voxels along every axis) that
+	 * covers this.samplingFraction of the image; more blocks are visited should
+	 * there be less than MIN_SAMPLED_BG_VOXELS pure background voxels in them
+	 * (for the case of sparse background annotations).
+	 *
+	 * This function pushes into global data at the specific \e time .
+	 */
+	public <T extends RealType<T>>
+	void ClassifyLabelsSampled(final int time,
+	                           RandomAccessibleInterval<T> imgRaw,
+	                           RandomAccessibleInterval<UnsignedByteType> imgBG,
+	                           Img<UnsignedShortType> imgFG,
+	                           final videoDataContainer data,
+	                           final SplittableRandom rnd)
+	{
+		checkImages(imgRaw, imgBG, imgFG);
+
+		final int D = imgFG.numDimensions();
+		data.dimensionality = D;
+
+		//real areas of voxel faces that are perpendicular to the image axes
+		final double[] faceAreas = getFaceAreas(D);
+
+		//the type of raw voxels
+		final T rawType = Views.iterable(imgRaw).firstElement();
+
+		//per-object stats
+		//NB: markers are 16-bit
+		final ObjectStats stats = new ObjectStats(65535,
+			doRobustPrecalculation, rawType instanceof IntegerType);
+
+		//sweep the FG mask only: bounding boxes (and surfaces) of the objects
+		final long[][] bbMin = new long[65536][];
+		final long[][] bbMax = new long[65536][];
+		long volFGvoxelCnt = 0L;
+
+		final Cursor<UnsignedShortType> fgSweep = imgFG.localizingCursor();
+		final RandomAccess<UnsignedShortType> fgCursor = imgFG.randomAccess();
+		while (fgSweep.hasNext())
+		{
+			final int fgMarker = fgSweep.next().getInteger();
+			if (fgMarker == 0) continue;
+
+			++volFGvoxelCnt;
+			if (bbMin[fgMarker] == null)
+			{
+				bbMin[fgMarker] = new long[D];
+				bbMax[fgMarker] = new long[D];
+				fgSweep.localize(bbMin[fgMarker]);
+				fgSweep.localize(bbMax[fgMarker]);
+			}
+			else
+				for (int d=0; d < D; ++d)
+				{
+					final long pos = fgSweep.getLongPosition(d);
+					if (pos < bbMin[fgMarker][d]) bbMin[fgMarker][d] = pos;
+					if (pos > bbMax[fgMarker][d]) bbMax[fgMarker][d] = pos;
+				}
+
+			//update the surface
+			if (doShapePrecalculation)
+			{
+				fgCursor.setPosition(fgSweep);
+				addSurfaceFaces(fgCursor, fgMarker, imgFG, faceAreas, stats);
+			}
+		}
+
+		//sweep the raw image within the bounding boxes: exact stats of the objects
+		for (int marker = 1; marker < bbMin.length; ++marker)
+		{
+			if (bbMin[marker] == null) continue;
+
+			final Cursor<T> rawCursor
+				= Views.interval(imgRaw, bbMin[marker], bbMax[marker]).localizingCursor();
+			while (rawCursor.hasNext())
+			{
+				rawCursor.next();
+				fgCursor.setPosition(rawCursor);
+				if (fgCursor.get().getInteger() == marker)
+					stats.add(marker, rawCursor.get().getRealDouble());
+			}
+		}
+
+		//the blocks of the image, visited in a random order
+		final long[] blocksPerAxis = new long[D];
+		long noOfBlocks = 1;
+		for (int d=0; d < D; ++d)
+		{
+			blocksPerAxis[d] = (imgRaw.dimension(d) + BG_BLOCK_SIZE-1) / BG_BLOCK_SIZE;
+			noOfBlocks *= blocksPerAxis[d];
+		}
+		if (noOfBlocks > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Raw image is too large.");
+
+		final int[] blocks = new int[(int)noOfBlocks];
+		for (int b=0; b < blocks.length; ++b) blocks[b] = b;
+		for (int b=blocks.length-1; b > 0; --b)
+		{
+			final int r = rnd.nextInt(b+1);
+			final int tmp = blocks[b]; blocks[b] = blocks[r]; blocks[r] = tmp;
+		}
+
+		//sweep the raw image within the sampled blocks: BG stats
+		final long minBlocks = Math.max(1, (long)Math.ceil(samplingFraction * noOfBlocks));
+		final ObjectStats statsBG = new ObjectStats(0);
+		final IntensityHistogram histBG = doRobustPrecalculation ? CreateHistogram(rawType) : null;
+		final RandomAccess<UnsignedByteType> bgCursor = imgBG.randomAccess();
+		final long[] blockMin = new long[D];
+		final long[] blockMax = new long[D];
+
+		int visitedBlocks = 0;
+		while (visitedBlocks < blocks.length
+		       && (visitedBlocks < minBlocks || statsBG.count[0] < MIN_SAMPLED_BG_VOXELS))
+		{
+			long b = blocks[visitedBlocks++];
+			for (int d=0; d < D; ++d)
+			{
+				blockMin[d] = imgRaw.min(d) + (b % blocksPerAxis[d]) * BG_BLOCK_SIZE;
+				blockMax[d] = Math.min(blockMin[d] + BG_BLOCK_SIZE-1, imgRaw.max(d));
+				b /= blocksPerAxis[d];
+			}
+
+			final Cursor<T> rawCursor = Views.interval(imgRaw, blockMin, blockMax).localizingCursor();
+			while (rawCursor.hasNext())
+			{
+				rawCursor.next();
+				bgCursor.setPosition(rawCursor);
+				if (bgCursor.get().getInteger() == 0) continue;
+
+				//only non-colliding BG voxels are included in BG stats
+				fgCursor.setPosition(rawCursor);
+				if (fgCursor.get().getInteger() > 0) continue;
+
+				final double val = rawCursor.get().getRealDouble();
+				statsBG.add(0, val);
+				if (histBG != null) histBG.add(val);
+			}
+		}
+
+		//report the "occupancy stats"
+		log.info("Frame at time "+time+" overview (sampled):");
+		final long imgSize = imgFG.size();
+		log.info("all FG voxels           : "+volFGvoxelCnt+" ( "+100.0*(double)volFGvoxelCnt/imgSize+" %)");
+		log.info("visited BG blocks       : "+visitedBlocks+" of "+blocks.length);
+		log.info("sampled pure BG voxels  : "+statsBG.count[0]);
+
+		//finish processing of the BG stats of the current frame
+		if (statsBG.count[0] > 0)
+		{
+			data.avgBG[time] = statsBG.mean(0);
+			data.stdBG[time] = statsBG.std(0);
+
+			if (histBG != null)
+			{
+				data.medBG[time] = histBG.median();
+				data.madBG[time] = histBG.MAD();
+			}
+		}
+		else
+		{
+			log.info("Warning: Background annotation has no pure background voxels.");
+			data.avgBG[time] = 0.0;
+			data.stdBG[time] = 0.0;
+			if (histBG != null)
+			{
+				data.medBG[time] = 0.0;
+				data.madBG[time] = 0.0;
+			}
+		}
+
+		//NB: the frames may be processed in parallel, and in any order
+		data.objectsFG[time] = ExtractFrameObjects(stats, imgFG);
+	}
+
+	/**
+	 * Counts, in one sweep over the masks \e imgFG of the frame at \e time and
+	 * \e imgFGprev of the previous frame, how many voxels are there in the
+	 * intersections of the same markers (for the markers present in both
+	 * frames), and possibly also of any markers (see doCrossOverlapPrecalculation).
+	 *
+	 * This function pushes into global data at the specific \e time .
+	 */
+	public
+	void ClassifyOverlaps(final int time,
+	                      Img<UnsignedShortType> imgFG,
+	                      RandomAccessibleInterval<UnsignedShortType> imgFGprev,
+	                      final videoDataContainer data)
+	{
+		//check the sizes of the images
+		if (imgFG.numDimensions() != imgFGprev.numDimensions())
+			throw new IllegalArgumentException("FG label images of consecutive frames"
+				+" are not of the same dimensionality.");
+		for (int n=0; n < imgFG.numDimensions(); ++n)
+			if (imgFG.dimension(n) != imgFGprev.dimension(n))
+				throw new IllegalArgumentException("FG label images of consecutive frames"
+					+" are not of the same size.");
+
+		//markers found in the current and previous frame
+		//NB: markers are 16-bit
+		final boolean[] isCurrent  = new boolean[65536];
+		final boolean[] isPrevious = new boolean[65536];
+
+		//the voxel counters of the intersections of the same markers
+		final long[] overlaps = new long[65536];
+
+		//overlaps of (any) markers from this and previous frame,
+		//a key is made of both markers: (current << 16) | previous
+		final HashMap<Integer,long[]> crossOverlaps = new HashMap<>();
+		//the last used key and counter (voxels of the same pair come often in a row)
+		int lastPair = 0;
+		long[] lastPairCnt = null;
+
+		//sweeping variables:
+		final Cursor<UnsignedShortType> fgCursor = imgFG.localizingCursor();
+		final RandomAccess<UnsignedShortType> prevFgCursor = imgFGprev.randomAccess();
+
+		while (fgCursor.hasNext())
+		{
+			final int fgMarker = fgCursor.next().getInteger();
+			prevFgCursor.setPosition(fgCursor);
+			final int prevMarker = prevFgCursor.get().getInteger();
+
+			isCurrent[fgMarker] = true;
+			isPrevious[prevMarker] = true;
+
+			if (fgMarker > 0 && prevMarker > 0)
+			{
+				if (prevMarker == fgMarker) ++overlaps[fgMarker];
+
+				if (doCrossOverlapPrecalculation)
+				{
+					final int pair = (fgMarker << 16) | prevMarker;
+					if (lastPairCnt == null || pair != lastPair)
+					{
+						lastPair = pair;
+						lastPairCnt = crossOverlaps.get(pair);
+						if (lastPairCnt == null)
+						{
+							lastPairCnt = new long[1];
+							crossOverlaps.put(pair, lastPairCnt);
+						}
+					}
+					++lastPairCnt[0];
+				}
+			}
+		}
+
+		//the "overlap feature" of objects found also in the previous frame
+		int noOfObjects = 0;
+		for (int marker = 1; marker < overlaps.length; ++marker)
+			if (isCurrent[marker] && isPrevious[marker]) ++noOfObjects;
+
+		final FrameOverlaps overlapsFG = new FrameOverlaps(noOfObjects);
+		int i = 0;
+		for (int marker = 1; marker < overlaps.length; ++marker)
+			if (isCurrent[marker] && isPrevious[marker])
 			{
-				//found not-yet-processed FG voxel,
-				//that means: found not-yet-processed FG object
-				extractFGObjectStats(rawCursor, time, imgFG, imgFGprev, data);
+				overlapsFG.m_labels[i]  = marker;
+				overlapsFG.m_overlap[i] = overlaps[marker];
+				++i;
+			}
 
-				if (doDensityPrecalculation)
-					data.nearDistFG.get(time).put(curMarker,
-						extractObjectDistance(imgFG,curMarker, 50) );
+		//unfold the overlaps of markers into the per-object data structures
+		final HashMap<Integer,HashMap<Integer,Long>> overlapCrossFG = new HashMap<>();
+		for (Integer pair : crossOverlaps.keySet())
+		{
+			final int curMarker  = pair >>> 16;
+			final int prevMarker = pair & 0xFFFF;
 
-				//mark the object (and all its voxels consequently) as processed
-				mDiscovered.add(curMarker);
+			HashMap<Integer,Long> prevMarkers = overlapCrossFG.get(curMarker);
+			if (prevMarkers == null)
+			{
+				prevMarkers = new HashMap<>();
+				overlapCrossFG.put(curMarker, prevMarkers);
 			}
+			prevMarkers.put(prevMarker, crossOverlaps.get(pair)[0]);
 		}
+
+		data.overlapsFG[time] = overlapsFG;
+		data.overlapCrossFG.set(time, overlapCrossFG);
 	}
 
 	//---------------------------------------------------------------------/
@@ -703,25 +1142,68 @@ public class ImgQualityDataCache
 	throws IOException, ImgIOException
 	{
 		//this functions actually only interates over video folders
-		//and calls this.calculateVideo() for every folder
+		//and calls calculateVideo() for every folder
 
 		//test and save the given resolution
 		setResolution(resolution);
 
+		if (samplingFraction <= 0.0 || samplingFraction > 1.0)
+			throw new IllegalArgumentException("Sampling fraction must be from (0,1]!");
+
 		//single or multiple video situation?
 		if (Files.isReadable(
 			new File(String.format("%s/01/t000.tif",imgPath)).toPath()))
 		{
 			//multiple video situation: paths point on a dataset
-			int video = 1;
+			//
+			//the videos are independent, so they are processed in parallel:
+			//every video is processed with its own worker cache (that has the
+			//same flags and resolution as this one) and its own log buffer,
+			//the results and reports are collected in the order of the videos
+			int noOfVideos = 0;
 			while (Files.isReadable(
-				new File(String.format("%s/%02d/t000.tif",imgPath,video)).toPath()))
-			{
-				final videoDataContainer data = new videoDataContainer(video);
-				calculateVideo(String.format("%s/%02d",imgPath,video),
-				               String.format("%s/%02d_GT",annPath,video), data);
-				this.cachedVideoData.add(data);
-				++video;
+				new File(String.format("%s/%02d/t000.tif",imgPath,noOfVideos+1)).toPath()))
+				++noOfVideos;
+
+			//the threads are split among the videos (which process their frames in parallel too)
+			final int videoThreads = Math.max(1, Math.min(noOfThreads,noOfVideos));
+			final int frameThreads = Math.max(1, noOfThreads / videoThreads);
+
+			final List<Future<videoDataContainer>> tasks = new ArrayList<>(noOfVideos);
+			final List<LogBuffer> logs = new ArrayList<>(noOfVideos);
+			final ExecutorService workers = Executors.newFixedThreadPool(videoThreads);
+			try {
+				for (int video = 1; video <= noOfVideos; ++video)
+				{
+					final videoDataContainer data = new videoDataContainer(video);
+					final String videoImgPath = String.format("%s/%02d",imgPath,video);
+					final String videoAnnPath = String.format("%s/%02d_GT",annPath,video);
+
+					final LogBuffer videoLog = new LogBuffer(log);
+					final ImgQualityDataCache worker = new ImgQualityDataCache(videoLog, this);
+					worker.setResolution(resolution);
+					worker.noOfThreads = frameThreads;
+
+					tasks.add( workers.submit( () -> {
+						worker.calculateVideo(videoImgPath, videoAnnPath, data);
+						return (data);
+					} ) );
+					logs.add(videoLog);
+				}
+
+				for (int i=0; i < tasks.size(); ++i)
+				{
+					//NB: flush also the reports of a failed video
+					try {
+						this.cachedVideoData.add( TrackDataCache.waitFor(tasks.get(i)) );
+					}
+					finally {
+						logs.get(i).flush();
+					}
+				}
+			}
+			finally {
+				workers.shutdownNow();
 			}
 		}
 		else
@@ -738,8 +1220,59 @@ public class ImgQualityDataCache
 		this.annPath = annPath;
 	}
 
-	/// this functions processes given video folders and outputs to \e data
-	@SuppressWarnings({"unchecked","rawtypes"})
+	/**
+	 * Chooses the frames of the video \e data that are to be evaluated when sampling
+	 * (see this.samplingFraction), and sets their weights and strata accordingly (see
+	 * videoDataContainer.frameWeights). Nothing is changed if not sampling.
+	 *
+	 * The first two and the last two frames are always evaluated (the CHA needs them),
+	 * each being its own stratum. The frames in between are split into strata of
+	 * consecutive frames and two random frames of every stratum are evaluated, so
+	 * that about this.samplingFraction of them is evaluated. The two frames per stratum
+	 * allow to estimate the sampling error (see AbstractDSmeasure.calculateVideoStdErr()).
+	 * Videos with less than 8 frames are never sampled.
+	 */
+	void SampleFrames(final videoDataContainer data, final SplittableRandom rnd)
+	{
+		final int noOfFrames = data.getNoOfFrames();
+		final int noOfInnerFrames = noOfFrames - 4;
+		if (samplingFraction >= 1.0 || noOfInnerFrames < 4) return;
+
+		//NB: the first and last two frames are left as they are: evaluated, each its own stratum
+		//NB: every stratum has at least two frames
+		final int noOfStrata = (int)Math.max(1, Math.round(samplingFraction * noOfInnerFrames / 2.0));
+		for (int h=0; h < noOfStrata; ++h)
+		{
+			final int from = 2 + (int)((long)h     * noOfInnerFrames / noOfStrata);
+			final int to   = 2 + (int)((long)(h+1) * noOfInnerFrames / noOfStrata); //excl.
+			final int size = to - from;
+
+			for (int t=from; t < to; ++t)
+			{
+				data.frameWeights[t] = 0.0;
+				data.frameStrata[t] = from;
+			}
+
+			//two different random frames
+			final int a = rnd.nextInt(size);
+			int b = rnd.nextInt(size-1);
+			if (b >= a) ++b;
+
+			data.frameWeights[from+a] = (double)size / 2.0;
+			data.frameWeights[from+b] = (double)size / 2.0;
+		}
+	}
+
+	/**
+	 * This functions processes given video folders and outputs to \e data.
+	 *
+	 * The frames are processed in parallel (with this.noOfThreads), each in its
+	 * own task, and the results are stored at their time points in the \e data.
+	 * When sampling, only the frames chosen by SampleFrames() are processed.
+	 * The overlaps of consecutive frames are computed in separate tasks, which
+	 * read the two FG masks on their own, so that no task needs to wait for
+	 * another one and every running task holds at most images of two frames.
+	 */
 	public void calculateVideo(final String imgPath,
 	                           final String annPath,
 	                           final videoDataContainer data)
@@ -749,77 +1282,246 @@ public class ImgQualityDataCache
 		log.info("ANN path: "+annPath);
 		//DEBUG//log.info("Computing the common upper part...");
 
+		//count the frames to be able to store their data at their time points
+		int noOfFrames = 0;
+		while (Files.isReadable(
+			new File(String.format("%s/t%03d.tif",imgPath,noOfFrames)).toPath()))
+			++noOfFrames;
+
+		if (noOfFrames == 0)
+			throw new IllegalArgumentException("No raw image was found!");
+
+		data.setNoOfFrames(noOfFrames);
+
+		//possibly, evaluate only some of the frames
+		SampleFrames(data, new SplittableRandom(samplingSeed + data.video));
+		int noOfEvaluated = 0;
+		for (int time = 0; time < noOfFrames; ++time)
+			if (data.isEvaluated(time)) ++noOfEvaluated;
+		if (samplingFraction < 1.0)
+			log.info("Sampling: evaluating "+noOfEvaluated+" of "+noOfFrames+" frames.");
+
+		//the threads are split among the frames, whatever is left is used within
+		//the frames (by the distance transform), typically it is then one thread
+		final int frameThreads = Math.max(1, Math.min(noOfThreads,noOfEvaluated));
+		final int withinFrameThreads = Math.max(1, noOfThreads / frameThreads);
+
+		//NB: no overlap possible for time==0
+		data.overlapsFG[0] = new FrameOverlaps(0);
+		data.overlapCrossFG.set(0, new HashMap<>() );
+
+		//every frame is processed with its own worker cache (that has the same
+		//flags and resolution as this one) and its own log buffer, the reports
+		//are flushed in the order of the frames
+		final List<Future<?>> tasks = new ArrayList<>(2*noOfFrames);
+		final List<LogBuffer> logs = new ArrayList<>(2*noOfFrames);
+		final ExecutorService workers = Executors.newFixedThreadPool(frameThreads);
+		try {
+			for (int time = 0; time < noOfFrames; ++time)
+			{
+				//skip the frames not sampled
+				if (!data.isEvaluated(time)) continue;
+
+				final int frame = time;
+				final LogBuffer frameLog = new LogBuffer(log);
+				final ImgQualityDataCache worker = new ImgQualityDataCache(frameLog, this);
+				worker.setResolution(resolution);
+				worker.noOfThreads = withinFrameThreads;
+
+				tasks.add( workers.submit( () -> {
+					worker.calculateFrame(imgPath, annPath, frame, data);
+					return (null);
+				} ) );
+				logs.add(frameLog);
+
+				if (frame > 0)
+				{
+					//the overlap task runs concurrently with the frame task, it has thus its own log buffer
+					final LogBuffer overlapLog = new LogBuffer(log);
+					final ImgQualityDataCache overlapWorker = new ImgQualityDataCache(overlapLog, this);
+					overlapWorker.setResolution(resolution);
+					overlapWorker.noOfThreads = withinFrameThreads;
+
+					tasks.add( workers.submit( () -> {
+						overlapWorker.calculateFramesOverlap(annPath, frame, data);
+						return (null);
+					} ) );
+					logs.add(overlapLog);
+				}
+			}
+
+			for (int i=0; i < tasks.size(); ++i)
+			{
+				//NB: flush also the reports of a failed frame
+				try {
+					TrackDataCache.waitFor(tasks.get(i));
+				}
+				finally {
+					logs.get(i).flush();
+				}
+			}
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		for (int time = 0; time < noOfFrames; ++time)
+		{
+			if (!data.isEvaluated(time)) continue;
+
+			if (data.objectsFG[time] == null || data.overlapsFG[time] == null)
+				throw new IllegalArgumentException("Internal consistency problem with FG data!");
+
+			if (Double.isNaN(data.avgBG[time]))
+				throw new IllegalArgumentException("Internal consistency problem with BG data!");
+		}
+	}
+
+	/**
+	 * This functions processes the given frame (of the given video folders) and outputs to \e data.
+	 *
+	 * If this.statsCachePath is set, the frame data are first looked for in the persistent
+	 * cache. Only if they are not found there, the frame is processed (and the cache is updated).
+	 * If they are found but lack some of the currently demanded features, only these features
+	 * are computed (from the FG mask only), except for the robust stats that require the
+	 * complete processing of the frame.
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public void calculateFrame(final String imgPath,
+	                           final String annPath,
+	                           final int time,
+	                           final videoDataContainer data)
+	throws IOException, ImgIOException
+	{
 		//we gonna re-use image loading functions...
 		final TrackDataCache tCache = new TrackDataCache(log);
 
-		//iterate through the RAW images folder and read files, one by one,
-		//find the appropriate file in the annotations folders,
-		//and call ClassifyLabels() for every such tripple,
-		//
-		//check also previous frame for overlap size
-		Img<UnsignedShortType> imgFGprev = null;
-		//
-		int time = 0;
-		while (Files.isReadable(
-			new File(String.format("%s/t%03d.tif",imgPath,time)).toPath()))
+		final String rawFile = String.format("%s/t%03d.tif",imgPath,time);
+		final String fgFile  = String.format("%s/TRA/man_track%03d.tif",annPath,time);
+		final String bgFile  = String.format("%s/BG/mask%03d.tif",annPath,time);
+
+		//try the persistent cache first
+		//NB: the resolution influences the surfaces and distances,
+		//    the sampling influences the BG stats
+		final FrameStatsStore store = openStatsStore(time);
+		final String key = store == null ? null :
+			samplingFraction < 1.0 ?
+				FrameStatsStore.Fingerprint(new String[] { rawFile, fgFile, bgFile }, Arrays.toString(resolution),
+				                            "sampling", samplingFraction, samplingSeed)
+			:	FrameStatsStore.Fingerprint(new String[] { rawFile, fgFile, bgFile }, Arrays.toString(resolution));
+
+		if (store != null)
 		{
-			//read the image tripple (raw image, FG labels, BG label)
-			Img<?> img
-				= tCache.ReadImage(String.format("%s/t%03d.tif",imgPath,time));
-
-			Img<UnsignedShortType> imgFG
-				= tCache.ReadImageG16(String.format("%s/TRA/man_track%03d.tif",annPath,time));
+			boolean loaded = false;
+			try {
+				loaded = store.LoadFrame(key, data, time);
+			}
+			catch (IOException e) {
+				log.info("Warning: Cannot read cached statistics of frame at time "+time+": "+e.getMessage());
+			}
 
-			Img<UnsignedByteType> imgBG
-				= tCache.ReadImageG8(String.format("%s/BG/mask%03d.tif",annPath,time));
+			//NB: the medians cannot be completed without the raw image
+			if (loaded && doRobustPrecalculation && data.objectsFG[time].m_median == null)
+			{
+				log.info("Frame at time "+time+": cached statistics lack the robust ones, recomputing...");
+				loaded = false;
+			}
 
-			//time to allocate helper variables?
-			if (time == 0)
+			if (loaded)
 			{
-				//positions and box sweeping:
-				pos = new int[imgFG.numDimensions()];
-				box = new int[imgFG.numDimensions()];
-
-				//pre-calculating distances with box (any box point from box centre)
-				//based on how many non-zero elements is available in a vector
-				//that points at any box point
-				//NB: hard-fixed for up to 10-dimensional image
-				//NB: this works only for isotropic boxes 3x3x...x3
-				boxDistances = new float[10];
-				for (int i=1; i < 10; ++i)
-					boxDistances[i] = (float)Math.sqrt((double)i);
-
-				//creating tmp images of the right size:
-				int[] dims = new int[imgFG.numDimensions()];
-				for (int n=0; n < imgFG.numDimensions(); ++n)
-					dims[n] = (int)imgFG.dimension(n);
-				ArrayImgFactory<FloatType> imgFactory = new ArrayImgFactory<>(new FloatType());
-				dilIgA = imgFactory.create(dims);
-				dilIgB = imgFactory.create(dims);
-				dims = null;
-				imgFactory = null;
+				final FrameObjects objects = data.objectsFG[time];
+				if ((doShapePrecalculation   && objects.m_surface  == null)
+				 || (doDensityPrecalculation && objects.m_nearDist == null))
+				{
+					log.info("Frame at time "+time+": completing the cached statistics...");
+					data.objectsFG[time] = CompleteFrameObjects(tCache.ReadImageG16(fgFile), objects);
+					saveFrame(store, key, data, time);
+				}
+				else
+					log.info("Frame at time "+time+": statistics read from the cache.");
+				return;
 			}
+		}
 
-			ClassifyLabels(time, (IterableInterval)img, imgBG, imgFG, imgFGprev, data);
+		//read the image tripple (raw image, FG labels, BG label)
+		final Img<?> img = tCache.ReadImage(rawFile);
+		final Img<UnsignedShortType> imgFG = tCache.ReadImageG16(fgFile);
+		final Img<UnsignedByteType> imgBG = tCache.ReadImageG8(bgFile);
 
-			imgFGprev = null; //be explicit that we do not want this in memory anymore
-			imgFGprev = imgFG;
-			++time;
+		if (samplingFraction < 1.0)
+			ClassifyLabelsSampled(time, (RandomAccessibleInterval)img, imgBG, imgFG, data,
+				new SplittableRandom(samplingSeed + 1000003L*data.video + time));
+		else
+			ClassifyLabels(time, (IterableInterval)img, imgBG, imgFG, data);
+
+		if (store != null) saveFrame(store, key, data, time);
+	}
 
-			//to be on safe side (with memory)
-			img = null;
-			imgFG = null;
-			imgBG = null;
+	/// this functions processes the overlap of the given and previous frame (of the given video folder)
+	public void calculateFramesOverlap(final String annPath,
+	                                   final int time,
+	                                   final videoDataContainer data)
+	throws IOException, ImgIOException
+	{
+		//we gonna re-use image loading functions...
+		final TrackDataCache tCache = new TrackDataCache(log);
+
+		final String fgFile     = String.format("%s/TRA/man_track%03d.tif",annPath,time);
+		final String fgPrevFile = String.format("%s/TRA/man_track%03d.tif",annPath,time-1);
+
+		//try the persistent cache first
+		final FrameStatsStore store = openStatsStore(time);
+		final String key = store != null ?
+			FrameStatsStore.Fingerprint(new String[] { fgPrevFile, fgFile }) : null;
+
+		if (store != null)
+		{
+			try {
+				if (store.LoadOverlaps(key, data, time, doCrossOverlapPrecalculation)) return;
+			}
+			catch (IOException e) {
+				log.info("Warning: Cannot read cached overlaps of frame at time "+time+": "+e.getMessage());
+			}
 		}
-		imgFGprev = null;
 
-		if (time == 0)
-			throw new IllegalArgumentException("No raw image was found!");
+		final Img<UnsignedShortType> imgFG = tCache.ReadImageG16(fgFile);
+		final Img<UnsignedShortType> imgFGprev = tCache.ReadImageG16(fgPrevFile);
 
-		if (data.volumeFG.size() != time)
-			throw new IllegalArgumentException("Internal consistency problem with FG data!");
+		ClassifyOverlaps(time, imgFG, imgFGprev, data);
 
-		if (data.avgBG.size() != time)
-			throw new IllegalArgumentException("Internal consistency problem with BG data!");
+		if (store != null)
+		{
+			try {
+				store.SaveOverlaps(key, data, time, doCrossOverlapPrecalculation);
+			}
+			catch (IOException e) {
+				log.info("Warning: Cannot cache overlaps of frame at time "+time+": "+e.getMessage());
+			}
+		}
+	}
+
+	///opens the persistent cache (if it is used at all), problems are only reported and no cache is used then
+	private FrameStatsStore openStatsStore(final int time)
+	{
+		if (statsCachePath == null) return (null);
+		try {
+			return (new FrameStatsStore(statsCachePath));
+		}
+		catch (IOException e) {
+			log.info("Warning: Cannot open the statistics cache for frame at time "+time+", continuing without it: "+e.getMessage());
+			return (null);
+		}
+	}
+
+	///stores the frame data into the persistent cache, problems are only reported
+	private void saveFrame(final FrameStatsStore store, final String key,
+	                       final videoDataContainer data, final int time)
+	{
+		try {
+			store.SaveFrame(key, data, time);
+		}
+		catch (IOException e) {
+			log.info("Warning: Cannot cache statistics of frame at time "+time+": "+e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,220 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+/**
+ * Histogram of intensities with a fixed number of bins, from which (robust)
+ * statistics such as the median and the median absolute deviation (MAD) can
+ * be retrieved after a single pass over the data.
+ *
+ * The bins are of the same width and lie on the grid of multiples of the width.
+ * Once a value falls outside the range of the bins, the bins are made coarser
+ * (the width is doubled, possibly repeatedly, and neighboring bins are merged)
+ * so that all values seen so far fit in. The bins never get finer again.
+ *
+ * For integer values, a bin of width 1 holds just one value and the statistics
+ * are then exact. For 8- and 16-bit data, the histogram should be created
+ * "dense" (with a bin for every value of the type) and it never gets coarser.
+ * For real values, the width is chosen adaptively from the first value seen,
+ * and the statistics are exact up to the width of the bins.
+ */
+public class IntensityHistogram
+{
+	/**
+	 * Creates an empty histogram with \e noOfBins bins, which is placed (and
+	 * for real values also scaled) according to the first value added.
+	 */
+	public IntensityHistogram(final int noOfBins, final boolean _integerValues)
+	{
+		if (noOfBins < 2)
+			throw new IllegalArgumentException("Histogram must have at least two bins.");
+
+		bins = new long[noOfBins];
+		integerValues = _integerValues;
+		width = _integerValues ? 1.0 : 0.0; //NB: 0 means "to be decided"
+	}
+
+	/**
+	 * Creates an empty dense histogram for integer values, that is, with
+	 * \e noOfBins bins of width 1 for the values \e firstValue, \e firstValue+1, ...
+	 */
+	public IntensityHistogram(final int noOfBins, final long firstValue)
+	{
+		this(noOfBins, true);
+		firstBin = firstValue;
+		isPlaced = true;
+	}
+
+	///the bin counters
+	private long[] bins;
+	///index of the first bin on the grid of multiples of this.width
+	private long firstBin = 0;
+	///width of the bins
+	private double width;
+	///were the bins placed on the grid already?
+	private boolean isPlaced = false;
+
+	///are the values integers? (influences the bins' representative values)
+	private final boolean integerValues;
+
+	///how many values were added
+	private long count = 0;
+
+	///how many values were added
+	public long getCount()
+	{ return (count); }
+
+	///width of the bins, 0 if no value was added yet
+	public double getBinWidth()
+	{ return (width); }
+
+
+	///adds the value \e val, non-finite values are ignored
+	public void add(final double val)
+	{
+		if (Double.isNaN(val) || Double.isInfinite(val)) return;
+
+		//first value: choose the width (of real values) as a power of two
+		//that provides (up to) 4096 bins per the magnitude of the value
+		if (width == 0.0)
+			width = Math.scalb(1.0, (val != 0.0 ? Math.getExponent(val) : -20) - 12);
+
+		double q = Math.floor(val / width);
+		if (!isPlaced || q < firstBin || q >= firstBin + bins.length)
+		{
+			rebin(val);
+			q = Math.floor(val / width);
+		}
+
+		++bins[(int)((long)q - firstBin)];
+		++count;
+	}
+
+	/**
+	 * Makes the bins as many times coarser as needed so that they cover all
+	 * values seen so far and the value \e val, and centers them around these.
+	 */
+	private void rebin(final double val)
+	{
+		//the range of non-empty bins (on the grid of the current bins)
+		long lo = Long.MAX_VALUE, hi = Long.MIN_VALUE;
+		for (int i=0; i < bins.length; ++i)
+			if (bins[i] > 0)
+			{
+				lo = Math.min(lo, firstBin + i);
+				hi = Math.max(hi, firstBin + i);
+			}
+		final boolean isEmpty = lo > hi;
+
+		//find the shift to the grid of coarser bins (of the width 2^shift times larger)
+		//such that the bin index of the val is representable and all fits in
+		//NB: on the integer grid, x >> shift == floor(x / 2^shift)
+		int shift = 0;
+		while (Math.abs(Math.floor(val / Math.scalb(width,shift))) >= 0x1p60) ++shift;
+		long k = (long)Math.floor(val / Math.scalb(width,shift));
+		while (!isEmpty && Math.max(hi >> shift, k) - Math.min(lo >> shift, k) >= bins.length)
+		{
+			++shift;
+			k = (long)Math.floor(val / Math.scalb(width,shift));
+		}
+
+		final long newLo = isEmpty ? k : Math.min(lo >> shift, k);
+		final long newHi = isEmpty ? k : Math.max(hi >> shift, k);
+		final long newFirstBin = newLo - (bins.length-1 - (newHi-newLo)) / 2;
+
+		final long[] newBins = new long[bins.length];
+		for (int i=0; i < bins.length; ++i)
+			if (bins[i] > 0)
+				newBins[(int)(((firstBin + i) >> shift) - newFirstBin)] += bins[i];
+
+		bins = newBins;
+		firstBin = newFirstBin;
+		width = Math.scalb(width, shift);
+		isPlaced = true;
+	}
+
+	///returns the value that represents all values in the i-th bin
+	private double binValue(final int i)
+	{
+		//integers: the centre of the integers in the bin, reals: the centre of the bin
+		return ( (double)(firstBin + i) * width + (integerValues ? (width-1.0)/2.0 : width/2.0) );
+	}
+
+
+	/**
+	 * Returns the value at the \e rank (0-based) among the added values sorted
+	 * in the ascending order, up to the precision of the bins.
+	 */
+	public double valueAtRank(final long rank)
+	{
+		if (rank < 0 || rank >= count)
+			throw new IllegalArgumentException("Rank "+rank+" is out of the histogram.");
+
+		long seen = 0;
+		int i = 0;
+		while ((seen += bins[i]) <= rank) ++i;
+		return (binValue(i));
+	}
+
+	///returns the median of the added values, NaN if there are none
+	public double median()
+	{
+		if (count == 0) return (Double.NaN);
+		return ( (valueAtRank((count-1)/2) + valueAtRank(count/2)) / 2.0 );
+	}
+
+	/**
+	 * Returns the median absolute deviation (from the median) of the added values,
+	 * NaN if there are none. Multiply it with 1.4826 to obtain a robust estimate
+	 * of the std. deviation of normally distributed values.
+	 */
+	public double MAD()
+	{
+		if (count == 0) return (Double.NaN);
+		final double median = median();
+		return ( (deviationAtRank(median,(count-1)/2) + deviationAtRank(median,count/2)) / 2.0 );
+	}
+
+	/**
+	 * Returns the absolute deviation from the \e center at the \e rank (0-based)
+	 * among the deviations of the added values sorted in the ascending order.
+	 *
+	 * The deviations grow in both directions away from the \e center, so the
+	 * two sequences of bins are merged (as in the merge sort) until the \e rank.
+	 */
+	private double deviationAtRank(final double center, final long rank)
+	{
+		//the first bin above the center, and the last bin not above it
+		int r = 0;
+		while (r < bins.length && binValue(r) <= center) ++r;
+		int l = r-1;
+
+		long seen = 0;
+		while (true)
+		{
+			while (l >= 0 && bins[l] == 0) --l;
+			while (r < bins.length && bins[r] == 0) ++r;
+
+			final double devL = l >= 0 ? center - binValue(l) : Double.POSITIVE_INFINITY;
+			final double devR = r < bins.length ? binValue(r) - center : Double.POSITIVE_INFINITY;
+
+			if (devL <= devR)
+			{
+				seen += bins[l--];
+				if (seen > rank) return (devL);
+			}
+			else
+			{
+				seen += bins[r++];
+				if (seen > rank) return (devR);
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Exact Euclidean distance transform of a label (marker) image that propagates,
+ * to every voxel, also the position of its nearest marker voxel (the so-called
+ * feature transform). The transform is separable: there is one pass per image
+ * axis and every pass runs the 1D lower envelope algorithm of Felzenszwalb and
+ * Huttenlocher (Distance Transforms of Sampled Functions, 2012) over all image
+ * lines along the axis. The lines are independent and are processed in parallel
+ * with the given number of threads (serially with one thread, which is to be used
+ * when the transform is itself a part of some already parallel processing).
+ *
+ * Anisotropic voxel sizes are taken into account. All distances are, however,
+ * given in the units of voxel size along the first axis (x-axis), that is,
+ * they are in voxels for isotropic images.
+ */
+public class LabelDistanceTransform
+{
+	/**
+	 * Computes the transform of the given label image, zero means no marker.
+	 * The \e resolution must provide voxel size for every image axis.
+	 * All available processors are used.
+	 */
+	public LabelDistanceTransform(final RandomAccessibleInterval<UnsignedShortType> img,
+	                              final double[] resolution)
+	{
+		this(img, resolution, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * The same as above but the transform, and later also the
+	 * NearestOtherMarkerDistances(), uses (at most) \e _noOfThreads threads.
+	 */
+	public LabelDistanceTransform(final RandomAccessibleInterval<UnsignedShortType> img,
+	                              final double[] resolution, final int _noOfThreads)
+	{
+		noOfThreads = Math.max(1, _noOfThreads);
+
+		final int D = img.numDimensions();
+		if (resolution == null || resolution.length < D)
+			throw new IllegalArgumentException("Label image has greater dimensionality"
+				+" than the available resolution data.");
+
+		dims = new int[D];
+		strides = new int[D];
+		weights2 = new double[D];
+		long size = 1;
+		for (int n=0; n < D; ++n)
+		{
+			dims[n] = (int)img.dimension(n);
+			strides[n] = (int)size;
+			weights2[n] = (resolution[n]/resolution[0]) * (resolution[n]/resolution[0]);
+			size *= img.dimension(n);
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Label image is too large.");
+
+		//copy the labels into the flat arrays, and init the transform:
+		//marker voxels are their own nearest marker voxels
+		labels   = new int[(int)size];
+		features = new int[(int)size];
+		sqDists  = new float[(int)size];
+
+		final Cursor<UnsignedShortType> cursor = Views.flatIterable(img).cursor();
+		for (int i=0; i < labels.length; ++i)
+		{
+			labels[i] = cursor.next().getInteger();
+			features[i] = labels[i] > 0 ? i : -1;
+			sqDists[i]  = labels[i] > 0 ? 0.f : Float.POSITIVE_INFINITY;
+		}
+
+		//the separable transform: one pass per axis, lines in parallel (in chunks)
+		for (int n=0; n < D; ++n)
+		{
+			final int axis = n;
+			final int noOfLines = labels.length / dims[axis];
+			final int noOfChunks = Math.min(noOfLines, 4*noOfThreads);
+			RunChunks(noOfChunks, chunk -> {
+				for (int line = chunk; line < noOfLines; line += noOfChunks)
+					TransformLine(axis, line);
+			} );
+		}
+	}
+
+	///the number of threads to use
+	private final int noOfThreads;
+
+	///image size
+	private final int[] dims;
+	///offsets in the flat arrays to move by one voxel along the axes
+	private final int[] strides;
+	///squared voxel sizes relative to the voxel size along the first axis
+	private final double[] weights2;
+
+	///markers of the voxels, in the flat order
+	private final int[] labels;
+	///for every voxel, (flat) index of its nearest marker voxel, or -1 if there is none
+	private final int[] features;
+	///for every voxel, squared distance to its nearest marker voxel
+	private final float[] sqDists;
+
+
+	///runs the \e task for every chunk 0,1,...,\e noOfChunks-1, in parallel with this.noOfThreads
+	private void RunChunks(final int noOfChunks, final IntConsumer task)
+	{
+		if (noOfThreads == 1 || noOfChunks < 2)
+		{
+			for (int chunk=0; chunk < noOfChunks; ++chunk) task.accept(chunk);
+			return;
+		}
+
+		final ExecutorService workers = Executors.newFixedThreadPool(Math.min(noOfThreads,noOfChunks));
+		try {
+			final List<Future<?>> tasks = new ArrayList<>(noOfChunks);
+			for (int chunk=0; chunk < noOfChunks; ++chunk)
+			{
+				final int c = chunk;
+				tasks.add( workers.submit( () -> task.accept(c) ) );
+			}
+
+			for (Future<?> f : tasks) TrackDataCache.waitFor(f);
+		}
+		catch (IOException e) {
+			//NB: should not happen as the tasks throw no checked exceptions
+			throw new IllegalStateException(e.getMessage());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+
+	///returns the flat index of the first voxel of the \e line along the \e axis
+	private int LineStart(final int axis, final int line)
+	{
+		return ( (line % strides[axis]) + (line / strides[axis]) * strides[axis]*dims[axis] );
+	}
+
+	/**
+	 * Updates the transform along one image line: every voxel takes over the
+	 * nearest marker voxel from that line voxel whose (so far) nearest marker
+	 * voxel is the closest one, which is the lower envelope of parabolas.
+	 */
+	private void TransformLine(final int axis, final int line)
+	{
+		final int start  = LineStart(axis, line);
+		final int stride = strides[axis];
+		final int n = dims[axis];
+		final double w2 = weights2[axis];
+
+		//input values along the line
+		final double[] f = new double[n];
+		final int[] fFeatures = new int[n];
+		for (int i=0; i < n; ++i)
+		{
+			f[i] = sqDists[start + i*stride];
+			fFeatures[i] = features[start + i*stride];
+		}
+
+		//the lower envelope: positions of the parabolas' vertices (v)
+		//and the ranges where the parabolas are the lowest ones (z)
+		final int[] v = new int[n];
+		final double[] z = new double[n+1];
+		int k = -1;
+		for (int q=0; q < n; ++q)
+		{
+			if (f[q] == Double.POSITIVE_INFINITY) continue;
+
+			//intersection with the so far last parabola of the envelope
+			double s = 0.;
+			while (k >= 0)
+			{
+				s = ((f[q] + w2*q*q) - (f[v[k]] + w2*v[k]*v[k])) / (2.0*w2*(q-v[k]));
+				if (s > z[k]) break;
+				--k;
+			}
+
+			++k;
+			v[k] = q;
+			z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+			z[k+1] = Double.POSITIVE_INFINITY;
+		}
+
+		//no marker voxel could have been reached by this line yet
+		if (k == -1) return;
+
+		//read out the envelope
+		k = 0;
+		for (int i=0; i < n; ++i)
+		{
+			while (z[k+1] < i) ++k;
+			sqDists[start + i*stride] = (float)(w2*(i-v[k])*(i-v[k]) + f[v[k]]);
+			features[start + i*stride] = fFeatures[v[k]];
+		}
+	}
+
+
+	///returns the distance to the nearest marker voxel of the voxel at the (flat) index \e i
+	public float getDistance(final int i)
+	{ return ( (float)Math.sqrt(sqDists[i]) ); }
+
+	///returns the marker of the nearest marker voxel of the voxel at the (flat) index \e i, or 0
+	public int getNearestMarker(final int i)
+	{ return ( features[i] > -1 ? labels[features[i]] : 0 ); }
+
+	///returns the distance between the two voxels given with their (flat) indices
+	public double Distance(int i, int j)
+	{
+		double dist = 0.;
+		for (int n=0; n < dims.length; ++n)
+		{
+			final int d = (i % dims[n]) - (j % dims[n]);
+			dist += weights2[n] * d*d;
+			i /= dims[n];
+			j /= dims[n];
+		}
+		return (Math.sqrt(dist));
+	}
+
+	/**
+	 * Returns, for every marker up to \e maxMarker (incl.), the distance between its
+	 * voxel and the closest voxel of any other marker (the distance of voxel centres).
+	 * Float.POSITIVE_INFINITY is returned for markers with no other marker around.
+	 *
+	 * The closest pair of voxels of two markers is found at the boundary of their
+	 * (discrete) Voronoi regions, which is where neighboring voxels have different
+	 * nearest markers. Every such neighboring pair gives the distance of its two
+	 * nearest marker voxels, and the smallest one is taken.
+	 */
+	public float[] NearestOtherMarkerDistances(final int maxMarker)
+	{
+		final float[] nearest = new float[maxMarker+1];
+		Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+
+		for (int n=0; n < dims.length; ++n)
+		{
+			if (dims[n] < 2) continue;
+
+			//the lines along the axis are processed in chunks in parallel,
+			//every chunk has its own results that are combined afterwards
+			final int axis = n;
+			final int noOfLines = labels.length / dims[axis];
+			final int noOfChunks = Math.min(noOfLines, 4*noOfThreads);
+			final float[][] chunksNearest = new float[noOfChunks][];
+
+			RunChunks(noOfChunks, chunk -> {
+				final float[] chunkNearest = new float[maxMarker+1];
+				Arrays.fill(chunkNearest, Float.POSITIVE_INFINITY);
+
+				for (int line = chunk; line < noOfLines; line += noOfChunks)
+				{
+					final int start = LineStart(axis, line);
+					for (int i=0; i < dims[axis]-1; ++i)
+					{
+						final int a = start + i*strides[axis];
+						final int b = a + strides[axis];
+						final int mA = getNearestMarker(a);
+						final int mB = getNearestMarker(b);
+						if (mA == mB || mA == 0 || mB == 0) continue;
+
+						final float dist = (float)Distance(features[a],features[b]);
+						if (mA <= maxMarker && dist < chunkNearest[mA]) chunkNearest[mA] = dist;
+						if (mB <= maxMarker && dist < chunkNearest[mB]) chunkNearest[mB] = dist;
+					}
+				}
+				chunksNearest[chunk] = chunkNearest;
+			} );
+
+			for (float[] chunkNearest : chunksNearest)
+				for (int i=0; i <= maxMarker; ++i)
+					nearest[i] = Math.min(nearest[i], chunkNearest[i]);
+		}
+
+		return (nearest);
+	}
+}
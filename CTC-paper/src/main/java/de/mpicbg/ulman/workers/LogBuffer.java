@@ -0,0 +1,75 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.scijava.log.AbstractLogService;
+import org.scijava.log.LogMessage;
+import org.scijava.log.LogService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LogService that does not log immediately but keeps the messages
+ * until flush() is called, which sends them to the underlying (real) LogService.
+ * This way, measures that run concurrently can each log into their own buffer
+ * and the buffers can be flushed one after another, keeping the reports readable.
+ *
+ * The buffer starts with the log level of the real LogService, the level and
+ * the listeners are otherwise managed by the buffer itself.
+ */
+public class LogBuffer extends AbstractLogService
+{
+	///the real log
+	private final LogService log;
+
+	/** One buffered message. */
+	private static class Entry
+	{
+		Entry(final int level, final String text, final Throwable throwable)
+		{
+			m_level = level;
+			m_text = text;
+			m_throwable = throwable;
+		}
+
+		final int m_level;
+		final String m_text;
+		final Throwable m_throwable;
+	}
+
+	///the buffered messages
+	private final List<Entry> entries = new ArrayList<>();
+
+	public LogBuffer(final LogService _log)
+	{
+		//check that non-null was given for _log!
+		if (_log == null)
+			throw new NullPointerException("No log service supplied.");
+
+		log = _log;
+		setLevel(log.getLevel());
+	}
+
+	@Override
+	protected synchronized void messageLogged(final LogMessage message)
+	{
+		entries.add(new Entry(message.level(), message.text(), message.throwable()));
+	}
+
+	///sends all buffered messages to the real log, and empties the buffer
+	public synchronized void flush()
+	{
+		for (Entry e : entries)
+			log.log(e.m_level, e.m_text, e.m_throwable);
+
+		entries.clear();
+	}
+}
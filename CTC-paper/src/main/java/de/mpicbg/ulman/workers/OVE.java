@@ -11,10 +11,9 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameOverlaps;
 
 public class OVE extends AbstractDSmeasure
 {
@@ -24,6 +23,42 @@ public class OVE extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
+	/// The average OVE of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final FrameOverlaps[] overlapsFG = data.overlapsFG;
+
+		//go over all FG objects and calc their OVEs
+		double noFGs = 0.0;
+		double l_ove = 0.0;
+
+		//over all time points (NB: no overlap possible for time==0)
+		for (int time=1; time < overlapsFG.length; ++time)
+		{
+			if (weights[time] == 0.0) continue;
+
+			final FrameObjects objects = objectsFG[time];
+			final FrameOverlaps overlaps = overlapsFG[time];
+
+			//over all objects (that have their overlaps)
+			double f_ove = 0.0;
+			for (int i=0; i < overlaps.size(); ++i)
+			{
+				final long volume = objects.m_volume[ objects.indexOf(overlaps.m_labels[i]) ];
+				f_ove += (double)overlaps.m_overlap[i] / (double)volume;
+			}
+
+			l_ove += weights[time] * f_ove;
+			noFGs += weights[time] * overlaps.size();
+		}
+
+		//finish the calculation of the average
+		return (noFGs > 0 ? l_ove / noFGs : Double.NaN);
+	}
+
 	/// This is the main OVE calculator.
 	@Override
 	protected double calculateBottomStage()
@@ -31,38 +66,21 @@ public class OVE extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the OVE bottom part...");
 		double ove = 0.0;
+		double oveVar = 0.0;
 		long videoCnt = 0; //how many videos were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. OVEs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
-			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Long>> volumeFG = data.volumeFG;
-			final Vector<HashMap<Integer,Long>> overlapFG = data.overlapFG;
-
-			//go over all FG objects and calc their OVEs
-			long noFGs = 0;
-			double l_ove = 0.0;
-
-			//over all time points (NB: no overlap possible for time==0)
-			for (int time=1; time < overlapFG.size(); ++time)
-			{
-				//over all objects
-				for (Integer fgID : overlapFG.get(time).keySet())
-				{
-					l_ove += (double)overlapFG.get(time).get(fgID) / (double)volumeFG.get(time).get(fgID);
-					++noFGs;
-				}
-			}
-
-			//finish the calculation of the average
-			if (noFGs > 0)
+			final double l_ove = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_ove))
 			{
-				l_ove /= (double)noFGs;
-				log.info("OVE for video "+data.video+": "+l_ove);
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("OVE for video "+data.video+": "+l_ove+reportStdErr(l_stdErr));
 
 				ove += l_ove;
+				oveVar += l_stdErr * l_stdErr;
 				++videoCnt;
 			}
 			else
@@ -70,10 +88,12 @@ public class OVE extends AbstractDSmeasure
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			ove /= (double)videoCnt;
-			log.info("OVE for dataset: "+ove);
+			stdErr = Math.sqrt(oveVar) / (double)videoCnt;
+			log.info("OVE for dataset: "+ove+reportStdErr(stdErr));
 		}
 		else
 			log.info("OVE for dataset: Couldn't calculate average OVE because there are missing labels.");
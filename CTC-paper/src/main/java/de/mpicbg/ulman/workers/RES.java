@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class RES extends AbstractDSmeasure
 {
@@ -31,33 +29,38 @@ public class RES extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the RES bottom part...");
 		double res = 0.0;
-		long fgCnt = 0; //how many videos were processed
+		double fgCnt = 0; //how many objects were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. RESes and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
 			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Long>> volumeFG = data.volumeFG;
+			final FrameObjects[] objectsFG = data.objectsFG;
 
 			//go over all FG objects and calc their RESs
-			long noFGs = 0;
+			double noFGs = 0.0;
 			double l_res = 0.0;
-			//over all time points
-			for (int time=0; time < volumeFG.size(); ++time)
+			//over all (evaluated) time points
+			for (int time=0; time < objectsFG.length; ++time)
 			{
+				final double weight = data.frameWeights[time];
+				if (weight == 0.0) continue;
+
 				//over all objects
-				for (Long vol : volumeFG.get(time).values())
-				{
-					l_res += (double)vol;
-					++noFGs;
-				}
+				double f_res = 0.0;
+				final long[] volumeFG = objectsFG[time].m_volume;
+				for (int i=0; i < volumeFG.length; ++i)
+					f_res += (double)volumeFG[i];
+
+				l_res += weight * f_res;
+				noFGs += weight * volumeFG.length;
 			}
 
 			//finish the calculation of the average
 			if (noFGs > 0)
 			{
-				log.info("RES for video "+data.video+": "+l_res/(double)noFGs);
+				log.info("RES for video "+data.video+": "+l_res/noFGs);
 
 				res += l_res;
 				fgCnt += noFGs;
@@ -69,7 +72,7 @@ public class RES extends AbstractDSmeasure
 		//summarize over all datasets:
 		if (fgCnt > 0)
 		{
-			res /= (double)fgCnt;
+			res /= fgCnt;
 			log.info("RES for dataset: "+res);
 		}
 		else
@@ -26,6 +26,13 @@ import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.util.stream.Stream;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
 
@@ -57,25 +64,37 @@ public class SEG
 
 	///the to-be-calculated measure value
 	private double seg = 0.0;
+	///the number of GT labels over which the this.seg is summed
+	private long counter = 0;
 
+	/** Represents one annotation file from the SEG folder. */
+	public class AnnotationFile
+	{
+		AnnotationFile(final Path path, final int time, final int slice)
+		{
+			m_path  = path;
+			m_time  = time;
+			m_slice = slice;
+		}
+
+		///the file itself
+		final Path m_path;
+		///the time point it annotates
+		final int m_time;
+		///the slice it annotates, or -1 if it annotates the whole image
+		final int m_slice;
+	}
 
-	//---------------------------------------------------------------------/
 	/**
-	 * This is the main SEG calculator.
+	 * Scans the SEG folder for the man_seg* files, and groups them by time point
+	 * (sorted in ascending order) and, within the time point, by slice. This way,
+	 * every RES image needs to be read only once even if several of its slices
+	 * are annotated.
 	 */
-	public double calculate(final String gtPath, final String resPath)
-	throws IOException, ImgIOException
+	public TreeMap<Integer,List<AnnotationFile>> CollectAnnotationFiles(final String gtPath)
+	throws IOException
 	{
-		log.info(" GT path: "+gtPath+"/SEG");
-		log.info("RES path: "+resPath);
-
-		//instantiate the cache because it has functions we will use
-		final TrackDataCache cache = new TrackDataCache(log);
-
-		//do the bottom stage
-		//DEBUG//log.info("Computing the SEG completely...");
-		seg = 0.0;
-		long counter = 0;
+		final TreeMap<Integer,List<AnnotationFile>> annotations = new TreeMap<>();
 
 		//scan the SEG folder to get a list of files to process,
 		//NB: the processing order of the files is not important
@@ -120,46 +139,32 @@ public class SEG
 				throw new IllegalArgumentException("Error extracting time point information"
 					+" from file "+filename+"!");
 
-			//read the image pair
-			IterableInterval<UnsignedShortType> gt_img
-				= cache.ReadImageG16(file.toString());
-
-			RandomAccessibleInterval<UnsignedShortType> res_img
-				= cache.ReadImageG16(String.format("%s/mask%03d.tif",resPath,time));
-
-			//check that slice "extracting" can make sense (the 3rd dim must be present)
-			if (slice > -1 && res_img.numDimensions() <= 2)
-				throw new IllegalArgumentException("GT image at time "+time
-					+" specifies slice but the image is not 3D.");
-
-			/*
-			for (int n=0; n < 2; ++n)
-				if (gt_img.dimension(n) != res_img.dimension(n))
-					throw new IllegalArgumentException("Image pair at time"+time
-						+" does not consist of images of the same x,y size.");
-			*/
-
-			//should extract slice? use imglib2 views instead
-			if (slice > -1)
+			List<AnnotationFile> list = annotations.get(time);
+			if (list == null)
 			{
-				res_img = Views.hyperSlice(res_img, 2, slice);
-				log.info("Considering only slice "+slice);
+				list = new ArrayList<>();
+				annotations.put(time, list);
 			}
+			list.add(new AnnotationFile(file, time, slice));
+		}
+		fileList.close();
 
-			//now, both images must of the same size...
-			for (int n=0; n < gt_img.numDimensions(); ++n)
-				if (gt_img.dimension(n) != res_img.dimension(n))
-					throw new IllegalArgumentException("Image pair at time"+time
-						+" does not consist of images of the same size.");
+		//sort by slices within time points
+		for (List<AnnotationFile> list : annotations.values())
+			list.sort( (a,b) -> Integer.compare(a.m_slice, b.m_slice) );
 
-			cache.ClassifyLabels(gt_img, res_img);
+		return (annotations);
+	}
 
-			//after ClassifyLabels(), the voxel-matching info is here:
-			final TemporalLevel level = cache.levels.lastElement();
 
-			//calculate Jaccard for matching markers at this 'level'/time point
-			if (doLogReports)
-				log.info("----------T="+time+" Z="+(slice==-1?0:slice)+"----------");
+	/** Jaccard indices of all GT labels of one annotation file. */
+	class AnnotationResult
+	{
+		AnnotationResult(final AnnotationFile file, final TemporalLevel level)
+		{
+			m_file = file;
+			m_gt_lab  = level.m_gt_lab;
+			m_jaccard = new double[level.m_gt_lab.length];
 
 			//over all GT labels
 			final int m_match_lineSize = level.m_gt_lab.length;
@@ -180,24 +185,267 @@ public class SEG
 					          + (double)level.m_res_size[level.m_gt_match[i]] - acc;
 				}
 
+				m_jaccard[i] = acc;
+			}
+		}
+
+		///the evaluated annotation
+		final AnnotationFile m_file;
+		///the GT labels found in the annotation
+		final int[] m_gt_lab;
+		///the Jaccard index of the corresponding GT label
+		final double[] m_jaccard;
+	}
+
+	///the number of threads to use, every annotated time point is an independent task
+	public int noOfThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Calculation option: when only individual slices of the RES image are annotated,
+	 * read only these slices (with the TiffPlaneReader) instead of the whole RES image.
+	 */
+	public boolean doReadOnlyAnnotatedSlices = true;
+
+	/**
+	 * Evaluates all annotations of the given time point against the RES image
+	 * of this time point. The RES image is read only once. The function does
+	 * not alter the \e cache (it only uses its image reading and label classifying
+	 * functions), so it can be called in parallel.
+	 */
+	List<AnnotationResult> EvaluateTimePoint(final TrackDataCache cache,
+		final String resPath, final int time, final List<AnnotationFile> files)
+	throws IOException
+	{
+		final String resFile = String.format("%s/mask%03d.tif",resPath,time);
+
+		//are only individual slices annotated? then read only these
+		if (doReadOnlyAnnotatedSlices && files.stream().allMatch(f -> f.m_slice > -1))
+		{
+			//NB: only problems of reading the RES slices make us fall back to reading
+			//    the whole RES image, problems with GT images are reported to the caller
+			List<RandomAccessibleInterval<UnsignedShortType>> res_imgs = null;
+			try (TiffPlaneReader reader = new TiffPlaneReader(resFile))
+			{
+				//NB: if the image is not 3D, the whole image is read (and complained about) below
+				if (reader.getNumberOfPlanes() > 1)
+				{
+					res_imgs = new ArrayList<>(files.size());
+					for (AnnotationFile file : files)
+					{
+						res_imgs.add(reader.ReadPlaneG16(file.m_slice));
+						log.info("Loaded slice "+file.m_slice+" of image: "+resFile);
+					}
+				}
+			}
+			catch (IOException e) {
+				log.info("Cannot read individual slices ("+e.getMessage()+"), reading the whole image.");
+				res_imgs = null;
+			}
+
+			if (res_imgs != null)
+			{
+				final List<AnnotationResult> results = new ArrayList<>(files.size());
+				for (int i=0; i < files.size(); ++i)
+					results.add(EvaluateAnnotation(cache, files.get(i), res_imgs.get(i)));
+				return (results);
+			}
+		}
+
+		//read the RES image once for all annotations of this time point
+		return EvaluateTimePoint(cache, cache.ReadImageG16(resFile), time, files);
+	}
+
+	///the same as above but with the RES image of this time point given already
+	List<AnnotationResult> EvaluateTimePoint(final TrackDataCache cache,
+		final RandomAccessibleInterval<UnsignedShortType> res_vol,
+		final int time, final List<AnnotationFile> files)
+	throws IOException
+	{
+		final List<AnnotationResult> results = new ArrayList<>(files.size());
+
+		for (AnnotationFile file : files)
+		{
+			final int slice = file.m_slice;
+			RandomAccessibleInterval<UnsignedShortType> res_img = res_vol;
+
+			//check that slice "extracting" can make sense (the 3rd dim must be present)
+			if (slice > -1 && res_img.numDimensions() <= 2)
+				throw new IllegalArgumentException("GT image at time "+time
+					+" specifies slice but the image is not 3D.");
+
+			//should extract slice? use imglib2 views instead
+			if (slice > -1)
+				res_img = Views.hyperSlice(res_img, 2, slice);
+
+			results.add(EvaluateAnnotation(cache, file, res_img));
+		}
+
+		return (results);
+	}
+
+	///evaluates the annotation \e file against the corresponding (already sliced) RES image
+	private AnnotationResult EvaluateAnnotation(final TrackDataCache cache,
+		final AnnotationFile file, final RandomAccessibleInterval<UnsignedShortType> res_img)
+	throws IOException
+	{
+		//read the GT image
+		final IterableInterval<UnsignedShortType> gt_img
+			= cache.ReadImageG16(file.m_path.toString());
+
+		//now, both images must of the same size...
+		for (int n=0; n < gt_img.numDimensions(); ++n)
+			if (gt_img.dimension(n) != res_img.dimension(n))
+				throw new IllegalArgumentException("Image pair at time"+file.m_time
+					+" does not consist of images of the same size.");
+
+		return new AnnotationResult(file, cache.ClassifyLabels(gt_img, res_img, true, file.m_time));
+	}
+
+
+	//---------------------------------------------------------------------/
+	/**
+	 * This is the main SEG calculator. The annotated time points are evaluated
+	 * in parallel (with this.noOfThreads), the results are, however, collected
+	 * and reported in the order of time points and slices, so the outcome does
+	 * not depend on the number of threads used.
+	 */
+	public double calculate(final String gtPath, final String resPath)
+	throws IOException, ImgIOException
+	{
+		log.info(" GT path: "+gtPath+"/SEG");
+		log.info("RES path: "+resPath);
+
+		//instantiate the cache because it has functions we will use
+		final TrackDataCache cache = new TrackDataCache(log);
+
+		//do the bottom stage
+		//DEBUG//log.info("Computing the SEG completely...");
+		seg = 0.0;
+		counter = 0;
+
+		//get the list of files to process, grouped by time points
+		final TreeMap<Integer,List<AnnotationFile>> annotations = CollectAnnotationFiles(gtPath);
+
+		//every time point is an independent task
+		final List<Future<List<AnnotationResult>>> tasks = new ArrayList<>(annotations.size());
+		final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1,noOfThreads));
+		try {
+			for (Map.Entry<Integer,List<AnnotationFile>> annotation : annotations.entrySet())
+			{
+				final int time = annotation.getKey();
+				final List<AnnotationFile> files = annotation.getValue();
+				tasks.add( workers.submit( () -> EvaluateTimePoint(cache, resPath, time, files) ) );
+			}
+
+			//collect the results in the order of time points
+			for (Future<List<AnnotationResult>> task : tasks)
+				AccumulateResults(TrackDataCache.waitFor(task));
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		return FinalizeSEG();
+	}
+
+	///adds the results into this.seg (and this.counter), and reports them if requested
+	private void AccumulateResults(final List<AnnotationResult> results)
+	{
+		for (AnnotationResult result : results)
+		{
+			final int time  = result.m_file.m_time;
+			final int slice = result.m_file.m_slice;
+			if (slice > -1) log.info("Considering only slice "+slice);
+
+			//calculate Jaccard for matching markers at this 'level'/time point
+			if (doLogReports)
+				log.info("----------T="+time+" Z="+(slice==-1?0:slice)+"----------");
+
+			for (int i=0; i < result.m_gt_lab.length; ++i)
+			{
 				//update overall stats
-				seg += acc;
+				seg += result.m_jaccard[i];
 				++counter;
 
 				if (doLogReports)
-					log.info(String.format("GT_label=%d J=%.6g", level.m_gt_lab[i], acc));
+					log.info(String.format("GT_label=%d J=%.6g", result.m_gt_lab[i], result.m_jaccard[i]));
 			}
-
-			//to be on safe side (with memory)
-			gt_img = null;
-			res_img = null;
 		}
-		fileList.close();
+	}
 
+	///turns the accumulated this.seg into the SEG value, and reports it
+	private double FinalizeSEG()
+	{
 		seg /= (double)counter;
 
 		log.info("---");
 		log.info("SEG: "+seg);
 		return (seg);
 	}
+
+
+	//---------------------------------------------------------------------/
+	//the SEG evaluation shared with the TRA upper stage:
+
+	///annotations still waiting for their evaluation in the shared pass
+	private TreeMap<Integer,List<AnnotationFile>> sharedAnnotations = null;
+	///results of the evaluations in the shared pass, ordered by time points
+	private TreeMap<Integer,List<AnnotationResult>> sharedResults = null;
+
+	/**
+	 * Prepares for the SEG evaluation that happens along with the classification
+	 * of the TRA markers, that is, within TrackDataCache.calculate(gtPath,resPath,this).
+	 * The cache then calls EvaluateSharedTimePoint() with every RES image it reads,
+	 * so that every RES image is read only once for both SEG and TRA.
+	 * Call FinishSharedPass() afterwards to obtain the SEG value.
+	 */
+	public void StartSharedPass(final String gtPath)
+	throws IOException
+	{
+		log.info(" GT path: "+gtPath+"/SEG");
+		sharedAnnotations = CollectAnnotationFiles(gtPath);
+		sharedResults = new TreeMap<>();
+	}
+
+	///evaluates annotations of the given time point (if there are any) against the given RES image
+	void EvaluateSharedTimePoint(final TrackDataCache cache, final int time,
+		final RandomAccessibleInterval<UnsignedShortType> res_img)
+	throws IOException
+	{
+		if (sharedAnnotations == null)
+			throw new IllegalStateException("SEG shared pass has not been started.");
+
+		final List<AnnotationFile> files = sharedAnnotations.remove(time);
+		if (files != null)
+			sharedResults.put(time, EvaluateTimePoint(cache, res_img, time, files));
+	}
+
+	/**
+	 * Finishes the shared pass: evaluates annotations that were not reached
+	 * by it (if there is a SEG annotation without its TRA counterpart), and
+	 * returns the SEG value.
+	 */
+	public double FinishSharedPass(final String resPath)
+	throws IOException
+	{
+		if (sharedAnnotations == null)
+			throw new IllegalStateException("SEG shared pass has not been started.");
+
+		log.info("RES path: "+resPath);
+
+		final TrackDataCache cache = new TrackDataCache(log);
+		for (Map.Entry<Integer,List<AnnotationFile>> annotation : sharedAnnotations.entrySet())
+			sharedResults.put(annotation.getKey(),
+				EvaluateTimePoint(cache, resPath, annotation.getKey(), annotation.getValue()));
+
+		seg = 0.0;
+		counter = 0;
+		for (List<AnnotationResult> results : sharedResults.values())
+			AccumulateResults(results);
+
+		sharedAnnotations = null;
+		sharedResults = null;
+
+		return FinalizeSEG();
+	}
 }
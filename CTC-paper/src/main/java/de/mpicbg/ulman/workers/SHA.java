@@ -11,10 +11,11 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
+import io.scif.img.ImgIOException;
+import java.io.IOException;
 
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class SHA extends AbstractDSmeasure
 {
@@ -24,7 +25,48 @@ public class SHA extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
-	/// This is the main SHA calculator.
+	/// Makes sure the surfaces are computed should a new cache be computed.
+	@Override
+	protected void calculateUpperStage(final String imgPath, final double[] resolution,
+	                                   final String annPath,
+	                                   final ImgQualityDataCache _cache)
+	throws IOException, ImgIOException
+	{
+		if (_cache != null && _cache.validFor(imgPath,annPath))
+			super.calculateUpperStage(imgPath, resolution, annPath, _cache);
+		else
+		{
+			//a cache with the same flags as _cache, and with the surfaces
+			final ImgQualityDataCache flags = new ImgQualityDataCache(log, _cache);
+			flags.doShapePrecalculation = true;
+			super.calculateUpperStage(imgPath, resolution, annPath, flags);
+		}
+	}
+
+	/**
+	 * Sphericity of an object of the given real \e volume and real \e surface,
+	 * that is, the ratio of surface of a ball of the same volume to \e surface.
+	 * For 2D objects (\e dimensionality == 2), it is the circularity calculated
+	 * from the object's real area (\e volume) and perimeter (\e surface).
+	 */
+	public static double Sphericity(final double volume, final double surface,
+	                                final int dimensionality)
+	{
+		if (dimensionality == 2)
+			return ( 4.0*Math.PI*volume / (surface*surface) );
+		else
+			return ( Math.cbrt(Math.PI) * Math.pow(6.0*volume, 2.0/3.0) / surface );
+	}
+
+	/**
+	 * This is the main SHA calculator: the average sphericity of all objects.
+	 *
+	 * NB: The surfaces are sums of the areas of boundary voxel faces (see
+	 * ImgQualityDataCache.FrameObjects.m_surface), which overestimates
+	 * the surfaces of smooth objects, e.g., a digitized ball has sphericity
+	 * of about 2/3 instead of 1. The SHA is thus meant for comparisons of
+	 * datasets rather than as an absolute value.
+	 */
 	@Override
 	protected double calculateBottomStage()
 	{
@@ -38,55 +80,47 @@ public class SHA extends AbstractDSmeasure
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
 			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Long>> volumeFG = data.volumeFG;
+			final FrameObjects[] objectsFG = data.objectsFG;
 
-			//go over all FG objects and calc their RESs
-			long noFGs = 0;
+			//go over all FG objects and calc their SHAs
+			double noFGs = 0;
 			double l_sha = 0.0;
-			//over all time points
-			for (int time=0; time < volumeFG.size(); ++time)
+			//over all (evaluated) time points
+			for (int time=0; time < objectsFG.length; ++time)
 			{
+				final double weight = data.frameWeights[time];
+				if (weight == 0.0) continue;
+
+				//skip this frame if the surfaces were not computed
+				final long[] volumeFG = objectsFG[time].m_volume;
+				final double[] surfaceFG = objectsFG[time].m_surface;
+				if (surfaceFG == null) continue;
+
 				//over all objects
-				for (Long vol : volumeFG.get(time).values())
+				for (int i=0; i < volumeFG.length; ++i)
 				{
-					l_sha += (double)vol;
-					++noFGs;
+					if (surfaceFG[i] == 0.0) continue;
+
+					l_sha += weight * Sphericity(data.getRealVolume(volumeFG[i]),
+					                             surfaceFG[i], data.dimensionality);
+					noFGs += weight;
 				}
 			}
 
 			//finish the calculation of the average
 			if (noFGs > 0)
 			{
-				l_sha /= (double)noFGs;
-				log.info("RES for video "+data.video+": "+l_sha);
+				l_sha /= noFGs;
+				log.info("SHA for video "+data.video+": "+l_sha);
 
 				sha += l_sha;
 				++videoCnt;
 			}
 			else
-				log.info("RES for video "+data.video+": Couldn't calculate average RES because there are no cells labelled.");
+				log.info("SHA for video "+data.video+": Couldn't calculate average SHA because there are no cells labelled"
+				        +" (or their surfaces were not computed).");
 		}
 
-
-
-		//NOTES:
-		//use imagej-ops to convert RAI to DefaultMesh
-		//via: src/main/java/net/imagej/ops/geom/geom3d/DefaultMarchingCubes.java
-		// (need to figure out how binarization is achieved -- see .isolevel and interpolatorClass)
-		//
-		//That seems to be an implementation of http://paulbourke.net/geometry/polygonise/
-		//(which is likely a defacto standard approach, 1st hit on Google at least)
-		//
-		//once image is meshified, go through all facets of the mesh and stretch vertices
-		//according to the current resolution, call mesh.getSurfaceArea() afterwards
-		//
-		//(alternatively, make a copy of the MC class, and change it by
-		// incorporating the resolution directly, see L178-L186)
-		//
-		//some MC is in 3D_Viewer by Ulrik, some MC is done Kyle...
-		//see: https://gitter.im/fiji/fiji/archives/2016/01/22
-
-
 		//summarize over all datasets:
 		if (videoCnt > 0)
 		{
@@ -11,10 +11,8 @@ package de.mpicbg.ulman.workers;
 
 import org.scijava.log.LogService;
 
-import java.util.Vector;
-import java.util.HashMap;
-
 import de.mpicbg.ulman.workers.ImgQualityDataCache.videoDataContainer;
+import de.mpicbg.ulman.workers.ImgQualityDataCache.FrameObjects;
 
 public class SNR extends AbstractDSmeasure
 {
@@ -24,6 +22,39 @@ public class SNR extends AbstractDSmeasure
 
 
 	//---------------------------------------------------------------------/
+	/// The average SNR of the objects of the frames with non-zero \e weights.
+	@Override
+	protected double calculateVideo(final videoDataContainer data, final double[] weights)
+	{
+		//shadows of the/short-cuts to the cache data
+		final FrameObjects[] objectsFG = data.objectsFG;
+		final double[] avgBG = data.avgBG;
+		final double[] stdBG = data.stdBG;
+
+		//go over all FG objects and calc their SNRs
+		double noFGs = 0.;
+		double l_snr = 0.; //local snr
+
+		//over all time points
+		for (int time=0; time < objectsFG.length; ++time)
+		{
+			//skip this frame if we cannot compute anything on it
+			if (weights[time] == 0.0 || stdBG[time] == 0.0) continue;
+
+			//over all objects, in fact use their avg intensities
+			double f_snr = 0.;
+			final double[] avgFG = objectsFG[time].m_avg;
+			for (int i=0; i < avgFG.length; ++i)
+				f_snr += Math.abs(avgFG[i] - avgBG[time]) / stdBG[time];
+
+			l_snr += weights[time] * f_snr;
+			noFGs += weights[time] * avgFG.length;
+		}
+
+		//finish the calculation of the local average SNR
+		return (noFGs > 0 ? l_snr / noFGs : Double.NaN);
+	}
+
 	/// This is the main SNR calculator.
 	@Override
 	protected double calculateBottomStage()
@@ -31,42 +62,21 @@ public class SNR extends AbstractDSmeasure
 		//do the bottom stage
 		//DEBUG//log.info("Computing the SNR bottom part...");
 		double snr = 0.0;
+		double snrVar = 0.0;
 		long videoCnt = 0; //how many videos were processed
 
 		//go over all encountered videos and calc
 		//their respective avg. SNRs and average them
 		for (videoDataContainer data : cache.cachedVideoData)
 		{
-			//shadows of the/short-cuts to the cache data
-			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
-			final Vector<Double> avgBG = data.avgBG;
-			final Vector<Double> stdBG = data.stdBG;
-
-			//go over all FG objects and calc their SNRs
-			long noFGs = 0;
-			double l_snr = 0.; //local snr
-
-			//over all time points
-			for (int time=0; time < avgFG.size(); ++time)
-			{
-				//skip this frame if we cannot compute anything on it
-				if (stdBG.get(time) == 0.0) continue;
-
-				//over all objects, in fact use their avg intensities
-				for (Double fg : avgFG.get(time).values())
-				{
-					l_snr += Math.abs(fg - avgBG.get(time)) / stdBG.get(time);
-					++noFGs;
-				}
-			}
-
-			//finish the calculation of the local average SNR
-			if (noFGs > 0)
+			final double l_snr = calculateVideo(data, data.frameWeights);
+			if (!Double.isNaN(l_snr))
 			{
-				l_snr /= (double)noFGs;
-				log.info("SNR for video "+data.video+": "+l_snr);
+				final double l_stdErr = calculateVideoStdErr(data);
+				log.info("SNR for video "+data.video+": "+l_snr+reportStdErr(l_stdErr));
 
 				snr += l_snr;
+				snrVar += l_stdErr * l_stdErr;
 				++videoCnt;
 			}
 			else
@@ -74,10 +84,12 @@ public class SNR extends AbstractDSmeasure
 		}
 
 		//summarize over all datasets:
+		stdErr = Double.NaN;
 		if (videoCnt > 0)
 		{
 			snr /= (double)videoCnt;
-			log.info("SNR for dataset: "+snr);
+			stdErr = Math.sqrt(snrVar) / (double)videoCnt;
+			log.info("SNR for dataset: "+snr+reportStdErr(stdErr));
 		}
 		else
 			log.info("SNR for dataset: Couldn't calculate average SNR because there are missing labels.");
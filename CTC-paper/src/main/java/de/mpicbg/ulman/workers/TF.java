@@ -17,9 +17,14 @@ import java.io.IOException;
 import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 import de.mpicbg.ulman.workers.TrackDataCache.Track;
 import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
+import de.mpicbg.ulman.workers.TrackDataCache.MatchRuns;
 
 public class TF
 {
@@ -51,6 +56,19 @@ public class TF
 	private double tf = 0.0;
 
 
+	/**
+	 * Calculate correctly reconstructed fractions of entire tracks.
+	 * The \e cache must be given (in contrast to the other variant of this function)
+	 * as this function may be called from outside of this.calculate().
+	 */
+	public void CalcFRs(final TrackDataCache _cache,
+		final Map<Integer,Float> gt_startingRatio,
+		final Map<Integer,Float> gt_followedRatio)
+	{
+		cache = _cache;
+		CalcFRs(cache.levels, cache.gt_tracks, cache.res_tracks, gt_startingRatio, gt_followedRatio);
+	}
+
 	///calculate correctly reconstructed fractions of entire tracks
 	public void CalcFRs(final Vector<TemporalLevel> levels,
 		final Map<Integer,Track> gt_tracks,
@@ -83,92 +101,43 @@ public class TF
 			++i;
 		}
 
-		//now, over all RES tracks and look for appropriate, not yet reconstructed GT track
-		//for (Track res_track : res_tracks.values())
+		//index of the GT IDs in the gt_ids[]
+		final HashMap<Integer,Integer> gt_idx = new HashMap<>();
+		for (i = 0; i < gt_ids.length; ++i) gt_idx.put(gt_ids[i], i);
+
+		//RES tracks in defined order (from the smallest to the largest ID)
 		sortedIDs = new Vector<>(res_tracks.keySet());
 		sortedIDs.sort(null);
-		for (Integer id : sortedIDs)
-		{
-			final Track res_track = res_tracks.get(id);
 
-			//scan over all GT tracks ...
-			for (i = 0; i < gt_correct.length; ++i)
+		//first, find (in parallel) how well every RES track follows its candidate
+		//GT tracks, the attempts are independent of the other RES tracks...
+		final MatchRuns runs = cache.getMatchRuns();
+		final List<List<Attempt>> attempts = sortedIDs.parallelStream()
+			.map( id -> FindAttempts(res_tracks.get(id), runs, gt_tracks, gt_ids, gt_idx) )
+			.collect(Collectors.toList());
+
+		//...and second, go over all RES tracks and their attempts in the very
+		//order of the RES and GT IDs as the reconstructed GT tracks are not
+		//considered any further (and a RES track stops with the first GT track
+		//it reconstructs)
+		for (List<Attempt> res_attempts : attempts)
+		{
+			for (Attempt attempt : res_attempts)
 			{
+				i = attempt.m_gtIdx;
+
 				//... to find not yet reconstructed GT track ...
 				if (!gt_correct[i])
 				{
-					//... to see how far we can reconstruct it with this RES track
-					//
 					//so far the best progress
 					float bestStartPos = gt_startingRatio.get(gt_ids[i]);
 					float bestFraction = gt_followedRatio.get(gt_ids[i]);
 
-					//current progress
-					int res_progress = 0;
-
-					//max progress possible
-					final int gt_trackLength = gt_tracks.get(gt_ids[i]).m_end
-					                         - gt_tracks.get(gt_ids[i]).m_begin +1;
-					final int gtStart = gt_tracks.get(gt_ids[i]).m_begin;
-
-					//scan given RES track to see how well it follows the selected GT
-					int j = res_track.m_begin;
-					while (j <= res_track.m_end)
-					{
-						if (cache.UniqueMatch(gt_ids[i], res_track.m_id, levels.get(j)))
-						{
-							//we have a match at time point j
-							++res_progress;
-						}
-						else
-						{
-							//we do not have a match
-							//
-							//check this recent following attempt,
-							//and possibly update with this attempt
-							final float curFraction=(float)res_progress/(float)gt_trackLength;
-							if (curFraction > bestFraction)
-							{
-								//j current time when following got broken, at this moment res_progress frames
-								//were discovered... j-res_progress is thus time we started this discovery
-								//minus further the gtStart gives distance from the GT track beginning,
-								//which is normalized by its (GT) length...
-								bestStartPos=(float)(j-gtStart -res_progress)/(float)gt_trackLength;
-								bestFraction=curFraction;
-
-								//REMOVE ME, DEBUG
-								if (bestStartPos > 1.0f)
-								{
-									//hmm... something is wrong, debug me
-									log.info("m bSP="+bestStartPos+": j="+j
-									        +", rP="+res_progress+", b="+res_track.m_begin
-									        +", e="+res_track.m_end
-									        +", gtLen="+gt_trackLength);
-								}
-							}
-
-							//reset the current progress
-							res_progress=0;
-						}
-
-						++j;
-					}
-
-					//check and possibly update with this attempt
-					final float curFraction=(float)res_progress/(float)gt_trackLength;
-					if (curFraction > bestFraction)
+					//update with this attempt
+					if (attempt.m_fraction > bestFraction)
 					{
-						bestStartPos=(float)(j-gtStart -res_progress)/(float)gt_trackLength;
-						bestFraction=curFraction;
-
-						//REMOVE ME, DEBUG
-						if (bestStartPos > 1.0f)
-						{
-							log.info("e bSP="+bestStartPos+": j="+j
-							        +", rP="+res_progress+", b="+res_track.m_begin
-							        +", e="+res_track.m_end
-							        +", gtLen="+gt_trackLength);
-						}
+						bestStartPos = attempt.m_startPos;
+						bestFraction = attempt.m_fraction;
 					}
 
 					if (bestFraction > 0.999f) //just to avoid float-point imprecisions
@@ -192,6 +161,86 @@ public class TF
 		}
 	}
 
+	/** The best attempt of a RES track to follow a GT track. */
+	private static class Attempt
+	{
+		Attempt(final int gtIdx, final float startPos, final float fraction)
+		{
+			m_gtIdx    = gtIdx;
+			m_startPos = startPos;
+			m_fraction = fraction;
+		}
+
+		///index of the followed GT track in the gt_ids[]
+		final int m_gtIdx;
+		///where the best following starts, relative to the GT track length
+		final float m_startPos;
+		///how much of the GT track is followed, relative to its length
+		final float m_fraction;
+	}
+
+	/**
+	 * Determines how well the given RES track follows every GT track that
+	 * it matches 1:1 at least in one time point (other GT tracks cannot be
+	 * followed at all). The attempts are returned in the order of gt_ids[].
+	 *
+	 * The best attempt is the first longest run of 1:1 matches of the pair
+	 * (within the lifespan of the RES track), see TrackDataCache.MatchRuns.
+	 */
+	private List<Attempt> FindAttempts(final Track res_track,
+		final MatchRuns runs,
+		final Map<Integer,Track> gt_tracks,
+		final int[] gt_ids, final Map<Integer,Integer> gt_idx)
+	{
+		//candidate GT tracks (as indices into gt_ids[]), ordered
+		final int[] candidates = Arrays.stream(runs.getPartners(res_track.m_id))
+			.filter(id -> gt_idx.containsKey(id))
+			.map(id -> gt_idx.get(id)).sorted().toArray();
+
+		final List<Attempt> attempts = new ArrayList<>(candidates.length);
+		for (int i : candidates)
+		{
+			//max progress possible
+			final int gt_trackLength = gt_tracks.get(gt_ids[i]).m_end
+			                         - gt_tracks.get(gt_ids[i]).m_begin +1;
+			final int gtStart = gt_tracks.get(gt_ids[i]).m_begin;
+
+			//the first longest run within the RES track
+			int bestBegin = 0, bestLength = 0;
+			final int[] pairRuns = runs.getRuns(gt_ids[i], res_track.m_id);
+			for (int r = 0; r < pairRuns.length; r += 2)
+			{
+				final int begin = Math.max(pairRuns[r],   res_track.m_begin);
+				final int end   = Math.min(pairRuns[r+1], res_track.m_end);
+				if (end-begin+1 > bestLength)
+				{
+					bestBegin  = begin;
+					bestLength = end-begin+1;
+				}
+			}
+			if (bestLength == 0) continue;
+
+			//distance from the GT track beginning and the length,
+			//both normalized by the GT length
+			final float bestStartPos=(float)(bestBegin-gtStart)/(float)gt_trackLength;
+			final float bestFraction=(float)bestLength/(float)gt_trackLength;
+
+			//REMOVE ME, DEBUG
+			if (bestStartPos > 1.0f)
+			{
+				//hmm... something is wrong, debug me
+				log.info("bSP="+bestStartPos+": j="+bestBegin
+				        +", rP="+bestLength+", b="+res_track.m_begin
+				        +", e="+res_track.m_end
+				        +", gtLen="+gt_trackLength);
+			}
+
+			attempts.add(new Attempt(i, bestStartPos, bestFraction));
+		}
+
+		return (attempts);
+	}
+
 
 	//---------------------------------------------------------------------/
 	/**
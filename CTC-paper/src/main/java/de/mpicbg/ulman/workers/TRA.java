@@ -16,11 +16,13 @@ import java.io.IOException;
 
 import java.util.Collection;
 import java.util.Vector;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
 
 import de.mpicbg.ulman.workers.TrackDataCache.Track;
 import de.mpicbg.ulman.workers.TrackDataCache.TemporalLevel;
@@ -128,16 +130,349 @@ public class TRA
 			this.log.info(msg);
 	}
 
+	//---------------------------------------------------------------------/
+	//per-frame attribution of the errors, to allow for AOGM/TRA over time windows
+
+	///indices of the error categories in the per-frame error counters
+	static final int ERR_NS = 0;
+	static final int ERR_FN = 1;
+	static final int ERR_FP = 2;
+	static final int ERR_ED = 3;
+	static final int ERR_EA = 4;
+	static final int ERR_EC = 5;
+
+	/**
+	 * Per-frame counters of errors, usage: frameErrors[ERR_xx][time] = count.
+	 * Vertex errors are attributed to the frame of the vertex, edge errors
+	 * are attributed to the frame of the end (later) vertex of the edge.
+	 * It is (re)allocated in every calculate().
+	 */
+	private int[][] frameErrors = null;
+
+	/**
+	 * Prefix sums of the this.frameErrors, usage: cumErrors[ERR_xx][t] holds
+	 * the number of errors of the given category in frames 0 till t-1 (inclusive),
+	 * that is, the array is one item longer than the number of frames.
+	 */
+	private long[][] cumErrors = null;
+
+	/**
+	 * Prefix sums of the numbers of GT vertices and GT edges (attributed
+	 * to their end frames) that are needed to build the GT from the scratch,
+	 * indexing is the same as with this.cumErrors.
+	 */
+	private long[] cumGTnodes = null;
+	private long[] cumGTedges = null;
+
+	///increases the per-frame counter of the given error category
+	private void noteError(final int category, final int time, final int count)
+	{
+		frameErrors[category][time] += count;
+	}
+
+	/**
+	 * The vertex portion of the AOGM: adds the penalties of the NS, FN and FP
+	 * errors to this.aogm, attributes them to frames (freshly allocating
+	 * this.frameErrors) and notes them into this.logNS, this.logFN and this.logFP.
+	 * The DET re-uses it as the AOGM-D consists of exactly these errors.
+	 */
+	void FindVertexErrors(final Vector<TemporalLevel> levels)
+	{
+		logNS.add(String.format("----------Splitting Operations (Penalty=%g)----------", penalty.m_ns));
+		logFN.add(String.format("----------False Negative Vertices (Penalty=%g)----------", penalty.m_fn));
+		logFP.add(String.format("----------False Positive Vertices (Penalty=%g)----------", penalty.m_fp));
+
+		//fresh per-frame error counters
+		frameErrors = new int[6][levels.size()];
+		cumErrors = null;
+
+		//this is: local ClassifyLabels() -- the part that already does some AOGM checks
+		//this is: the AOGM-specific last portion of the original FindMatch() C++ function:
+		//
+		//this is: basically checks matching between all nodes discovered in both GT and RES images
+		for (TemporalLevel level : levels)
+		{
+			//sweep over all gt labels
+			for (int i=0; i < level.m_gt_lab.length; ++i)
+			{
+				//check if we have found corresponding res label
+				if (level.m_gt_match[i] == -1)
+				{
+					//no correspondence -> the gt label represents FN (false negative) case
+					aogm += penalty.m_fn;
+					noteError(ERR_FN, level.m_level, 1);
+					logFN.add(String.format("T=%d GT_label=%d",level.m_level,level.m_gt_lab[i]));
+				}
+			}
+
+			//for every res label, check we have found exactly one corresponding gt label
+			int num;
+			for (int j=0; j < level.m_res_lab.length; ++j)
+			{
+				//number of overlapping gt labels
+				num = level.m_res_match[j].size();
+
+				if (num == 0)
+				{
+					//no label -- too few
+					aogm += penalty.m_fp;
+					noteError(ERR_FP, level.m_level, 1);
+					logFP.add(String.format("T=%d Label=%d",level.m_level,level.m_res_lab[j]));
+				}
+				else if (num > 1)
+				{
+					//to many labels...
+					aogm += (num - 1) * penalty.m_ns;
+					noteError(ERR_NS, level.m_level, num-1);
+					for (int qq=1; qq < num; ++qq)
+						logNS.add(String.format("T=%d Label=%d",level.m_level,level.m_res_lab[j]));
+					max_split = num > max_split ? num : max_split;
+				}
+			}
+		}
+
+		// check the minimality condition
+		if ((max_split - 1) * penalty.m_ns > (penalty.m_fp + max_split * penalty.m_fn))
+			log.info("Warning: The minimality condition broken! (m*="+max_split+")");
+	}
+
+	///returns the total number of errors of the given category (ERR_xx) found in the last calculation
+	long getNoOfErrors(final int category)
+	{
+		long sum = 0;
+		for (int cnt : frameErrors[category]) sum += cnt;
+		return (sum);
+	}
+
+	///turns this.frameErrors into this.cumErrors, and fills this.cumGT* from the GT tracks
+	private void buildPrefixSums(final int noFrames, final Map<Integer,Track> gt_tracks)
+	{
+		cumErrors = new long[frameErrors.length][noFrames+1];
+		for (int c=0; c < frameErrors.length; ++c)
+			for (int t=0; t < noFrames; ++t)
+				cumErrors[c][t+1] = cumErrors[c][t] + frameErrors[c][t];
+
+		//the same for the GT vertices and edges, first as difference arrays:
+		//every track contributes one vertex into every frame of its span, and
+		//one edge into every of its frames except for the first one (unless
+		//the track has a parent in which case the parental edge ends there)
+		final long[] nodesDiff = new long[noFrames+1];
+		final long[] edgesDiff = new long[noFrames+1];
+		for (Track t : gt_tracks.values())
+		{
+			//NB: tracks outside the image sequence are clipped, see CheckConsistency()
+			final int begin = Math.max(t.m_begin, 0);
+			final int end   = Math.min(t.m_end, noFrames-1);
+			if (begin > end) continue;
+
+			++nodesDiff[begin];
+			--nodesDiff[end+1];
+
+			final int edgesBegin = t.m_parent > 0 ? begin : begin+1;
+			if (edgesBegin <= end)
+			{
+				++edgesDiff[edgesBegin];
+				--edgesDiff[end+1];
+			}
+		}
+
+		cumGTnodes = new long[noFrames+1];
+		cumGTedges = new long[noFrames+1];
+		long nodes = 0, edges = 0;
+		for (int t=0; t < noFrames; ++t)
+		{
+			nodes += nodesDiff[t];
+			edges += edgesDiff[t];
+			cumGTnodes[t+1] = cumGTnodes[t] + nodes;
+			cumGTedges[t+1] = cumGTedges[t] + edges;
+		}
+	}
+
+	///returns the number of frames for which the time window queries are available
+	public int getNumberOfFrames()
+	{
+		return (cumErrors == null ? 0 : cumErrors[0].length-1);
+	}
+
+	///returns the number of errors of the given category within the frames [t0,t1]
+	private long errorsInWindow(final int category, final int t0, final int t1)
+	{
+		return (cumErrors[category][t1+1] - cumErrors[category][t0]);
+	}
+
+	///checks the time window is sane and within the calculated data
+	private void checkWindow(final int t0, final int t1)
+	{
+		if (cumErrors == null)
+			throw new IllegalArgumentException("TRA has not been calculated yet, no time window data is available!");
+		if (t0 < 0 || t1 >= getNumberOfFrames() || t0 > t1)
+			throw new IllegalArgumentException("Invalid time window ["+t0+","+t1
+				+"], frames 0 till "+(getNumberOfFrames()-1)+" are available.");
+	}
+
+	/**
+	 * Returns the AOGM restricted to the time points t0 till t1 (inclusive),
+	 * that is, the weighted sum of errors attributed to these frames (see this.frameErrors).
+	 * It is available only after calculate() has finished, and works in O(1).
+	 */
+	public double getAOGM(final int t0, final int t1)
+	{
+		checkWindow(t0,t1);
+		return ( penalty.m_ns * errorsInWindow(ERR_NS,t0,t1)
+		       + penalty.m_fn * errorsInWindow(ERR_FN,t0,t1)
+		       + penalty.m_fp * errorsInWindow(ERR_FP,t0,t1)
+		       + penalty.m_ed * errorsInWindow(ERR_ED,t0,t1)
+		       + penalty.m_ea * errorsInWindow(ERR_EA,t0,t1)
+		       + penalty.m_ec * errorsInWindow(ERR_EC,t0,t1) );
+	}
+
+	/**
+	 * Returns the AOGM to build the GT from the scratch restricted to the
+	 * time points t0 till t1 (inclusive), it is the normalization factor
+	 * of the getTRA(t0,t1).
+	 */
+	public double getAOGMempty(final int t0, final int t1)
+	{
+		checkWindow(t0,t1);
+		return ( penalty.m_fn * (cumGTnodes[t1+1] - cumGTnodes[t0])    //adding nodes
+		       + penalty.m_ea * (cumGTedges[t1+1] - cumGTedges[t0]) ); //adding edges
+	}
+
+	/**
+	 * Returns the TRA (normalized AOGM) restricted to the time points t0 till t1
+	 * (inclusive), or -1 if there is nothing in the GT in this window.
+	 * It is available only after calculate() has finished, and works in O(1).
+	 */
+	public double getTRA(final int t0, final int t1)
+	{
+		final double aogm_empty = getAOGMempty(t0,t1);
+		if (aogm_empty == 0.0) return (-1.0);
+
+		double aogm = getAOGM(t0,t1);
+		aogm = aogm > aogm_empty ? aogm_empty : aogm;
+		return (1.0 - aogm/aogm_empty);
+	}
+
 	//---------------------------------------------------------------------/
 	//aux data fillers -- merely a node data processors and classifiers
 
+	/** One discovered inconsistency in the tracking data. */
+	public class ConsistencyIssue
+	{
+		/** Explicit constructor. */
+		ConsistencyIssue(final int label, final int time, final String message)
+		{
+			m_label = label;
+			m_time = time;
+			m_message = message;
+		}
+
+		/** The track/label the issue concerns. */
+		public final int m_label;
+		/** The time point the issue concerns, or -1 if it concerns no particular time point. */
+		public final int m_time;
+		/** Human readable description of the issue. */
+		public final String m_message;
+	}
+
+	/**
+	 * Collector of the discovered inconsistencies, it stores at most
+	 * \e maxIssues of them but counts all of them.
+	 */
+	public class ConsistencyReport
+	{
+		/** Constructor. */
+		public ConsistencyReport(final int maxIssues)
+		{
+			if (maxIssues < 1)
+				throw new IllegalArgumentException("The report must be able to store at least one issue!");
+
+			m_maxIssues = maxIssues;
+			m_issues = new ArrayList<>(Math.min(maxIssues,1000));
+		}
+
+		/** The cap on the number of stored issues. */
+		public final int m_maxIssues;
+		/** The stored issues, in the order of their discovery. */
+		public final List<ConsistencyIssue> m_issues;
+		/** The number of all discovered issues, including those not stored. */
+		public long m_totalIssues = 0;
+
+		void add(final int label, final int time, final String message)
+		{
+			++m_totalIssues;
+			if (m_issues.size() < m_maxIssues)
+				m_issues.add(new ConsistencyIssue(label,time,message));
+		}
+
+		/** Returns true if no issue has been discovered. */
+		public boolean isConsistent()
+		{ return (m_totalIssues == 0); }
+
+		/** Reports all stored issues into the given log, and a summary line. */
+		public void reportTo(final LogService log)
+		{
+			for (ConsistencyIssue issue : m_issues)
+				log.info(issue.m_message);
+
+			if (m_totalIssues > m_issues.size())
+				log.info("... and "+(m_totalIssues-m_issues.size())+" more inconsistencies not listed.");
+			log.info("Found "+m_totalIssues+" inconsistencies in total.");
+		}
+	}
+
+	/**
+	 * Either throws immediately (fail-fast mode when \e report is null),
+	 * or notes the issue into the \e report (collect-all mode).
+	 */
+	private void noteIssue(final ConsistencyReport report,
+		final int label, final int time, final String message)
+	{
+		if (report == null)
+			throw new IllegalArgumentException(message);
+
+		report.add(label,time,message);
+	}
+
 	/**
 	 * Internal test of GT data sanity mainly to alleviate for heavy bound checking etc.
-	 * during the TRA/AOGM calculation.
+	 * during the TRA/AOGM calculation. It stops on the first problem found
+	 * with IllegalArgumentException.
 	 */
 	public void CheckConsistency(final Vector<TemporalLevel> levels,
 		final Map<Integer,Track> tracks,
 		final boolean isGTcheck)
+	{
+		CheckConsistency(levels, tracks, isGTcheck, null);
+	}
+
+	/**
+	 * Internal test of GT data sanity mainly to alleviate for heavy bound checking etc.
+	 * during the TRA/AOGM calculation. If \e report is null, it stops on the first
+	 * problem found with IllegalArgumentException, otherwise it collects all problems
+	 * into the \e report.
+	 */
+	public void CheckConsistency(final Vector<TemporalLevel> levels,
+		final Map<Integer,Track> tracks,
+		final boolean isGTcheck,
+		final ConsistencyReport report)
+	{
+		//build the label presence index first, this is: label -> set of time points
+		final BitSet[] labelFrames = TrackDataCache.BuildLabelIndex(levels, isGTcheck);
+		CheckConsistency(labelFrames, levels.size(), tracks, isGTcheck, report);
+	}
+
+	/**
+	 * The data consistency test itself, it works on the label presence index
+	 * \e labelFrames (see TrackDataCache.BuildLabelIndex()) of \e noFrames time points
+	 * and thus it is linear in the size of the data. If \e report is null, it stops
+	 * on the first problem found with IllegalArgumentException, otherwise it collects
+	 * all problems into the \e report.
+	 */
+	public void CheckConsistency(final BitSet[] labelFrames, final int noFrames,
+		final Map<Integer,Track> tracks,
+		final boolean isGTcheck,
+		final ConsistencyReport report)
 	{
 		//a helper string for messaging
 		final String DS = isGTcheck? " GT " : " RES ";
@@ -148,24 +483,22 @@ public class TRA
 		for (Track track : tracks.values())
 		{
 			//check for track bounds: do they fall within the temporal interval of loaded images
-			if (track.m_begin < 0 || track.m_begin >= levels.size()
-			   || track.m_end < 0 || track.m_end   >= levels.size())
-				throw new IllegalArgumentException("The"+DS+"track with label "
+			if (track.m_begin < 0 || track.m_begin >= noFrames
+			   || track.m_end < 0 || track.m_end   >= noFrames)
+				noteIssue(report, track.m_id, -1, "The"+DS+"track with label "
 					+track.m_id+" begins or ends outside the image sequence!");
-
-			//check that we have located the track's label in the images in the whole track temporal span
-			for (int t = track.m_begin; t <= track.m_end; ++t)
+			else
 			{
-				try {
-					if (isGTcheck)
-						levels.get(t).gt_findLabel(track.m_id);
-					else
-						levels.get(t).res_findLabel(track.m_id);
-					//NB: level.get(t) should work because of the previous test
-				}
-				catch (IllegalArgumentException e) {
-					throw new IllegalArgumentException("The"+DS+"track with label "
+				//check that we have located the track's label in the images in the whole track temporal span
+				final BitSet frames = track.m_id >= 0 && track.m_id < labelFrames.length ?
+					labelFrames[track.m_id] : null;
+
+				int t = frames == null ? track.m_begin : frames.nextClearBit(track.m_begin);
+				while (t <= track.m_end)
+				{
+					noteIssue(report, track.m_id, t, "The"+DS+"track with label "
 						+track.m_id+" was not found in the image at time point "+t+"!");
+					t = frames == null ? t+1 : frames.nextClearBit(t+1);
 				}
 			}
 
@@ -173,38 +506,44 @@ public class TRA
 			if (track.m_parent > 0)
 			{
 				//yes, is she listed among the available tracks?
-				if (!tracks.containsKey(track.m_parent))
-					throw new IllegalArgumentException("Reference to unavailable parent track "
+				final Track parent = tracks.get(track.m_parent);
+				if (parent == null)
+					noteIssue(report, track.m_id, -1, "Reference to unavailable parent track "
 						+track.m_parent+" in the"+DS+"track with label "+track.m_id+"!");
 
 				//check if daughter track does not start earlier than mother track ends
-				if (track.m_begin <= tracks.get(track.m_parent).m_end)
-					throw new IllegalArgumentException("Invalid parent connection for the"
+				else if (track.m_begin <= parent.m_end)
+					noteIssue(report, track.m_id, -1, "Invalid parent connection for the"
 						+DS+"track with label "+track.m_id+"!");
 			}
 		}
 
 		//check that all labels discovered in images (levels) have a counterpart in tracks metadata (tracks)
-		//therefore, iterate over all time points:
-		for (int t = 0; t < levels.size(); ++t)
+		//therefore, iterate over all labels found in the images
+		for (int id = 1; id < labelFrames.length; ++id)
 		{
-			//over all labels found in an image at time t
-			final int[] idArray = isGTcheck ? levels.get(t).m_gt_lab : levels.get(t).m_res_lab;
-			for (int id : idArray)
-			{
-				//find it in the track metadata   //if (!tracks.containsKey(id))
-				final Track track = tracks.get(id);
+			final BitSet frames = labelFrames[id];
+			if (frames == null) continue;
 
-				//do we have such a track at all?
-				if (track == null)
-					throw new IllegalArgumentException("The"+DS+"track with label "+id
-						+" found in image at time point "+t+" is not declared (in tracks.txt) at all!");
+			//find it in the track metadata
+			final Track track = tracks.get(id);
 
-				//if we do, does the current image fall into the range declared in the metadata?
-				if (t < track.m_begin || t > track.m_end)
-					throw new IllegalArgumentException("The"+DS+"track with label "+id
-						+" found in image at time point "+t+" is not declared (in tracks.txt) to be found here!");
+			//do we have such a track at all?
+			if (track == null)
+			{
+				for (int t = frames.nextSetBit(0); t >= 0; t = frames.nextSetBit(t+1))
+					noteIssue(report, id, t, "The"+DS+"track with label "+id
+						+" found in image at time point "+t+" is not declared (in tracks.txt) at all!");
+				continue;
 			}
+
+			//if we do, does the images fall into the range declared in the metadata?
+			for (int t = frames.nextSetBit(0); t >= 0 && t < track.m_begin; t = frames.nextSetBit(t+1))
+				noteIssue(report, id, t, "The"+DS+"track with label "+id
+					+" found in image at time point "+t+" is not declared (in tracks.txt) to be found here!");
+			for (int t = frames.nextSetBit(track.m_end+1); t >= 0; t = frames.nextSetBit(t+1))
+				noteIssue(report, id, t, "The"+DS+"track with label "+id
+					+" found in image at time point "+t+" is not declared (in tracks.txt) to be found here!");
 		}
 	}
 
@@ -381,6 +720,7 @@ public class TRA
 						{
 							//it does not connect different tracks, that's an error
 							aogm += penalty.m_ec;
+							noteError(ERR_EC, end_level, 1);
 							logEC.add(String.format("[T=%d Label=%d] -> [T=%d Label=%d]",
 								start_level, res_track.m_parent, end_level, res_track_id));
 						}
@@ -389,6 +729,7 @@ public class TRA
 					{
 						//there is no corresponding edge in GT, that's an error
 						aogm += penalty.m_ed;
+						noteError(ERR_ED, end_level, 1);
 						logED.add(String.format("[T=%d Label=%d] -> [T=%d Label=%d]",
 							start_level, res_track.m_parent, end_level, res_track_id));
 					}
@@ -416,6 +757,7 @@ public class TRA
 						{
 							//it is parental, that's an error
 							aogm += penalty.m_ec;
+							noteError(ERR_EC, end_level, 1);
 							logEC.add(String.format("[T=%d Label=%d] -> [T=%d Label=%d]",
 								start_level, res_track_id, end_level, res_track_id));
 						}
@@ -424,6 +766,7 @@ public class TRA
 					{
 						//there is no corresponding edge in GT, that's an error
 						aogm += penalty.m_ed;
+						noteError(ERR_ED, end_level, 1);
 						logED.add(String.format("[T=%d Label=%d] -> [T=%d Label=%d]",
 							start_level, res_track_id, end_level, res_track_id));
 					}
@@ -465,6 +808,7 @@ public class TRA
 				{
 					//... but there is no edge between them, that's an error
 					aogm += penalty.m_ea;
+					noteError(ERR_EA, end_level, 1);
 					logEA.add(String.format("[T=%d GT_label=%d] -> [T=%d GT_label=%d]",
 						start_level, gt_track.m_parent, end_level, gt_track_id));
 				}
@@ -484,6 +828,7 @@ public class TRA
 				{
 					//... but there is no edge between them, that's an error
 					aogm += penalty.m_ea;
+					noteError(ERR_EA, end_level, 1);
 					logEA.add(String.format("[T=%d GT_label=%d] -> [T=%d GT_label=%d]",
 						start_level, gt_track_id, end_level, gt_track_id));
 				}
@@ -516,9 +861,6 @@ public class TRA
 		//DEBUG//log.info("Computing the TRA bottom part...");
 		aogm = 0.0;
 
-		logNS.add(String.format("----------Splitting Operations (Penalty=%g)----------", penalty.m_ns));
-		logFN.add(String.format("----------False Negative Vertices (Penalty=%g)----------", penalty.m_fn));
-		logFP.add(String.format("----------False Positive Vertices (Penalty=%g)----------", penalty.m_fp));
 		logED.add(String.format("----------Redundant Edges To Be Deleted (Penalty=%g)----------", penalty.m_ed));
 		logEA.add(String.format("----------Edges To Be Added (Penalty=%g)----------", penalty.m_ea));
 		logEC.add(String.format("----------Edges with Wrong Semantics (Penalty=%g)----------", penalty.m_ec));
@@ -534,56 +876,14 @@ public class TRA
 			CheckConsistency(levels, res_tracks, false);
 		}
 
-		//this is: local ClassifyLabels() -- the part that already does some AOGM checks
-		//this is: the AOGM-specific last portion of the original FindMatch() C++ function:
-		//
-		//this is: basically checks matching between all nodes discovered in both GT and RES images
-		for (TemporalLevel level : levels)
-		{
-			//sweep over all gt labels
-			for (int i=0; i < level.m_gt_lab.length; ++i)
-			{
-				//check if we have found corresponding res label
-				if (level.m_gt_match[i] == -1)
-				{
-					//no correspondence -> the gt label represents FN (false negative) case
-					aogm += penalty.m_fn;
-					logFN.add(String.format("T=%d GT_label=%d",level.m_level,level.m_gt_lab[i]));
-				}
-			}
-
-			//for every res label, check we have found exactly one corresponding gt label
-			int num;
-			for (int j=0; j < level.m_res_lab.length; ++j)
-			{
-				//number of overlapping gt labels
-				num = level.m_res_match[j].size();
-
-				if (num == 0)
-				{
-					//no label -- too few
-					aogm += penalty.m_fp;
-					logFP.add(String.format("T=%d Label=%d",level.m_level,level.m_res_lab[j]));
-				}
-				else if (num > 1)
-				{
-					//to many labels...
-					aogm += (num - 1) * penalty.m_ns;
-					for (int qq=1; qq < num; ++qq)
-						logNS.add(String.format("T=%d Label=%d",level.m_level,level.m_res_lab[j]));
-					max_split = num > max_split ? num : max_split;
-				}
-			}
-		}
-
-		// check the minimality condition
-		if ((max_split - 1) * penalty.m_ns > (penalty.m_fp + max_split * penalty.m_fn))
-			log.info("Warning: The minimality condition broken! (m*="+max_split+")");
-
+		FindVertexErrors(levels);
 		FindEDAndECEdges(levels, gt_tracks, res_tracks);
 		FindEAEdges(levels, gt_tracks, res_tracks);
 		//AOGM calculation ends here
 
+		//prepare for the queries over time windows, see getAOGM(t0,t1)
+		buildPrefixSums(levels.size(), gt_tracks);
+
 		//should the log reports be printed?
 		if (doLogReports)
 		{
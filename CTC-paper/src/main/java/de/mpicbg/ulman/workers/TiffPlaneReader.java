@@ -0,0 +1,476 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of individual planes (z-slices) of multi-page 16-bit gray TIFF files.
+ * When opened, it only walks the chain of the IFDs (image file directories) and
+ * notes where they are. When a plane is requested, only the IFD of this plane is
+ * parsed and only the strips of this plane are read and decoded. Uncompressed,
+ * LZW, deflate and PackBits compressed strips are supported, including the
+ * horizontal differencing predictor. Tiled and BigTIFF files are not supported,
+ * IOException is thrown for them.
+ *
+ * Additionally, ImageJ-written stacks that have only the first IFD (and the
+ * "images=" in their description) are understood as well.
+ */
+public class TiffPlaneReader implements Closeable
+{
+	///the opened file
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	///the file name, for the error reports
+	private final String fname;
+
+	///byte order of the file
+	private final ByteOrder order;
+
+	///the IFD index: file offsets of the IFDs in the order of the planes
+	private final long[] ifdOffsets;
+
+	///number of planes, may be larger than ifdOffsets.length for ImageJ stacks
+	private final int noOfPlanes;
+
+	///opens the file and builds the IFD index
+	public TiffPlaneReader(final String fname)
+	throws IOException
+	{
+		this.fname = fname;
+		file = new RandomAccessFile(fname, "r");
+		channel = file.getChannel();
+
+		try {
+			//header
+			final ByteBuffer header = read(0, 8, ByteOrder.BIG_ENDIAN);
+			final int bom = header.getShort(0) & 0xFFFF;
+			if (bom == 0x4949) order = ByteOrder.LITTLE_ENDIAN;
+			else if (bom == 0x4D4D) order = ByteOrder.BIG_ENDIAN;
+			else throw new IOException("Not a TIFF file: "+fname);
+
+			header.order(order);
+			final int magic = header.getShort(2) & 0xFFFF;
+			if (magic == 43) throw new IOException("BigTIFF is not supported: "+fname);
+			if (magic != 42) throw new IOException("Not a TIFF file: "+fname);
+
+			//walk the IFD chain
+			final List<Long> offsets = new ArrayList<>();
+			long offset = header.getInt(4) & 0xFFFFFFFFL;
+			while (offset != 0)
+			{
+				if (offset >= channel.size() || offsets.size() > 1000000)
+					throw new IOException("Damaged IFD chain in: "+fname);
+				offsets.add(offset);
+
+				final int noEntries = read(offset, 2, order).getShort(0) & 0xFFFF;
+				offset = read(offset + 2 + 12*noEntries, 4, order).getInt(0) & 0xFFFFFFFFL;
+			}
+
+			if (offsets.size() == 0)
+				throw new IOException("No image found in: "+fname);
+
+			ifdOffsets = new long[offsets.size()];
+			for (int i = 0; i < ifdOffsets.length; ++i) ifdOffsets[i] = offsets.get(i);
+
+			//ImageJ stack with only one IFD?
+			noOfPlanes = ifdOffsets.length == 1 ?
+				Math.max(1, parseIFD(0).imageJplanes) : ifdOffsets.length;
+		}
+		catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close()
+	throws IOException
+	{
+		file.close();
+	}
+
+	///returns the number of planes (z-slices) in the file
+	public int getNumberOfPlanes()
+	{ return (noOfPlanes); }
+
+	/**
+	 * Returns the \e z-th plane as a 2D image. The image is not backed by the file,
+	 * it is a plain array image.
+	 */
+	public Img<UnsignedShortType> ReadPlaneG16(final int z)
+	throws IOException
+	{
+		final Plane plane = ReadPlane(z);
+		return (ArrayImgs.unsignedShorts(plane.pixels, plane.width, plane.height));
+	}
+
+	/** Decoded plane: pixels in the row-major order. */
+	public static class Plane
+	{
+		Plane(final int width, final int height)
+		{
+			this.width  = width;
+			this.height = height;
+			this.pixels = new short[width*height];
+		}
+
+		public final int width, height;
+		public final short[] pixels;
+	}
+
+	///returns the \e z-th plane
+	public Plane ReadPlane(final int z)
+	throws IOException
+	{
+		if (z < 0 || z >= noOfPlanes)
+			throw new IllegalArgumentException("Plane "+z+" is not available in "
+				+fname+" (which has "+noOfPlanes+" planes).");
+
+		//the IFD describing the plane
+		final IFD ifd = parseIFD(z < ifdOffsets.length ? z : 0);
+
+		if (ifd.tiled)
+			throw new IOException("Tiled TIFF is not supported: "+fname);
+		if (ifd.bitsPerSample != 16 || ifd.samplesPerPixel != 1)
+			throw new IOException("Images are expected to have 16-bit gray voxels.");
+		if (ifd.stripOffsets == null || ifd.stripByteCounts == null
+		    || ifd.stripOffsets.length != ifd.stripByteCounts.length)
+			throw new IOException("Missing or inconsistent strips information in: "+fname);
+
+		final Plane plane = new Plane(ifd.width, ifd.height);
+		final int rowBytes = 2*ifd.width;
+
+		//ImageJ stack without IFDs of the other planes: they follow the first one
+		final long shift = z < ifdOffsets.length ? 0 : (long)z * (long)rowBytes * (long)ifd.height;
+		if (shift > 0 && (ifd.compression != 1 || ifd.stripOffsets.length != 1))
+			throw new IOException("Unsupported layout of the ImageJ stack in: "+fname);
+
+		int row = 0;
+		for (int s = 0; s < ifd.stripOffsets.length && row < ifd.height; ++s)
+		{
+			final int rows = Math.min(ifd.rowsPerStrip, ifd.height - row);
+			final int expected = rows * rowBytes;
+
+			final ByteBuffer raw = read(ifd.stripOffsets[s] + shift,
+				ifd.compression == 1 ? expected : (int)ifd.stripByteCounts[s], order);
+			final byte[] data;
+			switch (ifd.compression)
+			{
+			case 1:
+				data = raw.array();
+				break;
+			case 5:
+				data = DecodeLZW(raw.array(), expected);
+				break;
+			case 8:
+			case 32946:
+				data = DecodeDeflate(raw.array(), expected);
+				break;
+			case 32773:
+				data = DecodePackBits(raw.array(), expected);
+				break;
+			default:
+				throw new IOException("Unsupported TIFF compression "+ifd.compression+" in: "+fname);
+			}
+
+			//bytes -> pixels
+			final ByteBuffer pixels = ByteBuffer.wrap(data).order(order);
+			int idx = row * ifd.width;
+			for (int i = 0; i < rows*ifd.width; ++i)
+				plane.pixels[idx++] = pixels.getShort(2*i);
+
+			row += rows;
+		}
+
+		//undo the horizontal differencing
+		if (ifd.predictor == 2)
+			for (int y = 0; y < ifd.height; ++y)
+			{
+				final int offset = y * ifd.width;
+				for (int x = 1; x < ifd.width; ++x)
+					plane.pixels[offset+x] += plane.pixels[offset+x-1];
+			}
+
+		return (plane);
+	}
+
+	//---------------------------------------------------------------------/
+	//parsing of the IFDs:
+
+	/** The (relevant) content of one IFD. */
+	private static class IFD
+	{
+		int width = 0, height = 0;
+		int bitsPerSample = 1, samplesPerPixel = 1;
+		int compression = 1, predictor = 1;
+		int rowsPerStrip = Integer.MAX_VALUE;
+		long[] stripOffsets = null, stripByteCounts = null;
+		boolean tiled = false;
+		int imageJplanes = 0;
+	}
+
+	///parses the \e idx-th IFD
+	private IFD parseIFD(final int idx)
+	throws IOException
+	{
+		final IFD ifd = new IFD();
+
+		final long offset = ifdOffsets[idx];
+		final int noEntries = read(offset, 2, order).getShort(0) & 0xFFFF;
+		final ByteBuffer entries = read(offset+2, 12*noEntries, order);
+
+		for (int e = 0; e < noEntries; ++e)
+		{
+			final int tag = entries.getShort(12*e) & 0xFFFF;
+			switch (tag)
+			{
+			case 256: ifd.width           = (int)values(entries, e)[0]; break;
+			case 257: ifd.height          = (int)values(entries, e)[0]; break;
+			case 258: ifd.bitsPerSample   = (int)values(entries, e)[0]; break;
+			case 259: ifd.compression     = (int)values(entries, e)[0]; break;
+			case 277: ifd.samplesPerPixel = (int)values(entries, e)[0]; break;
+			case 278: ifd.rowsPerStrip    = (int)Math.min(Integer.MAX_VALUE, values(entries, e)[0]); break;
+			case 317: ifd.predictor       = (int)values(entries, e)[0]; break;
+			case 273: ifd.stripOffsets    = values(entries, e); break;
+			case 279: ifd.stripByteCounts = values(entries, e); break;
+			case 322:
+			case 323:
+			case 324:
+			case 325: ifd.tiled = true; break;
+			case 270: ifd.imageJplanes = parseImageJplanes(entries, e); break;
+			}
+		}
+
+		if (ifd.width <= 0 || ifd.height <= 0)
+			throw new IOException("Missing image size information in: "+fname);
+		if (ifd.rowsPerStrip <= 0) ifd.rowsPerStrip = ifd.height;
+
+		return (ifd);
+	}
+
+	///sizes of the TIFF field types, indexed with the type
+	private static final int[] typeSizes = { 0, 1,1,2,4,8, 1,1,2,4,8, 4,8 };
+
+	///returns the values of the \e e-th entry as unsigned integers
+	private long[] values(final ByteBuffer entries, final int e)
+	throws IOException
+	{
+		final int type  = entries.getShort(12*e +2) & 0xFFFF;
+		final int count = entries.getInt(12*e +4);
+		if (type != 1 && type != 3 && type != 4)
+			throw new IOException("Unexpected TIFF field type "+type+" in: "+fname);
+		if (count < 1)
+			throw new IOException("Empty TIFF field in: "+fname);
+
+		final int size = typeSizes[type];
+		final ByteBuffer data = (long)size*count <= 4 ?
+			(ByteBuffer)((ByteBuffer)entries.duplicate().position(12*e +8)).slice().order(order)
+			: read(entries.getInt(12*e +8) & 0xFFFFFFFFL, size*count, order);
+
+		final long[] values = new long[count];
+		for (int i = 0; i < count; ++i)
+			switch (type)
+			{
+			case 1: values[i] = data.get(i) & 0xFFL; break;
+			case 3: values[i] = data.getShort(2*i) & 0xFFFFL; break;
+			default: values[i] = data.getInt(4*i) & 0xFFFFFFFFL;
+			}
+
+		return (values);
+	}
+
+	///extracts the number of planes from the ImageJ description, or returns 0
+	private int parseImageJplanes(final ByteBuffer entries, final int e)
+	throws IOException
+	{
+		final int type  = entries.getShort(12*e +2) & 0xFFFF;
+		final int count = entries.getInt(12*e +4);
+		if (type != 2 || count <= 4) return (0);
+
+		final ByteBuffer data = read(entries.getInt(12*e +8) & 0xFFFFFFFFL, Math.min(count,4096), order);
+		final String desc = new String(data.array(), java.nio.charset.StandardCharsets.ISO_8859_1);
+		if (!desc.startsWith("ImageJ")) return (0);
+
+		final int pos = desc.indexOf("images=");
+		if (pos < 0) return (0);
+
+		int end = pos+7;
+		while (end < desc.length() && Character.isDigit(desc.charAt(end))) ++end;
+		try {
+			return (Integer.parseInt(desc.substring(pos+7, end)));
+		}
+		catch (NumberFormatException ex) {
+			return (0);
+		}
+	}
+
+	///reads \e length bytes starting from the \e offset
+	private ByteBuffer read(final long offset, final int length, final ByteOrder order)
+	throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(length);
+		long pos = offset;
+		while (buf.hasRemaining())
+		{
+			final int got = channel.read(buf, pos);
+			if (got < 0) throw new IOException("Unexpected end of file: "+fname);
+			pos += got;
+		}
+		buf.order(order);
+		return (buf);
+	}
+
+	//---------------------------------------------------------------------/
+	//decompressors, they always return array of the \e expected length:
+
+	///the TIFF flavour of the LZW (MSB-first codes, "early change" of the code length)
+	static byte[] DecodeLZW(final byte[] in, final int expected)
+	{
+		final byte[] out = new byte[expected];
+		int outPos = 0;
+
+		//the strings table
+		final byte[][] table = new byte[4096][];
+		for (int i = 0; i < 256; ++i) table[i] = new byte[] { (byte)i };
+		int nextCode = 258;
+		int codeLen = 9;
+
+		byte[] old = null;
+		long bitPos = 0;
+		final long bitsTotal = 8L * in.length;
+
+		while (outPos < expected && bitPos + codeLen <= bitsTotal)
+		{
+			//read the next code
+			int code = 0;
+			for (int b = 0; b < codeLen; ++b, ++bitPos)
+				code = (code << 1) | ((in[(int)(bitPos >> 3)] >> (7 - (int)(bitPos & 7))) & 1);
+
+			if (code == 257) break; //EOI
+			if (code == 256)
+			{
+				//clear code
+				for (int i = 258; i < nextCode; ++i) table[i] = null;
+				nextCode = 258;
+				codeLen = 9;
+				old = null;
+				continue;
+			}
+
+			byte[] str;
+			if (code < nextCode && table[code] != null)
+			{
+				str = table[code];
+				if (old != null) nextCode = addString(table, nextCode, old, str[0]);
+			}
+			else
+			{
+				//the code is not in the table yet (it must be the next one)
+				if (old == null) break; //damaged data
+				str = concat(old, old[0]);
+				nextCode = addString(table, nextCode, old, old[0]);
+			}
+
+			final int len = Math.min(str.length, expected - outPos);
+			System.arraycopy(str, 0, out, outPos, len);
+			outPos += len;
+			old = str;
+
+			if (nextCode >= 2047) codeLen = 12;
+			else if (nextCode >= 1023) codeLen = 11;
+			else if (nextCode >= 511) codeLen = 10;
+		}
+
+		return (out);
+	}
+
+	private static int addString(final byte[][] table, final int nextCode,
+		final byte[] prefix, final byte suffix)
+	{
+		if (nextCode >= table.length) return (nextCode);
+		table[nextCode] = concat(prefix, suffix);
+		return (nextCode+1);
+	}
+
+	private static byte[] concat(final byte[] prefix, final byte suffix)
+	{
+		final byte[] str = new byte[prefix.length+1];
+		System.arraycopy(prefix, 0, str, 0, prefix.length);
+		str[prefix.length] = suffix;
+		return (str);
+	}
+
+	///the zlib deflate
+	static byte[] DecodeDeflate(final byte[] in, final int expected)
+	throws IOException
+	{
+		final byte[] out = new byte[expected];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in);
+			int outPos = 0;
+			while (outPos < expected && !inflater.finished())
+			{
+				final int got = inflater.inflate(out, outPos, expected - outPos);
+				if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				outPos += got;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Damaged deflate data: "+e.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+		return (out);
+	}
+
+	///the PackBits run-length encoding
+	static byte[] DecodePackBits(final byte[] in, final int expected)
+	{
+		final byte[] out = new byte[expected];
+		int inPos = 0, outPos = 0;
+
+		while (inPos < in.length && outPos < expected)
+		{
+			final int n = in[inPos++];
+			if (n >= 0)
+			{
+				//n+1 literal bytes
+				final int len = Math.min(Math.min(n+1, in.length - inPos), expected - outPos);
+				System.arraycopy(in, inPos, out, outPos, len);
+				inPos += n+1;
+				outPos += len;
+			}
+			else if (n != -128 && inPos < in.length)
+			{
+				//-n+1 repetitions of the next byte
+				final byte b = in[inPos++];
+				for (int i = 0; i < 1-n && outPos < expected; ++i) out[outPos++] = b;
+			}
+		}
+
+		return (out);
+	}
+}
@@ -31,9 +31,19 @@ import java.io.BufferedReader;
 import java.util.Scanner;
 
 import java.util.Vector;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 public class TrackDataCache
 {
@@ -50,6 +60,9 @@ public class TrackDataCache
 		log = _log;
 	}
 
+	///how many threads to use for the (image reading) tasks that can run in parallel
+	public int noOfThreads = Runtime.getRuntime().availableProcessors();
+
 	///GT and RES paths combination for which this cache is valid, null means invalid
 	private String gtPath = null;
 	///GT and RES paths combination for which this cache is valid, null means invalid
@@ -273,6 +286,22 @@ public class TrackDataCache
 		HashSet<Integer>[] m_res_match = null;
 	}
 
+	/**
+	 * Once calculate() has finished, the cache is sealed: its data below are
+	 * only read by the measures (possibly concurrently) and the functions
+	 * that would add to them (LoadTrackFile(), ClassifyLabels(), DetectForks()
+	 * and calculate() itself) refuse to do so. The data must not be altered
+	 * directly either.
+	 */
+	private volatile boolean sealed = false;
+
+	///throws if this cache is sealed already
+	private void checkNotSealed()
+	{
+		if (sealed)
+			throw new IllegalStateException("The cache is already calculated, it cannot be altered.");
+	}
+
 	//representation of tracks
 	public final HashMap<Integer,Track> gt_tracks  = new HashMap<>();
 	public final HashMap<Integer,Track> res_tracks = new HashMap<>();
@@ -340,6 +369,8 @@ public class TrackDataCache
 	public void LoadTrackFile(final String fname, Map<Integer,Track> track_list)
 	throws IOException
 	{
+		if (track_list == gt_tracks || track_list == res_tracks) checkNotSealed();
+
 		Scanner s = null;
 		int id=-1,begin,end,parent;
 
@@ -395,10 +426,30 @@ public class TrackDataCache
 		ClassifyLabels(gt_img,res_img, true);
 	}
 
-	@SuppressWarnings("unchecked")
 	public void ClassifyLabels(IterableInterval<UnsignedShortType> gt_img,
 	                           RandomAccessibleInterval<UnsignedShortType> res_img,
 	                           final boolean shouldComplainOnEmptyImages)
+	{
+		checkNotSealed();
+
+		//"save" the level data
+		levels.add( ClassifyLabels(gt_img,res_img, shouldComplainOnEmptyImages, levels.size()) );
+
+		//the levels have changed, the index is no longer valid
+		matchRuns = null;
+	}
+
+	/**
+	 * Classifies the labels of the image pair and returns the findings
+	 * as the \e level_no-th TemporalLevel. Unlike the other variants, the
+	 * level is NOT stored into this.levels, this variant is therefore safe
+	 * to be called from several threads at the same time.
+	 */
+	@SuppressWarnings("unchecked")
+	public TemporalLevel ClassifyLabels(IterableInterval<UnsignedShortType> gt_img,
+	                                    RandomAccessibleInterval<UnsignedShortType> res_img,
+	                                    final boolean shouldComplainOnEmptyImages,
+	                                    final int level_no)
 	{
 		//check the sizes of the images
 		if (gt_img.numDimensions() != res_img.numDimensions())
@@ -411,7 +462,7 @@ public class TrackDataCache
 					+" of images of the same size.");
 
 		//create output TemporalLevel to which we gonna save our findings about both images
-		TemporalLevel level = new TemporalLevel(levels.size());
+		TemporalLevel level = new TemporalLevel(level_no);
 
 		//helper frequency histogram of discovered labels
 		HashMap<Integer,Integer> gt_hist = new HashMap<>();
@@ -547,8 +598,7 @@ public class TrackDataCache
 			}
 		}
 
-		//finally, "save" the level data
-		levels.add(level);
+		return (level);
 	}
 
 
@@ -561,6 +611,8 @@ public class TrackDataCache
 	 */
 	public void DetectForks(final Map<Integer,Track> tracks, final Vector<Fork> forks)
 	{
+		if (forks == gt_forks || forks == res_forks) checkNotSealed();
+
 		//prepare the output structure
 		forks.clear();
 
@@ -605,6 +657,147 @@ public class TrackDataCache
 		}
 	}
 
+	/**
+	 * Builds the label presence index from the given \e levels: for every label
+	 * (used as an index to the returned array) the set of time points in which
+	 * the label was found in the images is returned, or null if the label
+	 * was never found. Since labels are 16-bit, the array is never longer than 65536.
+	 */
+	public static
+	BitSet[] BuildLabelIndex(final Vector<TemporalLevel> levels, final boolean forGT)
+	{
+		//just reference the label lists from the levels, no copying
+		final int[][] labels = new int[levels.size()][];
+		for (TemporalLevel level : levels)
+			labels[level.m_level] = forGT ? level.m_gt_lab : level.m_res_lab;
+
+		return BuildLabelIndex(labels);
+	}
+
+	/**
+	 * Builds the label presence index from the given lists of labels found
+	 * at time points, \e labels[time] = list of labels, see also LabelCensus().
+	 */
+	public static
+	BitSet[] BuildLabelIndex(final int[][] labels)
+	{
+		//find the largest label first
+		int maxLabel = 0;
+		for (int[] frameLabels : labels)
+			for (int label : frameLabels)
+				if (label > maxLabel) maxLabel = label;
+
+		final BitSet[] index = new BitSet[maxLabel+1];
+		for (int time = 0; time < labels.length; ++time)
+			for (int label : labels[time])
+			{
+				if (index[label] == null) index[label] = new BitSet(labels.length);
+				index[label].set(time);
+			}
+
+		return (index);
+	}
+
+	/**
+	 * Returns the (ascending) list of all non-zero labels found in the given image.
+	 * Unlike ClassifyLabels(), it builds no histogram and no matching.
+	 */
+	public int[] CollectLabels(final IterableInterval<UnsignedShortType> img)
+	{
+		//presence flags of the labels, the image is 16-bit
+		final boolean[] present = new boolean[65536];
+		int count = 0;
+
+		final Cursor<UnsignedShortType> c = img.cursor();
+		while (c.hasNext())
+		{
+			final int label = c.next().getInteger();
+			if (!present[label])
+			{
+				present[label] = true;
+				++count;
+			}
+		}
+
+		//the background is not a label
+		if (present[0]) --count;
+
+		final int[] labels = new int[count];
+		int idx = 0;
+		for (int label = 1; label < present.length; ++label)
+			if (present[label]) labels[idx++] = label;
+
+		return (labels);
+	}
+
+	/**
+	 * Lightweight single-image label census of the RES folder: it reads all
+	 * mask???.tif files, in parallel with this.noOfThreads, and returns list of labels
+	 * found at every time point, \e returned[time] = list of labels. It is meant for
+	 * the data consistency checks, see BuildLabelIndex() and TRA.CheckConsistency(),
+	 * and thus it does not touch this.levels at all.
+	 */
+	public int[][] LabelCensus(final String resPath, final boolean shouldComplainOnEmptyImages)
+	throws IOException
+	{
+		//determine the number of time points first
+		int noFrames = 0;
+		while (Files.isReadable(
+			new File(String.format("%s/mask%03d.tif",resPath,noFrames)).toPath()))
+			++noFrames;
+
+		final int[][] labels = new int[noFrames][];
+
+		//every time point is an independent task
+		final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1,noOfThreads));
+		try {
+			final List<Future<?>> tasks = new ArrayList<>(noFrames);
+			for (int time = 0; time < noFrames; ++time)
+			{
+				final int t = time;
+				tasks.add( workers.submit( () -> {
+					labels[t] = CollectLabels(ReadImageG16(String.format("%s/mask%03d.tif",resPath,t)));
+
+					//check the image is not completely blank
+					if (shouldComplainOnEmptyImages && labels[t].length == 0)
+						throw new IllegalArgumentException("RES image at time "+t+" has no markers!");
+					return null;
+				} ) );
+			}
+
+			//wait for all, and propagate the first problem
+			for (Future<?> task : tasks) waitFor(task);
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		return (labels);
+	}
+
+	/**
+	 * Waits for the given task to finish and returns its result, or re-throws its (unwrapped) exception,
+	 * if there was any.
+	 */
+	static <T> T waitFor(final Future<T> task)
+	throws IOException
+	{
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for parallel tasks.");
+		}
+		catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
 	//---------------------------------------------------------------------/
 	/**
 	 * Measure calculation happens in two stages. The first/upper stage does
@@ -617,10 +810,27 @@ public class TrackDataCache
 	 * the measure calculation procedure, possible using data from the cache.
 	 *
 	 * This function computes the common upper stage of measures.
+	 *
+	 * Once computed, the cache is only read by the measures' bottom stages
+	 * (the only lazily built part, the MatchRuns, is guarded in getMatchRuns()),
+	 * and so several measures may safely work over the same cache concurrently.
 	 */
 	public void calculate(final String gtPath, final String resPath)
 	throws IOException
 	{
+		calculate(gtPath,resPath, null);
+	}
+
+	/**
+	 * The same as calculate(gtPath,resPath) but every RES image, once read,
+	 * is also handed over to the \e seg (if not null) for the evaluation of
+	 * its SEG annotations, see SEG.StartSharedPass().
+	 */
+	public void calculate(final String gtPath, final String resPath, final SEG seg)
+	throws IOException
+	{
+		checkNotSealed();
+
 		log.info(" GT path: "+gtPath+"/TRA");
 		log.info("RES path: "+resPath);
 		//DEBUG//log.info("Computing the common upper part...");
@@ -644,6 +854,7 @@ public class TrackDataCache
 				= ReadImageG16(String.format("%s/mask%03d.tif",resPath,time));
 
 			ClassifyLabels(gt_img, res_img);
+			if (seg != null) seg.EvaluateSharedTimePoint(this, time, res_img);
 			++time;
 
 			//to be on safe side (with memory)
@@ -665,6 +876,9 @@ public class TrackDataCache
 		//this cache is valid, see validFor() above
 		this.gtPath  = gtPath;
 		this.resPath = resPath;
+
+		//from now on, the cache is only read
+		sealed = true;
 	}
 
 
@@ -695,4 +909,171 @@ public class TrackDataCache
 		//all test passed, must be unique match then :)
 		return true;
 	}
+
+	/**
+	 * Returns the GT label that the given \e res label matches 1:1
+	 * in the given time point, or -1 if there is no such GT label.
+	 */
+	public int UniqueMatchPartner(final int res, final TemporalLevel level)
+	{
+		for (int j=0; j < level.m_res_lab.length; ++j)
+			if (level.m_res_lab[j] == res)
+			{
+				final HashSet<Integer> match = level.m_res_match[j];
+				if (match.size() != 1) return (-1);
+
+				//NB: the GT label must be matched back to this RES label (see ClassifyLabels())
+				return (level.m_gt_lab[match.iterator().next()]);
+			}
+
+		//not present at the time point
+		return (-1);
+	}
+
+	//---------------------------------------------------------------------/
+	/**
+	 * Index of the runs of consecutive time points in which a GT track and a RES
+	 * track match 1:1 (in the sense of UniqueMatch()). Only pairs that match at
+	 * least once are indexed. Every run is stored as two numbers, the first and
+	 * the last time point of the run, and runs of a pair are sorted in time.
+	 *
+	 * The index is built only once per cache, see getMatchRuns().
+	 */
+	public class MatchRuns
+	{
+		///pair (GT,RES) key -> the runs: begin0,end0, begin1,end1, ...
+		private final HashMap<Long,int[]> m_runs = new HashMap<>();
+
+		///RES ID -> sorted GT IDs with which the RES track matches 1:1 at least once
+		private final HashMap<Integer,int[]> m_partners = new HashMap<>();
+
+		///the key of the pair
+		private long key(final int gt, final int res)
+		{ return ( ((long)gt << 32) | (res & 0xFFFFFFFFL) ); }
+
+		///builds the index from the current levels
+		MatchRuns()
+		{
+			//building runs of the pairs, they will be trimmed afterwards
+			final HashMap<Long,int[]> runs = new HashMap<>();
+			final HashMap<Long,Integer> runsLengths = new HashMap<>();
+			final HashMap<Integer,TreeSet<Integer>> partners = new HashMap<>();
+
+			for (int time = 0; time < levels.size(); ++time)
+			{
+				final TemporalLevel level = levels.get(time);
+				for (int j=0; j < level.m_res_lab.length; ++j)
+				{
+					//only the 1:1 matches
+					if (level.m_res_match[j].size() != 1) continue;
+
+					final int res = level.m_res_lab[j];
+					final int gt  = level.m_gt_lab[level.m_res_match[j].iterator().next()];
+					final long key = key(gt,res);
+
+					int[] pairRuns = runs.get(key);
+					if (pairRuns == null)
+					{
+						//first match of the pair
+						pairRuns = new int[] { time, time };
+						runs.put(key, pairRuns);
+						runsLengths.put(key, 2);
+
+						TreeSet<Integer> resPartners = partners.get(res);
+						if (resPartners == null)
+						{
+							resPartners = new TreeSet<>();
+							partners.put(res, resPartners);
+						}
+						resPartners.add(gt);
+						continue;
+					}
+
+					final int length = runsLengths.get(key);
+					if (pairRuns[length-1] == time-1)
+					{
+						//continues the last run
+						pairRuns[length-1] = time;
+					}
+					else
+					{
+						//starts a new run
+						if (length+2 > pairRuns.length)
+						{
+							pairRuns = Arrays.copyOf(pairRuns, 2*pairRuns.length);
+							runs.put(key, pairRuns);
+						}
+						pairRuns[length]   = time;
+						pairRuns[length+1] = time;
+						runsLengths.put(key, length+2);
+					}
+				}
+			}
+
+			//trim and store
+			for (Long key : runs.keySet())
+				m_runs.put(key, Arrays.copyOf(runs.get(key), runsLengths.get(key)));
+			for (Integer res : partners.keySet())
+				m_partners.put(res, partners.get(res).stream().mapToInt(i -> i).toArray());
+		}
+
+		///returns the runs (begin0,end0, begin1,end1, ...) of the given pair, never null
+		public int[] getRuns(final int gt, final int res)
+		{
+			final int[] runs = m_runs.get(key(gt,res));
+			return (runs != null ? runs : noRuns);
+		}
+
+		///returns the sorted GT IDs with which the given RES track matches 1:1 at least once, never null
+		public int[] getPartners(final int res)
+		{
+			final int[] partners = m_partners.get(res);
+			return (partners != null ? partners : noRuns);
+		}
+
+		///returns true if the given pair matches 1:1 at the given time point, equals to UniqueMatch()
+		public boolean isMatched(final int gt, final int res, final int time)
+		{
+			final int[] runs = getRuns(gt,res);
+
+			//find the last run that begins not after the time
+			int lo = 0, hi = runs.length/2 -1, found = -1;
+			while (lo <= hi)
+			{
+				final int mid = (lo+hi) >>> 1;
+				if (runs[2*mid] <= time) { found = mid; lo = mid+1; }
+				else hi = mid-1;
+			}
+
+			return (found > -1 && runs[2*found+1] >= time);
+		}
+
+		///returns true if the given pair matches 1:1 at all time points from \e from to \e to (inclusive)
+		public boolean isMatched(final int gt, final int res, final int from, final int to)
+		{
+			final int[] runs = getRuns(gt,res);
+			for (int r = 0; r < runs.length; r += 2)
+				if (runs[r] <= from) { if (runs[r+1] >= to) return (true); }
+				else break;
+
+			return (false);
+		}
+	}
+
+	///the "empty" runs
+	private static final int[] noRuns = new int[0];
+
+	///the index, it is built on-demand
+	private MatchRuns matchRuns = null;
+
+	/**
+	 * Returns the index of runs of 1:1 matches of the GT and RES tracks.
+	 * The index is built on the first call (after the levels were populated),
+	 * and it is shared then by all the measures that use this cache.
+	 */
+	public synchronized MatchRuns getMatchRuns()
+	{
+		if (matchRuns == null) matchRuns = new MatchRuns();
+		return (matchRuns);
+	}
 }
@@ -0,0 +1,148 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the median and MAD of the IntensityHistogram with those
+ * obtained by sorting the values, also after the bins were made coarser.
+ */
+public class IntensityHistogramTest
+{
+	@Test
+	public void testDenseIsExact()
+	{
+		final Random rnd = new Random(1);
+		for (int it = 0; it < 50; ++it)
+		{
+			final double[] values = new double[1+rnd.nextInt(500)];
+			final IntensityHistogram hist = new IntensityHistogram(4096, 0);
+			for (int i = 0; i < values.length; ++i)
+			{
+				values[i] = rnd.nextInt(rnd.nextBoolean() ? 4096 : 30);
+				hist.add(values[i]);
+			}
+
+			assertEquals(values.length, hist.getCount());
+			assertEquals(1.0, hist.getBinWidth(), 0.0);
+			assertEquals(median(values), hist.median(), 0.0);
+			assertEquals(MAD(values), hist.MAD(), 0.0);
+		}
+	}
+
+	@Test
+	public void testIntegersAfterRebinning()
+	{
+		final Random rnd = new Random(2);
+		for (int it = 0; it < 200; ++it)
+		{
+			//few bins and a wide range of values: the bins must get coarser
+			final double[] values = new double[1+rnd.nextInt(500)];
+			final IntensityHistogram hist = new IntensityHistogram(2+rnd.nextInt(100), true);
+			final int range = 1+rnd.nextInt(100000);
+			final int offset = rnd.nextInt(200000) - 100000;
+			for (int i = 0; i < values.length; ++i)
+			{
+				values[i] = offset + rnd.nextInt(range);
+				hist.add(values[i]);
+			}
+
+			compare(values, hist);
+		}
+	}
+
+	@Test
+	public void testRealsAfterRebinning()
+	{
+		final Random rnd = new Random(3);
+		for (int it = 0; it < 200; ++it)
+		{
+			//normally distributed values with some outliers
+			final double[] values = new double[1+rnd.nextInt(500)];
+			final IntensityHistogram hist = new IntensityHistogram(16+rnd.nextInt(1000), false);
+			final double mean = 1000.0 * rnd.nextGaussian();
+			final double sigma = Math.abs(50.0 * rnd.nextGaussian());
+			for (int i = 0; i < values.length; ++i)
+			{
+				values[i] = rnd.nextInt(20) == 0 ? 1e5 * rnd.nextDouble() : mean + sigma * rnd.nextGaussian();
+				hist.add(values[i]);
+			}
+
+			compare(values, hist);
+		}
+	}
+
+	@Test
+	public void testForcedRebinning()
+	{
+		//the first value places fine bins, the far away second one must make them coarser
+		final IntensityHistogram hist = new IntensityHistogram(10, true);
+		hist.add(5);
+		assertEquals(1.0, hist.getBinWidth(), 0.0);
+		hist.add(1000);
+		assertTrue(hist.getBinWidth() > 1.0);
+
+		final double[] values = { 5, 1000, 7, 7, 990, 8, 500 };
+		for (int i = 2; i < values.length; ++i) hist.add(values[i]);
+		compare(values, hist);
+	}
+
+	@Test
+	public void testNonFiniteAndEmpty()
+	{
+		final IntensityHistogram hist = new IntensityHistogram(100, false);
+		assertTrue(Double.isNaN(hist.median()));
+		assertTrue(Double.isNaN(hist.MAD()));
+
+		hist.add(Double.NaN);
+		hist.add(Double.POSITIVE_INFINITY);
+		assertEquals(0, hist.getCount());
+
+		hist.add(3.5);
+		assertEquals(1, hist.getCount());
+		assertEquals(3.5, hist.median(), hist.getBinWidth());
+		assertEquals(0.0, hist.MAD(), 0.0);
+	}
+
+	///checks the statistics up to the precision given by the width of the bins
+	static void compare(final double[] values, final IntensityHistogram hist)
+	{
+		assertEquals(values.length, hist.getCount());
+
+		//NB: every value is represented with an error of at most half of the bin width,
+		//    the deviations are then computed from the median with the same error
+		final double width = hist.getBinWidth();
+		assertEquals("median", median(values), hist.median(), width/2.0);
+		assertEquals("MAD", MAD(values), hist.MAD(), width);
+	}
+
+	static double median(final double[] values)
+	{
+		final double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		final int n = sorted.length;
+		return ( (sorted[(n-1)/2] + sorted[n/2]) / 2.0 );
+	}
+
+	static double MAD(final double[] values)
+	{
+		final double median = median(values);
+		final double[] deviations = new double[values.length];
+		for (int i = 0; i < values.length; ++i)
+			deviations[i] = Math.abs(values[i] - median);
+		return (median(deviations));
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.imglib2.img.array.ArrayImgs;
+
+import java.util.Random;
+
+/**
+ * Compares the LabelDistanceTransform with the brute-force evaluation
+ * (over all pairs of voxels) on small anisotropic label images.
+ */
+public class LabelDistanceTransformTest
+{
+	///relative tolerance of the comparisons (the transform works with floats)
+	static final double EPS = 1e-5;
+
+	@Test
+	public void testAnisotropic3D()
+	{
+		final Random rnd = new Random(1);
+		for (int it = 0; it < 10; ++it)
+			compare(new int[] { 13, 11, 6 }, new double[] { 0.5, 0.5, 1.7 }, rnd);
+	}
+
+	@Test
+	public void testAnisotropic2D()
+	{
+		final Random rnd = new Random(2);
+		for (int it = 0; it < 20; ++it)
+			compare(new int[] { 31, 17 }, new double[] { 1.0, 2.5 }, rnd);
+	}
+
+	@Test
+	public void testNoMarkers()
+	{
+		final int[] dims = { 7, 5, 3 };
+		final LabelDistanceTransform edt = new LabelDistanceTransform(
+			ArrayImgs.unsignedShorts(new short[7*5*3], 7,5,3), new double[] { 1.0, 1.0, 2.0 });
+
+		for (int i = 0; i < dims[0]*dims[1]*dims[2]; ++i)
+		{
+			assertTrue(Float.isInfinite(edt.getDistance(i)));
+			assertEquals(0, edt.getNearestMarker(i));
+		}
+		assertTrue(Float.isInfinite(edt.NearestOtherMarkerDistances(3)[1]));
+	}
+
+	///creates a random label image, transforms it and checks it against the brute force
+	void compare(final int[] dims, final double[] resolution, final Random rnd)
+	{
+		final short[] labels = createLabels(dims, 1+rnd.nextInt(5), rnd);
+		final long[] size = new long[dims.length];
+		for (int n = 0; n < dims.length; ++n) size[n] = dims[n];
+
+		final LabelDistanceTransform edt
+			= new LabelDistanceTransform(ArrayImgs.unsignedShorts(labels, size), resolution);
+
+		//distances and nearest markers
+		for (int i = 0; i < labels.length; ++i)
+		{
+			double best = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < labels.length; ++j)
+				if (labels[j] > 0) best = Math.min(best, distance(i,j, dims,resolution));
+
+			assertEquals("distance of voxel "+i, best, edt.getDistance(i), EPS*best);
+
+			//the nearest marker must be one of those that are at the smallest distance
+			double bestOfMarker = Double.POSITIVE_INFINITY;
+			for (int j = 0; j < labels.length; ++j)
+				if (labels[j] == edt.getNearestMarker(i))
+					bestOfMarker = Math.min(bestOfMarker, distance(i,j, dims,resolution));
+			assertEquals("nearest marker of voxel "+i, best, bestOfMarker, EPS*best);
+		}
+
+		//distances between markers
+		final int maxMarker = 7;
+		final float[] nearest = edt.NearestOtherMarkerDistances(maxMarker);
+		assertEquals(maxMarker+1, nearest.length);
+		for (int m = 1; m <= maxMarker; ++m)
+		{
+			double best = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < labels.length; ++i)
+				if (labels[i] == m)
+					for (int j = 0; j < labels.length; ++j)
+						if (labels[j] > 0 && labels[j] != m)
+							best = Math.min(best, distance(i,j, dims,resolution));
+
+			if (Double.isInfinite(best))
+				assertTrue("marker "+m+" has no other marker around", Float.isInfinite(nearest[m]));
+			else
+				assertEquals("nearest other marker of marker "+m, best, nearest[m], EPS*best);
+		}
+	}
+
+	///boxes of random sizes at random positions, later boxes overwrite the earlier ones
+	static short[] createLabels(final int[] dims, final int noOfMarkers, final Random rnd)
+	{
+		int size = 1;
+		for (int d : dims) size *= d;
+		final short[] labels = new short[size];
+
+		for (int m = 1; m <= noOfMarkers; ++m)
+		{
+			final int centre = rnd.nextInt(size);
+			final int radius = rnd.nextInt(3);
+			for (int i = 0; i < size; ++i)
+			{
+				boolean inside = true;
+				int a = i, b = centre;
+				for (int n = 0; n < dims.length; ++n)
+				{
+					if (Math.abs(a % dims[n] - b % dims[n]) > radius) inside = false;
+					a /= dims[n];
+					b /= dims[n];
+				}
+				if (inside) labels[i] = (short)m;
+			}
+		}
+		return (labels);
+	}
+
+	///the distance between the centres of the two voxels, in the units of the x-axis voxel size
+	static double distance(int i, int j, final int[] dims, final double[] resolution)
+	{
+		double dist = 0.;
+		for (int n = 0; n < dims.length; ++n)
+		{
+			final double d = ((i % dims[n]) - (j % dims[n])) * resolution[n] / resolution[0];
+			dist += d*d;
+			i /= dims[n];
+			j /= dims[n];
+		}
+		return (Math.sqrt(dist));
+	}
+}
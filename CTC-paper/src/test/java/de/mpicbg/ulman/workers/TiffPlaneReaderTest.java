@@ -0,0 +1,322 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ *
+ * Copyright (C) 2017 Vladimír Ulman
+ */
+package de.mpicbg.ulman.workers;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Round-trip tests of the TiffPlaneReader: multi-page 16-bit stacks are written
+ * here (with own small encoders, as ImageJ cannot write LZW compressed TIFFs)
+ * and every plane read back must be identical to the written one.
+ */
+public class TiffPlaneReaderTest
+{
+	static final int W = 173, H = 91, Z = 5;
+
+	///TIFF compression codes
+	static final int NONE = 1, LZW = 5, PACKBITS = 32773;
+
+	@Test
+	public void testLZW() throws IOException
+	{
+		roundTrip(LZW, 1, H);
+		roundTrip(LZW, 1, 16);
+	}
+
+	@Test
+	public void testLZWwithPredictor() throws IOException
+	{
+		roundTrip(LZW, 2, H);
+		roundTrip(LZW, 2, 7);
+	}
+
+	@Test
+	public void testPackBits() throws IOException
+	{
+		roundTrip(PACKBITS, 1, H);
+		roundTrip(PACKBITS, 1, 16);
+	}
+
+	@Test
+	public void testUncompressed() throws IOException
+	{
+		roundTrip(NONE, 1, 16);
+	}
+
+	///writes the stack in both byte orders, reads it back (planes in reversed order) and compares
+	void roundTrip(final int compression, final int predictor, final int rowsPerStrip)
+	throws IOException
+	{
+		final short[][] planes = createPlanes();
+
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN })
+		{
+			final File file = File.createTempFile("TiffPlaneReaderTest", ".tif");
+			try {
+				Files.write(file.toPath(), WriteTiff(planes, order, compression, predictor, rowsPerStrip));
+
+				try (TiffPlaneReader reader = new TiffPlaneReader(file.getPath()))
+				{
+					assertEquals(Z, reader.getNumberOfPlanes());
+					for (int z = Z-1; z >= 0; --z)
+					{
+						final TiffPlaneReader.Plane plane = reader.ReadPlane(z);
+						assertEquals(W, plane.width);
+						assertEquals(H, plane.height);
+						assertArrayEquals("plane "+z+" (compression "+compression+", predictor "
+							+predictor+", "+order+")", planes[z], plane.pixels);
+					}
+				}
+			}
+			finally {
+				file.delete();
+			}
+		}
+	}
+
+	///smooth ramps (that compress well) interleaved with noisy rows (that fill the LZW table)
+	static short[][] createPlanes()
+	{
+		final Random rnd = new Random(1);
+		final short[][] planes = new short[Z][W*H];
+		for (int z = 0; z < Z; ++z)
+			for (int i = 0; i < W*H; ++i)
+				planes[z][i] = (short)( (i/W) % 5 == 0 ? rnd.nextInt(65536) : ((i%W)/10)*(z+1)*37 );
+		return (planes);
+	}
+
+
+	//---------------------------------------------------------------------/
+	///writes a multi-page 16-bit gray TIFF, one IFD per plane
+	static byte[] WriteTiff(final short[][] planes, final ByteOrder order,
+		final int compression, final int predictor, final int rowsPerStrip)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteBuffer header = ByteBuffer.allocate(8).order(order);
+		header.putShort((short)(order == ByteOrder.LITTLE_ENDIAN ? 0x4949 : 0x4D4D));
+		header.putShort((short)42);
+		header.putInt(0); //offset of the first IFD, patched below
+		out.write(header.array(), 0, 8);
+
+		//where the offset of the next IFD is to be stored
+		int nextIFDpointer = 4;
+		final byte[][] ifds = new byte[planes.length][];
+		final int[] ifdOffsets = new int[planes.length];
+
+		for (int z = 0; z < planes.length; ++z)
+		{
+			//strips
+			final int noStrips = (H + rowsPerStrip-1) / rowsPerStrip;
+			final long[] stripOffsets = new long[noStrips];
+			final long[] stripByteCounts = new long[noStrips];
+			for (int s = 0; s < noStrips; ++s)
+			{
+				final int row0 = s*rowsPerStrip;
+				final int rows = Math.min(rowsPerStrip, H - row0);
+				final byte[] strip = encode(toBytes(planes[z], row0, rows, order, predictor), compression);
+				stripOffsets[s] = out.size();
+				stripByteCounts[s] = strip.length;
+				out.write(strip, 0, strip.length);
+			}
+			if (out.size() % 2 == 1) out.write(0);
+
+			//out-of-line values of the strip fields
+			long stripOffsetsField = stripOffsets[0], stripByteCountsField = stripByteCounts[0];
+			if (noStrips > 1)
+			{
+				stripOffsetsField = out.size();
+				out.write(toBytes(stripOffsets, order), 0, 4*noStrips);
+				stripByteCountsField = out.size();
+				out.write(toBytes(stripByteCounts, order), 0, 4*noStrips);
+			}
+
+			//the IFD itself
+			final ByteBuffer ifd = ByteBuffer.allocate(2 + 12*10 + 4).order(order);
+			ifd.putShort((short)(predictor != 1 ? 10 : 9));
+			entry(ifd, 256, 4, 1, W);
+			entry(ifd, 257, 4, 1, H);
+			entry(ifd, 258, 3, 1, 16);
+			entry(ifd, 259, 3, 1, compression);
+			entry(ifd, 262, 3, 1, 1);
+			entry(ifd, 273, 4, noStrips, stripOffsetsField);
+			entry(ifd, 277, 3, 1, 1);
+			entry(ifd, 278, 4, 1, rowsPerStrip);
+			entry(ifd, 279, 4, noStrips, stripByteCountsField);
+			if (predictor != 1) entry(ifd, 317, 3, 1, predictor);
+			ifd.putInt(0); //no next IFD, patched later if there is one
+
+			ifdOffsets[z] = out.size();
+			ifds[z] = java.util.Arrays.copyOf(ifd.array(), ifd.position());
+			out.write(ifds[z], 0, ifds[z].length);
+		}
+
+		//link the IFDs
+		final ByteBuffer file = ByteBuffer.wrap(out.toByteArray()).order(order);
+		for (int z = 0; z < planes.length; ++z)
+		{
+			file.putInt(nextIFDpointer, ifdOffsets[z]);
+			nextIFDpointer = ifdOffsets[z] + ifds[z].length - 4;
+		}
+		return (file.array());
+	}
+
+	///writes one IFD entry, the value (or the offset of the values) must fit into the entry
+	static void entry(final ByteBuffer ifd, final int tag, final int type, final int count, final long value)
+	{
+		ifd.putShort((short)tag);
+		ifd.putShort((short)type);
+		ifd.putInt(count);
+		if (type == 3 && count == 1)
+		{
+			ifd.putShort((short)value);
+			ifd.putShort((short)0);
+		}
+		else ifd.putInt((int)value);
+	}
+
+	///returns the rows of the plane as bytes, with the horizontal differencing if \e predictor == 2
+	static byte[] toBytes(final short[] plane, final int row0, final int rows,
+		final ByteOrder order, final int predictor)
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(2*W*rows).order(order);
+		for (int y = row0; y < row0+rows; ++y)
+			for (int x = 0; x < W; ++x)
+				buf.putShort( (short)(predictor == 2 && x > 0 ?
+					plane[y*W+x] - plane[y*W+x-1] : plane[y*W+x]) );
+		return (buf.array());
+	}
+
+	static byte[] toBytes(final long[] values, final ByteOrder order)
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(4*values.length).order(order);
+		for (long v : values) buf.putInt((int)v);
+		return (buf.array());
+	}
+
+	static byte[] encode(final byte[] data, final int compression)
+	{
+		switch (compression)
+		{
+		case LZW:      return (EncodeLZW(data));
+		case PACKBITS: return (EncodePackBits(data));
+		default:       return (data);
+		}
+	}
+
+
+	//---------------------------------------------------------------------/
+	//encoders:
+
+	///the TIFF flavour of the LZW (MSB-first codes, "early change" of the code length)
+	static byte[] EncodeLZW(final byte[] in)
+	{
+		final BitWriter out = new BitWriter();
+		final HashMap<Integer,Integer> table = new HashMap<>(); //(prefix code << 8 | byte) -> code
+		int nextCode = 258;
+		int codeLen = 9;
+
+		out.put(256, codeLen); //clear code
+		int prefix = in[0] & 0xFF;
+		for (int i = 1; i < in.length; ++i)
+		{
+			final int c = in[i] & 0xFF;
+			final Integer code = table.get(prefix << 8 | c);
+			if (code != null)
+			{
+				prefix = code;
+				continue;
+			}
+
+			out.put(prefix, codeLen);
+			table.put(prefix << 8 | c, nextCode++);
+			if (nextCode == 4094)
+			{
+				//the table is full, start over
+				out.put(256, codeLen);
+				table.clear();
+				nextCode = 258;
+				codeLen = 9;
+			}
+			else if (nextCode > (1 << codeLen)-1) ++codeLen;
+			prefix = c;
+		}
+		out.put(prefix, codeLen);
+		++nextCode;
+		if (nextCode > (1 << codeLen)-1 && codeLen < 12) ++codeLen;
+		out.put(257, codeLen); //end of information
+		return (out.toByteArray());
+	}
+
+	///writer of MSB-first codes
+	static class BitWriter
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int acc = 0, accBits = 0;
+
+		void put(final int code, final int len)
+		{
+			acc = (acc << len) | code;
+			accBits += len;
+			while (accBits >= 8)
+			{
+				bytes.write(acc >> (accBits-8));
+				accBits -= 8;
+				acc &= (1 << accBits)-1;
+			}
+		}
+
+		byte[] toByteArray()
+		{
+			if (accBits > 0) bytes.write(acc << (8-accBits));
+			accBits = 0;
+			return (bytes.toByteArray());
+		}
+	}
+
+	///the PackBits run-length encoding
+	static byte[] EncodePackBits(final byte[] in)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int i = 0;
+		while (i < in.length)
+		{
+			int run = 1;
+			while (i+run < in.length && run < 128 && in[i+run] == in[i]) ++run;
+
+			if (run > 1)
+			{
+				//repetitions of one byte
+				out.write(1-run);
+				out.write(in[i]);
+				i += run;
+			}
+			else
+			{
+				//literal bytes, till the next repetition
+				final int start = i;
+				while (i < in.length && i-start < 128 && !(i+1 < in.length && in[i+1] == in[i])) ++i;
+				out.write(i-start-1);
+				out.write(in, start, i-start);
+			}
+		}
+		return (out.toByteArray());
+	}
+}
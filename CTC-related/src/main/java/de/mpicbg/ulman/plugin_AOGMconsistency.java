@@ -16,12 +16,10 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.log.LogService;
 import net.imagej.ImageJ;
-import net.imglib2.img.Img;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 import org.scijava.widget.FileWidget;
 import java.io.File;
-import java.nio.file.Files;
+import java.util.BitSet;
 
 import de.mpicbg.ulman.workers.TRA;
 import de.mpicbg.ulman.workers.TrackDataCache;
@@ -48,6 +46,14 @@ public class plugin_AOGMconsistency implements Command
 		description = "Checks if no label is found in either ground-truth or result image before measuring TRA.")
 	private boolean checkEmptyImages = true;
 
+	@Parameter(label = "Report all inconsistencies:",
+		description = "Collects and reports all found inconsistencies instead of stopping at the first one.")
+	private boolean reportAll = true;
+
+	@Parameter(label = "Max. number of listed inconsistencies:", min = "1",
+		description = "Caps the length of the report when all inconsistencies are collected.")
+	private int maxReportedIssues = 1000;
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private final String pathFooterA
 		= "Note that folder has to comply with certain data format, please see";
@@ -73,35 +79,38 @@ public class plugin_AOGMconsistency implements Command
 			//load metadata with the lineages
 			cache.LoadTrackFile(resPath+"/res_track.txt", cache.res_tracks);
 
-			//iterate through the data folder and read files, one by one,
-			//and call ClassifyLabels() for every file
-			int time = 0;
-			while (Files.isReadable(
-				new File(String.format("%s/mask%03d.tif",resPath,time)).toPath()))
-			{
-				//read the image
-				Img<UnsignedShortType> res_img
-					= cache.ReadImageG16(String.format("%s/mask%03d.tif",resPath,time));
+			//read all images of the data folder (in parallel) and
+			//just note which labels are present at every time point
+			final int[][] labels = cache.LabelCensus(resPath.getPath(), checkEmptyImages);
 
-				cache.ClassifyLabels(res_img, res_img, checkEmptyImages);
-				++time;
+			if (labels.length == 0)
+				throw new IllegalArgumentException("No result (RES) image was found!");
 
-				//to be on safe side (with memory)
-				res_img = null;
-			}
+			//label -> time points
+			final BitSet[] labelFrames = TrackDataCache.BuildLabelIndex(labels);
 
-			if (cache.levels.size() == 0)
-				throw new IllegalArgumentException("No reference (GT) image was found!");
+			if (reportAll)
+			{
+				//collect-all mode: gather (capped) list of problems and report it
+				final TRA.ConsistencyReport report = tra.new ConsistencyReport(maxReportedIssues);
+				tra.CheckConsistency(labelFrames, labels.length, cache.res_tracks, false, report);
 
-			consistent = true;
-			try {
-				tra.CheckConsistency(cache.levels, cache.res_tracks, false);
+				report.reportTo(log);
+				consistent = report.isConsistent();
 			}
-			catch (IllegalArgumentException e)
+			else
 			{
-				//report the error and set the output flag
-				log.info(e.getMessage());
-				consistent = false;
+				//fail-fast mode: stop on the first problem
+				consistent = true;
+				try {
+					tra.CheckConsistency(labelFrames, labels.length, cache.res_tracks, false, null);
+				}
+				catch (IllegalArgumentException e)
+				{
+					//report the error and set the output flag
+					log.info(e.getMessage());
+					consistent = false;
+				}
 			}
 		}
 		catch (RuntimeException e) {
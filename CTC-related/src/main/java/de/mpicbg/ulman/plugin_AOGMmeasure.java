@@ -86,6 +86,10 @@ public class plugin_AOGMmeasure implements Command
 		description = "Logs all discrepancies (and organizes them by category) between the input and GT data.")
 	private boolean doLogReports = true;
 
+	@Parameter(label = "Report also per time windows of length:", min = "0",
+		description = "Reports AOGM (and TRA) also for consecutive time windows of this many frames, 0 means no such report.")
+	private int timeWindowLength = 0;
+
 
 	//citation footer...
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false, label = "Please, cite us:")
@@ -150,6 +154,19 @@ public class plugin_AOGMmeasure implements Command
 			//do the calculation
 			AOGM = tra.calculate(gtPath.getPath(),resPath.getPath());
 
+			//report over time windows, if requested
+			if (timeWindowLength > 0)
+			{
+				log.info("---");
+				final int noFrames = tra.getNumberOfFrames();
+				for (int t0 = 0; t0 < noFrames; t0 += timeWindowLength)
+				{
+					final int t1 = Math.min(t0+timeWindowLength, noFrames) -1;
+					log.info("AOGM for frames "+t0+"-"+t1+": "+tra.getAOGM(t0,t1)
+					        +" (TRA: "+tra.getTRA(t0,t1)+")");
+				}
+			}
+
 			//do not report anything explicitly (unless special format for parsing is
 			//desired) as ItemIO.OUTPUT will make it output automatically
 		}